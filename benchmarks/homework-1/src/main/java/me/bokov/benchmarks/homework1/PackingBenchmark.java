@@ -0,0 +1,198 @@
+package me.bokov.benchmarks.homework1;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the homework-1 search on generated parking lots. The lots are cut from a full rectangle
+ * with random guillotine cuts, so every generated instance has a solution, and {@link #slack} cars
+ * are dropped from the list to leave free cells in the lot.
+ *
+ * The homework's {@code Main} lives in the default package, which can not be imported, so it is
+ * reached through method handles. Parsing the input happens in the per-invocation setup, only the
+ * search itself is measured.
+ */
+@State (Scope.Thread)
+@BenchmarkMode ({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit (TimeUnit.MILLISECONDS)
+@Warmup (iterations = 3, time = 2)
+@Measurement (iterations = 5, time = 2)
+@Fork (1)
+public class PackingBenchmark {
+
+    private static final Class<?> MAIN;
+    private static final MethodHandle NEW_MAIN;
+    private static final MethodHandle READ_INPUT;
+    private static final MethodHandle SOLVE_INPUT;
+    private static final MethodHandle SET_ENGINE;
+    private static final MethodHandle ENGINE_VALUE_OF;
+
+    static {
+        try {
+
+            MethodHandles.Lookup lookup = MethodHandles.lookup ();
+
+            MAIN = Class.forName ("Main");
+            Class<?> engine = Class.forName ("Main$Engine");
+
+            NEW_MAIN = lookup.findConstructor (MAIN, MethodType.methodType (void.class, InputStream.class, PrintStream.class))
+                    .asType (MethodType.methodType (Object.class, InputStream.class, PrintStream.class));
+            READ_INPUT = privateMethod (lookup, "readInput")
+                    .asType (MethodType.methodType (void.class, Object.class));
+            SOLVE_INPUT = privateMethod (lookup, "solveInput")
+                    .asType (MethodType.methodType (boolean.class, Object.class));
+            SET_ENGINE = privateMethod (lookup, "setEngine", engine)
+                    .asType (MethodType.methodType (void.class, Object.class, Object.class));
+            ENGINE_VALUE_OF = lookup.findStatic (engine, "valueOf", MethodType.methodType (engine, String.class))
+                    .asType (MethodType.methodType (Object.class, String.class));
+
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError (e);
+        }
+    }
+
+    private static MethodHandle privateMethod (MethodHandles.Lookup lookup, String name, Class<?>... parameterTypes)
+            throws ReflectiveOperationException {
+        Method method = MAIN.getDeclaredMethod (name, parameterTypes);
+        method.setAccessible (true);
+        return lookup.unreflect (method);
+    }
+
+    /**
+     * The size of the generated lot, as {@code HEIGHTxWIDTH}.
+     */
+    @Param ({"6x6", "10x10", "16x16"})
+    public String lot;
+
+    /**
+     * The number of cars removed from the perfect packing.
+     */
+    @Param ({"0", "2"})
+    public int slack;
+
+    @Param ({"LIST", "BITBOARD", "DLX"})
+    public String engine;
+
+    @Param ({"42"})
+    public long seed;
+
+    private byte[] input;
+    private PrintStream output;
+    private Object main;
+
+    @Setup (Level.Trial)
+    public void generate () {
+
+        String[] size = lot.split ("x");
+        input = generateLot (Integer.parseInt (size[0]), Integer.parseInt (size[1]), slack, new Random (seed))
+                .getBytes (StandardCharsets.UTF_8);
+
+        output = new PrintStream (new OutputStream () {
+            @Override
+            public void write (int b) {
+            }
+
+            @Override
+            public void write (byte[] b, int off, int len) {
+            }
+        });
+
+    }
+
+    @Setup (Level.Invocation)
+    public void prepare () throws Throwable {
+
+        main = NEW_MAIN.invokeExact ((InputStream) new ByteArrayInputStream (input), output);
+        SET_ENGINE.invokeExact (main, ENGINE_VALUE_OF.invokeExact (engine));
+        READ_INPUT.invokeExact (main);
+
+    }
+
+    @Benchmark
+    public boolean findSolution () throws Throwable {
+        return (boolean) SOLVE_INPUT.invokeExact (main);
+    }
+
+    /**
+     * Cuts a {@code height} x {@code width} lot into cars with random guillotine cuts, shuffles them,
+     * drops {@code slack} of them and rotates every car with a probability of one half.
+     */
+    static String generateLot (int height, int width, int slack, Random random) {
+
+        final int maxSide = Math.max (2, Math.min (height, width) / 2);
+
+        List<int[]> cars = new ArrayList<> ();
+        Deque<int[]> pieces = new ArrayDeque<> ();
+        pieces.push (new int[] {width, height});
+
+        while (!pieces.isEmpty ()) {
+
+            int[] piece = pieces.pop ();
+            int w = piece[0];
+            int h = piece[1];
+
+            if ((w <= maxSide && h <= maxSide && random.nextBoolean ()) || (w == 1 && h == 1)) {
+                cars.add (piece);
+            } else if ((w > h || h == 1) && w > 1) {
+                int cut = 1 + random.nextInt (w - 1);
+                pieces.push (new int[] {cut, h});
+                pieces.push (new int[] {w - cut, h});
+            } else {
+                int cut = 1 + random.nextInt (h - 1);
+                pieces.push (new int[] {w, cut});
+                pieces.push (new int[] {w, h - cut});
+            }
+
+        }
+
+        Collections.shuffle (cars, random);
+        cars = cars.subList (Math.min (slack, cars.size () - 1), cars.size ());
+
+        StringBuilder sb = new StringBuilder ();
+        sb.append (height).append ("\t").append (width).append ("\n");
+        sb.append (cars.size ()).append ("\n");
+        for (int[] car : cars) {
+            if (random.nextBoolean ()) {
+                sb.append (car[1]).append ("\t").append (car[0]).append ("\n");
+            } else {
+                sb.append (car[0]).append ("\t").append (car[1]).append ("\n");
+            }
+        }
+
+        return sb.toString ();
+
+    }
+
+    public static void main (String[] args) throws RunnerException {
+
+        Options options = new OptionsBuilder ()
+                .include (PackingBenchmark.class.getSimpleName ())
+                .addProfiler (GCProfiler.class)
+                .build ();
+
+        new Runner (options).run ();
+
+    }
+
+}
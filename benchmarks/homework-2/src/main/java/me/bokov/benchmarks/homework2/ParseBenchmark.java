@@ -0,0 +1,230 @@
+package me.bokov.benchmarks.homework2;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures reading a generated ratings file into the homework-2 rating store, including building
+ * its index:
+ * <ul>
+ *     <li>{@code readLines}: the original line-based reader, {@code BufferedReader.readLine},
+ *     {@code String.split} and {@code Integer.valueOf} / {@code Float.valueOf} for every line,</li>
+ *     <li>{@code parseStream}: the byte-level parser reading through its buffer,</li>
+ *     <li>{@code parseMapped}: the byte-level parser on the memory-mapped file, on
+ *     {@link #parallelism} threads,</li>
+ *     <li>{@code loadBinary}: loading the same ratings from a saved binary data set, with plain
+ *     columns,</li>
+ *     <li>{@code loadCompact}: the same with the ratings sorted and delta-encoded.</li>
+ * </ul>
+ *
+ * The homework's {@code Main} lives in the default package, which can not be imported, so it is
+ * reached through method handles.
+ */
+@State (Scope.Benchmark)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.MILLISECONDS)
+@Warmup (iterations = 3, time = 2)
+@Measurement (iterations = 5, time = 2)
+@Fork (1)
+public class ParseBenchmark {
+
+    private static final MethodHandle NEW_RATING_STORE;
+    private static final MethodHandle ADD_RATING;
+    private static final MethodHandle BUILD_INDEX;
+    private static final MethodHandle PARSE;
+    private static final MethodHandle NEW_SNAPSHOT;
+    private static final MethodHandle SAVE_SNAPSHOT;
+    private static final MethodHandle LOAD_SNAPSHOT;
+
+    static {
+        try {
+
+            MethodHandles.Lookup lookup = MethodHandles.lookup ();
+
+            Class<?> ratingStore = Class.forName ("RatingStore");
+            Class<?> ratingsParser = Class.forName ("RatingsParser");
+            Class<?> factorMatrix = Class.forName ("FactorMatrix");
+            Class<?> modelSnapshot = Class.forName ("ModelSnapshot");
+
+            Constructor<?> ratingStoreConstructor = ratingStore.getDeclaredConstructor (int.class, int.class, int.class);
+            ratingStoreConstructor.setAccessible (true);
+            NEW_RATING_STORE = lookup.unreflectConstructor (ratingStoreConstructor)
+                    .asType (MethodType.methodType (Object.class, int.class, int.class, int.class));
+
+            Method add = ratingStore.getDeclaredMethod ("add", int.class, int.class, float.class);
+            add.setAccessible (true);
+            ADD_RATING = lookup.unreflect (add)
+                    .asType (MethodType.methodType (void.class, Object.class, int.class, int.class, float.class));
+
+            Method buildIndex = ratingStore.getDeclaredMethod ("buildIndex");
+            buildIndex.setAccessible (true);
+            BUILD_INDEX = lookup.unreflect (buildIndex)
+                    .asType (MethodType.methodType (void.class, Object.class));
+
+            Method parse = ratingsParser.getDeclaredMethod ("parse", InputStream.class, int.class);
+            parse.setAccessible (true);
+            PARSE = lookup.unreflect (parse)
+                    .asType (MethodType.methodType (Object.class, InputStream.class, int.class));
+
+            Constructor<?> snapshotConstructor = modelSnapshot.getDeclaredConstructor (ratingStore, factorMatrix, factorMatrix);
+            snapshotConstructor.setAccessible (true);
+            NEW_SNAPSHOT = lookup.unreflectConstructor (snapshotConstructor)
+                    .asType (MethodType.methodType (Object.class, Object.class, Object.class, Object.class));
+
+            Method save = modelSnapshot.getDeclaredMethod ("save", Path.class, boolean.class);
+            save.setAccessible (true);
+            SAVE_SNAPSHOT = lookup.unreflect (save)
+                    .asType (MethodType.methodType (void.class, Object.class, Path.class, boolean.class));
+
+            Method load = modelSnapshot.getDeclaredMethod ("load", Path.class);
+            load.setAccessible (true);
+            LOAD_SNAPSHOT = lookup.unreflect (load)
+                    .asType (MethodType.methodType (Object.class, Path.class));
+
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError (e);
+        }
+    }
+
+    @Param ({"20000"})
+    public int users;
+
+    @Param ({"5000"})
+    public int books;
+
+    @Param ({"1000000"})
+    public int ratings;
+
+    @Param ({"1", "4"})
+    public int parallelism;
+
+    @Param ({"42"})
+    public long seed;
+
+    private File file;
+    private File binaryFile;
+    private File compactFile;
+
+    @Setup (Level.Trial)
+    public void generate () throws Throwable {
+
+        Random random = new Random (seed);
+        file = File.createTempFile ("hw2-ratings", ".in");
+        file.deleteOnExit ();
+
+        try (BufferedWriter writer = new BufferedWriter (new FileWriter (file))) {
+            writer.write (ratings + "\t" + users + "\t" + books + "\n");
+            for (int i = 0; i < ratings; i++) {
+                writer.write (random.nextInt (users) + "\t" + random.nextInt (books) + "\t" + (random.nextInt (5) + 1) + "\n");
+            }
+        }
+
+        binaryFile = File.createTempFile ("hw2-ratings", ".bin");
+        binaryFile.deleteOnExit ();
+        compactFile = File.createTempFile ("hw2-ratings", ".bin");
+        compactFile.deleteOnExit ();
+
+        Object dataSet;
+        try (InputStream input = new FileInputStream (file)) {
+            dataSet = NEW_SNAPSHOT.invokeExact ((Object) PARSE.invokeExact (input, 1), (Object) null, (Object) null);
+        }
+        SAVE_SNAPSHOT.invokeExact (dataSet, binaryFile.toPath (), false);
+        SAVE_SNAPSHOT.invokeExact (dataSet, compactFile.toPath (), true);
+        System.out.printf (
+                "%nText: %d bytes, binary: %d bytes, compact: %d bytes%n",
+                file.length (), binaryFile.length (), compactFile.length ()
+        );
+
+    }
+
+    @TearDown (Level.Trial)
+    public void delete () {
+        file.delete ();
+        binaryFile.delete ();
+        compactFile.delete ();
+    }
+
+    @Benchmark
+    public Object readLines () throws Throwable {
+
+        try (BufferedReader reader = new BufferedReader (new InputStreamReader (new FileInputStream (file)))) {
+
+            String line = reader.readLine ();
+            String[] line_list = line.split ("\\s+");
+            int nRatings = Integer.valueOf (line_list[0]);
+            int nUsers = Integer.valueOf (line_list[1]);
+            int nBooks = Integer.valueOf (line_list[2]);
+
+            Object store = NEW_RATING_STORE.invokeExact (nUsers, nBooks, nRatings);
+            for (int i = 0; i < nRatings; i++) {
+                line = reader.readLine ();
+                line_list = line.split ("\\s+");
+                int user = Integer.valueOf (line_list[0]);
+                int book = Integer.valueOf (line_list[1]);
+                float score = Float.valueOf (line_list[2]) / 5.0f;
+                ADD_RATING.invokeExact (store, user, book, score);
+            }
+            BUILD_INDEX.invokeExact (store);
+            return store;
+
+        }
+
+    }
+
+    @Benchmark
+    public Object parseStream () throws Throwable {
+        try (InputStream input = new BufferedInputStream (new FileInputStream (file))) {
+            return (Object) PARSE.invokeExact (input, 1);
+        }
+    }
+
+    @Benchmark
+    public Object parseMapped () throws Throwable {
+        try (InputStream input = new FileInputStream (file)) {
+            return (Object) PARSE.invokeExact (input, parallelism);
+        }
+    }
+
+    @Benchmark
+    public Object loadBinary () throws Throwable {
+        return (Object) LOAD_SNAPSHOT.invokeExact (binaryFile.toPath ());
+    }
+
+    @Benchmark
+    public Object loadCompact () throws Throwable {
+        return (Object) LOAD_SNAPSHOT.invokeExact (compactFile.toPath ());
+    }
+
+    public static void main (String[] args) throws RunnerException {
+
+        Options options = new OptionsBuilder ()
+                .include (ParseBenchmark.class.getSimpleName ())
+                .addProfiler (GCProfiler.class)
+                .build ();
+
+        new Runner (options).run ();
+
+    }
+
+}
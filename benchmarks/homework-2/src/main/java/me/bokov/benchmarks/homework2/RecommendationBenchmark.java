@@ -0,0 +1,222 @@
+package me.bokov.benchmarks.homework2;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the latency of one top-10 recommendation on a generated catalog, with exact scoring of
+ * every book ({@code probe = 0}) or with the homework's approximate inner product index probing
+ * {@link #probe} of its clusters. The factors are standard normal random numbers, and every user
+ * has rated {@link #ratingsPerUser} random books.
+ *
+ * The recall@10 of the index against exact scoring, averaged over all users, is printed once per
+ * trial by the setup, it is not part of the measured time.
+ *
+ * The homework's {@code Main} lives in the default package, which can not be imported, so it is
+ * reached through method handles.
+ */
+@State (Scope.Thread)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.MICROSECONDS)
+@Warmup (iterations = 3, time = 2)
+@Measurement (iterations = 5, time = 2)
+@Fork (1)
+public class RecommendationBenchmark {
+
+    private static final int K = 10;
+
+    private static final MethodHandle NEW_RATING_STORE;
+    private static final MethodHandle ADD_RATING;
+    private static final MethodHandle BUILD_INDEX;
+    private static final MethodHandle NEW_FACTOR_MATRIX;
+    private static final MethodHandle GET_DATA;
+    private static final MethodHandle NEW_TOP_K_RECOMMENDER;
+    private static final MethodHandle EXACT_RECOMMEND;
+    private static final MethodHandle NEW_INNER_PRODUCT_INDEX;
+    private static final MethodHandle NEW_APPROXIMATE_RECOMMENDER;
+    private static final MethodHandle APPROXIMATE_RECOMMEND;
+
+    static {
+        try {
+
+            MethodHandles.Lookup lookup = MethodHandles.lookup ();
+
+            Class<?> ratingStore = Class.forName ("RatingStore");
+            Class<?> factorMatrix = Class.forName ("FactorMatrix");
+            Class<?> topKRecommender = Class.forName ("TopKRecommender");
+            Class<?> innerProductIndex = Class.forName ("InnerProductIndex");
+            Class<?> approximateRecommender = Class.forName ("ApproximateRecommender");
+
+            NEW_RATING_STORE = constructor (lookup, ratingStore, int.class, int.class, int.class)
+                    .asType (MethodType.methodType (Object.class, int.class, int.class, int.class));
+            ADD_RATING = method (lookup, ratingStore, "add", int.class, int.class, float.class)
+                    .asType (MethodType.methodType (void.class, Object.class, int.class, int.class, float.class));
+            BUILD_INDEX = method (lookup, ratingStore, "buildIndex")
+                    .asType (MethodType.methodType (void.class, Object.class));
+
+            NEW_FACTOR_MATRIX = constructor (lookup, factorMatrix, int.class, int.class)
+                    .asType (MethodType.methodType (Object.class, int.class, int.class));
+            GET_DATA = method (lookup, factorMatrix, "getData")
+                    .asType (MethodType.methodType (float[].class, Object.class));
+
+            NEW_TOP_K_RECOMMENDER = constructor (lookup, topKRecommender, int.class, int.class)
+                    .asType (MethodType.methodType (Object.class, int.class, int.class));
+            EXACT_RECOMMEND = method (
+                    lookup, topKRecommender, "recommend", int.class, ratingStore, factorMatrix, factorMatrix, int[].class
+            ).asType (MethodType.methodType (int.class, Object.class, int.class, Object.class, Object.class, Object.class, int[].class));
+
+            NEW_INNER_PRODUCT_INDEX = constructor (lookup, innerProductIndex, factorMatrix, int.class, int.class, Random.class)
+                    .asType (MethodType.methodType (Object.class, Object.class, int.class, int.class, Random.class));
+            NEW_APPROXIMATE_RECOMMENDER = constructor (lookup, approximateRecommender, innerProductIndex, int.class, int.class)
+                    .asType (MethodType.methodType (Object.class, Object.class, int.class, int.class));
+            APPROXIMATE_RECOMMEND = method (
+                    lookup, approximateRecommender, "recommend", int.class, ratingStore, factorMatrix, int[].class
+            ).asType (MethodType.methodType (int.class, Object.class, int.class, Object.class, Object.class, int[].class));
+
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError (e);
+        }
+    }
+
+    private static MethodHandle constructor (MethodHandles.Lookup lookup, Class<?> type, Class<?>... parameterTypes)
+            throws ReflectiveOperationException {
+        Constructor<?> constructor = type.getDeclaredConstructor (parameterTypes);
+        constructor.setAccessible (true);
+        return lookup.unreflectConstructor (constructor);
+    }
+
+    private static MethodHandle method (MethodHandles.Lookup lookup, Class<?> type, String name, Class<?>... parameterTypes)
+            throws ReflectiveOperationException {
+        Method method = type.getDeclaredMethod (name, parameterTypes);
+        method.setAccessible (true);
+        return lookup.unreflect (method);
+    }
+
+    @Param ({"1000"})
+    public int users;
+
+    @Param ({"10000", "100000"})
+    public int books;
+
+    @Param ({"20"})
+    public int features;
+
+    @Param ({"20"})
+    public int ratingsPerUser;
+
+    /**
+     * The number of clusters of the index, {@code 0} for the square root of the number of books.
+     */
+    @Param ({"0"})
+    public int lists;
+
+    /**
+     * The number of clusters probed per recommendation, {@code 0} for exact scoring.
+     */
+    @Param ({"0", "4", "16", "64"})
+    public int probe;
+
+    @Param ({"42"})
+    public long seed;
+
+    private Object ratings;
+    private Object P;
+    private Object Q;
+    private Object recommender;
+    private final int[] recommended = new int[K];
+    private int nextUser;
+
+    @Setup (Level.Trial)
+    public void generate () throws Throwable {
+
+        Random random = new Random (seed);
+
+        ratings = NEW_RATING_STORE.invokeExact (users, books, users * ratingsPerUser);
+        for (int user = 0; user < users; user++) {
+            for (int i = 0; i < ratingsPerUser; i++) {
+                ADD_RATING.invokeExact (ratings, user, random.nextInt (books), (random.nextInt (5) + 1) / 5.0f);
+            }
+        }
+        BUILD_INDEX.invokeExact (ratings);
+
+        P = NEW_FACTOR_MATRIX.invokeExact (users, features);
+        Q = NEW_FACTOR_MATRIX.invokeExact (books, features);
+        fillGaussian ((float[]) GET_DATA.invokeExact (P), random);
+        fillGaussian ((float[]) GET_DATA.invokeExact (Q), random);
+
+        Object exact = NEW_TOP_K_RECOMMENDER.invokeExact (books, K);
+        if (probe == 0) {
+            recommender = exact;
+            return;
+        }
+
+        final int nLists = lists > 0 ? lists : (int) Math.ceil (Math.sqrt (books));
+        final long start = System.nanoTime ();
+        Object index = NEW_INNER_PRODUCT_INDEX.invokeExact (Q, nLists, 10, random);
+        final long buildMillis = TimeUnit.NANOSECONDS.toMillis (System.nanoTime () - start);
+        recommender = NEW_APPROXIMATE_RECOMMENDER.invokeExact (index, K, probe);
+
+        int[] expected = new int[K];
+        int found = 0;
+        int total = 0;
+        for (int user = 0; user < users; user++) {
+            final int expectedCount = (int) EXACT_RECOMMEND.invokeExact (exact, user, ratings, P, Q, expected);
+            final int count = (int) APPROXIMATE_RECOMMEND.invokeExact (recommender, user, ratings, P, recommended);
+            for (int i = 0; i < count; i++) {
+                for (int j = 0; j < expectedCount; j++) {
+                    if (recommended[i] == expected[j]) {
+                        found++;
+                    }
+                }
+            }
+            total += expectedCount;
+        }
+
+        System.out.printf (
+                "%nlists = %d, probe = %d: recall@%d = %.4f, index built in %d ms%n",
+                nLists, probe, K, (double) found / total, buildMillis
+        );
+
+    }
+
+    private static void fillGaussian (float[] data, Random random) {
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (float) random.nextGaussian ();
+        }
+    }
+
+    @Benchmark
+    public int recommend () throws Throwable {
+
+        final int user = nextUser;
+        nextUser = nextUser + 1 == users ? 0 : nextUser + 1;
+
+        if (probe == 0) {
+            return (int) EXACT_RECOMMEND.invokeExact (recommender, user, ratings, P, Q, recommended);
+        }
+        return (int) APPROXIMATE_RECOMMEND.invokeExact (recommender, user, ratings, P, recommended);
+
+    }
+
+    public static void main (String[] args) throws RunnerException {
+
+        Options options = new OptionsBuilder ()
+                .include (RecommendationBenchmark.class.getSimpleName ())
+                .build ();
+
+        new Runner (options).run ();
+
+    }
+
+}
@@ -0,0 +1,217 @@
+package me.bokov.benchmarks.homework2;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures one sequential epoch of the homework-2 gradient descent with the ratings visited in each
+ * of the homework's sample orders. The default sizes make the factor matrices (24 MB) far larger
+ * than the L2 cache, which is where the ordering matters for the epoch time. With
+ * {@code SHUFFLE} the in-place shuffle before the epoch is part of the measured time.
+ *
+ * The ratings are generated from a planted low rank model, so that the error after each epoch is
+ * meaningful: the root mean square error of the first {@link #reportedEpochs} epochs is printed
+ * once per trial, before the measurements. Duplicate ratings are not removed, there are few of them.
+ *
+ * The homework's {@code Main} lives in the default package, which can not be imported, so it is
+ * reached through method handles.
+ */
+@State (Scope.Thread)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.MILLISECONDS)
+@Warmup (iterations = 3, time = 2)
+@Measurement (iterations = 5, time = 2)
+@Fork (1)
+public class SampleOrderBenchmark {
+
+    private static final MethodHandle NEW_RATING_STORE;
+    private static final MethodHandle ADD_RATING;
+    private static final MethodHandle SAMPLE_ORDER_VALUE_OF;
+    private static final MethodHandle ORDERED;
+    private static final MethodHandle SHUFFLE;
+    private static final MethodHandle NEW_FACTOR_MATRIX;
+    private static final MethodHandle RANDOMIZE;
+    private static final MethodHandle TRAIN_EPOCH;
+    private static final MethodHandle RMSE;
+
+    static {
+        try {
+
+            MethodHandles.Lookup lookup = MethodHandles.lookup ();
+
+            Class<?> main = Class.forName ("Main");
+            Class<?> ratingStore = Class.forName ("RatingStore");
+            Class<?> factorMatrix = Class.forName ("FactorMatrix");
+            Class<?> sampleOrder = Class.forName ("SampleOrder");
+
+            Constructor<?> ratingStoreConstructor = ratingStore.getDeclaredConstructor (int.class, int.class, int.class);
+            ratingStoreConstructor.setAccessible (true);
+            NEW_RATING_STORE = lookup.unreflectConstructor (ratingStoreConstructor)
+                    .asType (MethodType.methodType (Object.class, int.class, int.class, int.class));
+
+            Method add = ratingStore.getDeclaredMethod ("add", int.class, int.class, float.class);
+            add.setAccessible (true);
+            ADD_RATING = lookup.unreflect (add)
+                    .asType (MethodType.methodType (void.class, Object.class, int.class, int.class, float.class));
+
+            Method valueOf = sampleOrder.getDeclaredMethod ("valueOf", String.class);
+            valueOf.setAccessible (true);
+            SAMPLE_ORDER_VALUE_OF = lookup.unreflect (valueOf)
+                    .asType (MethodType.methodType (Object.class, String.class));
+
+            Method ordered = ratingStore.getDeclaredMethod ("ordered", sampleOrder, int.class, Random.class);
+            ordered.setAccessible (true);
+            ORDERED = lookup.unreflect (ordered)
+                    .asType (MethodType.methodType (Object.class, Object.class, Object.class, int.class, Random.class));
+
+            Method shuffle = ratingStore.getDeclaredMethod ("shuffle", Random.class);
+            shuffle.setAccessible (true);
+            SHUFFLE = lookup.unreflect (shuffle)
+                    .asType (MethodType.methodType (void.class, Object.class, Random.class));
+
+            Constructor<?> factorMatrixConstructor = factorMatrix.getDeclaredConstructor (int.class, int.class);
+            factorMatrixConstructor.setAccessible (true);
+            NEW_FACTOR_MATRIX = lookup.unreflectConstructor (factorMatrixConstructor)
+                    .asType (MethodType.methodType (Object.class, int.class, int.class));
+
+            Method randomize = factorMatrix.getDeclaredMethod ("randomize", Random.class);
+            randomize.setAccessible (true);
+            RANDOMIZE = lookup.unreflect (randomize)
+                    .asType (MethodType.methodType (void.class, Object.class, Random.class));
+
+            Method trainEpoch = main.getDeclaredMethod (
+                    "trainEpoch", ratingStore, float.class, factorMatrix, factorMatrix
+            );
+            trainEpoch.setAccessible (true);
+            TRAIN_EPOCH = lookup.unreflect (trainEpoch)
+                    .asType (MethodType.methodType (float.class, Object.class, float.class, Object.class, Object.class));
+
+            Method rmse = main.getDeclaredMethod ("rmse", ratingStore, factorMatrix, factorMatrix);
+            rmse.setAccessible (true);
+            RMSE = lookup.unreflect (rmse)
+                    .asType (MethodType.methodType (double.class, Object.class, Object.class, Object.class));
+
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError (e);
+        }
+    }
+
+    @Param ({"200000"})
+    public int users;
+
+    @Param ({"100000"})
+    public int books;
+
+    @Param ({"2000000"})
+    public int ratings;
+
+    @Param ({"20"})
+    public int features;
+
+    @Param ({"INPUT", "SHUFFLE", "USER_MAJOR", "BOOK_MAJOR", "TILED"})
+    public String order;
+
+    /**
+     * The rank of the planted model the scores are generated from.
+     */
+    @Param ({"4"})
+    public int rank;
+
+    @Param ({"5"})
+    public int reportedEpochs;
+
+    @Param ({"42"})
+    public long seed;
+
+    private Object generatedRatings;
+    private Object orderedRatings;
+    private Random shuffleRandom;
+    private Object P;
+    private Object Q;
+
+    @Setup (Level.Trial)
+    public void generate () throws Throwable {
+
+        Random random = new Random (seed);
+
+        float[] userFactors = new float[users * rank];
+        float[] bookFactors = new float[books * rank];
+        for (int i = 0; i < userFactors.length; i++) {
+            userFactors[i] = random.nextFloat ();
+        }
+        for (int i = 0; i < bookFactors.length; i++) {
+            bookFactors[i] = random.nextFloat ();
+        }
+
+        generatedRatings = NEW_RATING_STORE.invokeExact (users, books, ratings);
+        for (int i = 0; i < ratings; i++) {
+            final int userId = random.nextInt (users);
+            final int bookId = random.nextInt (books);
+            float dot = 0.0f;
+            for (int f = 0; f < rank; f++) {
+                dot += userFactors[userId * rank + f] * bookFactors[bookId * rank + f];
+            }
+            // The dot product is in [0, rank), its expected value is rank / 4
+            final int level = Math.max (1, Math.min (5, 1 + (int) (10.0f * dot / rank)));
+            ADD_RATING.invokeExact (generatedRatings, userId, bookId, level / 5.0f);
+        }
+
+        shuffleRandom = new Random (seed);
+        orderedRatings = ORDERED.invokeExact (
+                generatedRatings, SAMPLE_ORDER_VALUE_OF.invokeExact (order), features, shuffleRandom
+        );
+
+        initialiseModel ();
+        StringBuilder report = new StringBuilder ("\nRMSE per epoch with " + order + ":");
+        for (int epoch = 0; epoch < reportedEpochs; epoch++) {
+            trainEpoch ();
+            report.append (String.format (" %.5f", (double) RMSE.invokeExact (generatedRatings, P, Q)));
+        }
+        System.out.println (report);
+
+    }
+
+    @Setup (Level.Iteration)
+    public void initialiseModel () throws Throwable {
+
+        Random random = new Random (seed);
+
+        P = NEW_FACTOR_MATRIX.invokeExact (users, features);
+        Q = NEW_FACTOR_MATRIX.invokeExact (books, features);
+        RANDOMIZE.invokeExact (P, random);
+        RANDOMIZE.invokeExact (Q, random);
+
+    }
+
+    @Benchmark
+    public float trainEpoch () throws Throwable {
+        if ("SHUFFLE".equals (order)) {
+            SHUFFLE.invokeExact (orderedRatings, shuffleRandom);
+        }
+        return (float) TRAIN_EPOCH.invokeExact (orderedRatings, 0.05f, P, Q);
+    }
+
+    public static void main (String[] args) throws RunnerException {
+
+        Options options = new OptionsBuilder ()
+                .include (SampleOrderBenchmark.class.getSimpleName ())
+                .addProfiler (GCProfiler.class)
+                .build ();
+
+        new Runner (options).run ();
+
+    }
+
+}
@@ -0,0 +1,251 @@
+package me.bokov.benchmarks.homework2;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures one epoch of the homework-2 stochastic gradient descent over generated ratings. The
+ * ratings are generated the same way as the homework's test input, with a fixed seed. The factor
+ * matrices are re-initialised before every iteration, so the measured epochs always start from
+ * the same (untrained) model.
+ *
+ * With {@link #trainer} set to {@code HOGWILD} or {@code DSGD} the epoch is trained by the
+ * homework's parallel trainer on {@link #parallelism} threads, the pool is started once per
+ * iteration. With {@code ALS} one benchmark operation is a sweep of the homework's alternating least
+ * squares trainer instead, which solves every row of both factor matrices once.
+ *
+ * The homework's {@code Main} lives in the default package, which can not be imported, so it is
+ * reached through method handles.
+ */
+@State (Scope.Thread)
+@BenchmarkMode ({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit (TimeUnit.MILLISECONDS)
+@Warmup (iterations = 3, time = 2)
+@Measurement (iterations = 5, time = 2)
+@Fork (1)
+public class SgdEpochBenchmark {
+
+    private static final MethodHandle NEW_RATING_STORE;
+    private static final MethodHandle ADD_RATING;
+    private static final MethodHandle BUILD_INDEX;
+    private static final MethodHandle NEW_FACTOR_MATRIX;
+    private static final MethodHandle RANDOMIZE;
+    private static final MethodHandle TRAIN_EPOCH;
+    private static final MethodHandle TRAINING_MODE_VALUE_OF;
+    private static final MethodHandle NEW_PARALLEL_TRAINER;
+    private static final MethodHandle PARALLEL_TRAIN_EPOCH;
+    private static final MethodHandle CLOSE_PARALLEL_TRAINER;
+    private static final MethodHandle NEW_ALS_TRAINER;
+    private static final MethodHandle SWEEP;
+    private static final MethodHandle CLOSE_ALS_TRAINER;
+
+    static {
+        try {
+
+            MethodHandles.Lookup lookup = MethodHandles.lookup ();
+
+            Class<?> main = Class.forName ("Main");
+            Class<?> ratingStore = Class.forName ("RatingStore");
+
+            Constructor<?> ratingStoreConstructor = ratingStore.getDeclaredConstructor (int.class, int.class, int.class);
+            ratingStoreConstructor.setAccessible (true);
+            NEW_RATING_STORE = lookup.unreflectConstructor (ratingStoreConstructor)
+                    .asType (MethodType.methodType (Object.class, int.class, int.class, int.class));
+
+            Method add = ratingStore.getDeclaredMethod ("add", int.class, int.class, float.class);
+            add.setAccessible (true);
+            ADD_RATING = lookup.unreflect (add)
+                    .asType (MethodType.methodType (void.class, Object.class, int.class, int.class, float.class));
+
+            Method buildIndex = ratingStore.getDeclaredMethod ("buildIndex");
+            buildIndex.setAccessible (true);
+            BUILD_INDEX = lookup.unreflect (buildIndex)
+                    .asType (MethodType.methodType (void.class, Object.class));
+
+            Class<?> factorMatrix = Class.forName ("FactorMatrix");
+
+            Constructor<?> factorMatrixConstructor = factorMatrix.getDeclaredConstructor (int.class, int.class);
+            factorMatrixConstructor.setAccessible (true);
+            NEW_FACTOR_MATRIX = lookup.unreflectConstructor (factorMatrixConstructor)
+                    .asType (MethodType.methodType (Object.class, int.class, int.class));
+
+            Method randomize = factorMatrix.getDeclaredMethod ("randomize", Random.class);
+            randomize.setAccessible (true);
+            RANDOMIZE = lookup.unreflect (randomize)
+                    .asType (MethodType.methodType (void.class, Object.class, Random.class));
+
+            Method trainEpoch = main.getDeclaredMethod (
+                    "trainEpoch", ratingStore, float.class, factorMatrix, factorMatrix
+            );
+            trainEpoch.setAccessible (true);
+            TRAIN_EPOCH = lookup.unreflect (trainEpoch)
+                    .asType (MethodType.methodType (float.class, Object.class, float.class, Object.class, Object.class));
+
+            Class<?> trainingMode = Class.forName ("TrainingMode");
+            Class<?> parallelTrainer = Class.forName ("ParallelTrainer");
+
+            Method valueOf = trainingMode.getDeclaredMethod ("valueOf", String.class);
+            valueOf.setAccessible (true);
+            TRAINING_MODE_VALUE_OF = lookup.unreflect (valueOf)
+                    .asType (MethodType.methodType (Object.class, String.class));
+
+            Constructor<?> parallelTrainerConstructor = parallelTrainer.getDeclaredConstructor (
+                    ratingStore, factorMatrix, factorMatrix, trainingMode, int.class
+            );
+            parallelTrainerConstructor.setAccessible (true);
+            NEW_PARALLEL_TRAINER = lookup.unreflectConstructor (parallelTrainerConstructor)
+                    .asType (MethodType.methodType (Object.class, Object.class, Object.class, Object.class, Object.class, int.class));
+
+            Method parallelTrainEpoch = parallelTrainer.getDeclaredMethod ("trainEpoch", float.class);
+            parallelTrainEpoch.setAccessible (true);
+            PARALLEL_TRAIN_EPOCH = lookup.unreflect (parallelTrainEpoch)
+                    .asType (MethodType.methodType (float.class, Object.class, float.class));
+
+            Method close = parallelTrainer.getDeclaredMethod ("close");
+            close.setAccessible (true);
+            CLOSE_PARALLEL_TRAINER = lookup.unreflect (close)
+                    .asType (MethodType.methodType (void.class, Object.class));
+
+            Class<?> alsTrainer = Class.forName ("AlsTrainer");
+
+            Constructor<?> alsTrainerConstructor = alsTrainer.getDeclaredConstructor (
+                    ratingStore, factorMatrix, factorMatrix, int.class
+            );
+            alsTrainerConstructor.setAccessible (true);
+            NEW_ALS_TRAINER = lookup.unreflectConstructor (alsTrainerConstructor)
+                    .asType (MethodType.methodType (Object.class, Object.class, Object.class, Object.class, int.class));
+
+            Method sweep = alsTrainer.getDeclaredMethod ("sweep", float.class);
+            sweep.setAccessible (true);
+            SWEEP = lookup.unreflect (sweep)
+                    .asType (MethodType.methodType (float.class, Object.class, float.class));
+
+            Method closeAls = alsTrainer.getDeclaredMethod ("close");
+            closeAls.setAccessible (true);
+            CLOSE_ALS_TRAINER = lookup.unreflect (closeAls)
+                    .asType (MethodType.methodType (void.class, Object.class));
+
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError (e);
+        }
+    }
+
+    @Param ({"500"})
+    public int users;
+
+    @Param ({"200"})
+    public int books;
+
+    @Param ({"10000", "60000"})
+    public int ratings;
+
+    @Param ({"20"})
+    public int features;
+
+    @Param ({"42"})
+    public long seed;
+
+    @Param ({"SEQUENTIAL", "HOGWILD", "DSGD", "ALS"})
+    public String trainer;
+
+    @Param ({"4"})
+    public int parallelism;
+
+    private Object generatedRatings;
+    private Object P;
+    private Object Q;
+    private Object parallelTrainer;
+    private Object alsTrainer;
+
+    @Setup (Level.Trial)
+    public void generate () throws Throwable {
+
+        Random random = new Random (seed);
+        Set<Long> alreadyRated = new HashSet<> ();
+
+        generatedRatings = NEW_RATING_STORE.invokeExact (users, books, ratings);
+
+        while (alreadyRated.size () < ratings) {
+
+            final int userId = random.nextInt (users);
+            final int bookId = random.nextInt (books);
+
+            if (alreadyRated.add ((long) userId * books + bookId)) {
+                final float score = (random.nextInt (5) + 1) / 5.0f;
+                ADD_RATING.invokeExact (generatedRatings, userId, bookId, score);
+            }
+
+        }
+        BUILD_INDEX.invokeExact (generatedRatings);
+
+    }
+
+    @Setup (Level.Iteration)
+    public void initialiseModel () throws Throwable {
+
+        Random random = new Random (seed);
+
+        P = NEW_FACTOR_MATRIX.invokeExact (users, features);
+        Q = NEW_FACTOR_MATRIX.invokeExact (books, features);
+        RANDOMIZE.invokeExact (P, random);
+        RANDOMIZE.invokeExact (Q, random);
+
+        if ("ALS".equals (trainer)) {
+            alsTrainer = NEW_ALS_TRAINER.invokeExact (generatedRatings, P, Q, parallelism);
+        } else if (!"SEQUENTIAL".equals (trainer)) {
+            parallelTrainer = NEW_PARALLEL_TRAINER.invokeExact (
+                    generatedRatings, P, Q, TRAINING_MODE_VALUE_OF.invokeExact (trainer), parallelism
+            );
+        }
+
+    }
+
+    @TearDown (Level.Iteration)
+    public void closeTrainer () throws Throwable {
+        if (parallelTrainer != null) {
+            CLOSE_PARALLEL_TRAINER.invokeExact (parallelTrainer);
+            parallelTrainer = null;
+        }
+        if (alsTrainer != null) {
+            CLOSE_ALS_TRAINER.invokeExact (alsTrainer);
+            alsTrainer = null;
+        }
+    }
+
+    @Benchmark
+    public float trainEpoch () throws Throwable {
+        if (alsTrainer != null) {
+            return (float) SWEEP.invokeExact (alsTrainer, 0.05f);
+        }
+        if (parallelTrainer != null) {
+            return (float) PARALLEL_TRAIN_EPOCH.invokeExact (parallelTrainer, 0.1f);
+        }
+        return (float) TRAIN_EPOCH.invokeExact (generatedRatings, 0.1f, P, Q);
+    }
+
+    public static void main (String[] args) throws RunnerException {
+
+        Options options = new OptionsBuilder ()
+                .include (SgdEpochBenchmark.class.getSimpleName ())
+                .addProfiler (GCProfiler.class)
+                .build ();
+
+        new Runner (options).run ();
+
+    }
+
+}
@@ -0,0 +1,193 @@
+package me.bokov.benchmarks.homework3;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the homework-3 network: a single forward pass, and a whole training run. The number of
+ * samples, features and neurons are compile time constants of the homework, so only the generated
+ * data can be varied, through {@link #seed}. The features are uniform random numbers, the values
+ * are a noisy linear function of them.
+ *
+ * The homework's {@code Main} lives in the default package, which can not be imported, so it is
+ * reached through method handles.
+ */
+@State (Scope.Thread)
+@BenchmarkMode ({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit (TimeUnit.MILLISECONDS)
+@Warmup (iterations = 3, time = 2)
+@Measurement (iterations = 5, time = 2)
+@Fork (1)
+public class NetworkBenchmark {
+
+    private static final int NUM_TRAINING_SAMPLES;
+    private static final int NUM_EVALUATION_SAMPLES;
+    private static final int NUM_FEATURES;
+
+    private static final MethodHandle NEW_MAIN;
+    private static final MethodHandle READ_AND_PROCESS_INPUT;
+    private static final MethodHandle CREATE_MODEL;
+    private static final MethodHandle FEED_FORWARD;
+    private static final MethodHandle NETWORK_OUTPUT;
+    private static final MethodHandle TRAIN_MODEL;
+
+    static {
+        try {
+
+            MethodHandles.Lookup lookup = MethodHandles.lookup ();
+
+            Class<?> main = Class.forName ("Main");
+
+            NUM_TRAINING_SAMPLES = constant (main, "NUM_TRAINING_SAMPLES");
+            NUM_EVALUATION_SAMPLES = constant (main, "NUM_EVALUATION_SAMPLES");
+            NUM_FEATURES = constant (main, "NUM_FEATURES");
+
+            NEW_MAIN = lookup.findConstructor (main, MethodType.methodType (void.class, InputStream.class, PrintStream.class))
+                    .asType (MethodType.methodType (Object.class, InputStream.class, PrintStream.class));
+            READ_AND_PROCESS_INPUT = privateMethod (lookup, main, "readAndProcessInput")
+                    .asType (MethodType.methodType (void.class, Object.class));
+            CREATE_MODEL = privateMethod (lookup, main, "createModel")
+                    .asType (MethodType.methodType (void.class, Object.class));
+            FEED_FORWARD = privateMethod (lookup, main, "feedForward", double[].class)
+                    .asType (MethodType.methodType (void.class, Object.class, double[].class));
+            NETWORK_OUTPUT = privateMethod (lookup, main, "networkOutput")
+                    .asType (MethodType.methodType (double.class, Object.class));
+            TRAIN_MODEL = privateMethod (lookup, main, "trainModel")
+                    .asType (MethodType.methodType (void.class, Object.class));
+
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError (e);
+        }
+    }
+
+    private static int constant (Class<?> main, String name) throws ReflectiveOperationException {
+        Field field = main.getDeclaredField (name);
+        field.setAccessible (true);
+        return field.getInt (null);
+    }
+
+    private static MethodHandle privateMethod (
+            MethodHandles.Lookup lookup, Class<?> main, String name, Class<?>... parameterTypes
+    ) throws ReflectiveOperationException {
+        Method method = main.getDeclaredMethod (name, parameterTypes);
+        method.setAccessible (true);
+        return lookup.unreflect (method);
+    }
+
+    @Param ({"42"})
+    public long seed;
+
+    private Object main;
+    private double[][] samples;
+    private int nextSample;
+
+    @Setup (Level.Trial)
+    public void generate () throws Throwable {
+
+        Random random = new Random (seed);
+
+        double[] coefficients = new double[NUM_FEATURES];
+        for (int j = 0; j < NUM_FEATURES; j++) {
+            coefficients[j] = random.nextDouble () * 2.0 - 1.0;
+        }
+
+        samples = new double[NUM_TRAINING_SAMPLES][NUM_FEATURES];
+        StringBuilder sb = new StringBuilder ();
+
+        for (int i = 0; i < NUM_TRAINING_SAMPLES; i++) {
+            for (int j = 0; j < NUM_FEATURES; j++) {
+                samples[i][j] = random.nextDouble ();
+                sb.append (samples[i][j]).append (j == NUM_FEATURES - 1 ? "\n" : "\t");
+            }
+        }
+        for (int i = 0; i < NUM_TRAINING_SAMPLES; i++) {
+            double value = random.nextGaussian () * 0.1;
+            for (int j = 0; j < NUM_FEATURES; j++) {
+                value += coefficients[j] * samples[i][j];
+            }
+            sb.append (value).append ("\n");
+        }
+        for (int i = 0; i < NUM_EVALUATION_SAMPLES; i++) {
+            for (int j = 0; j < NUM_FEATURES; j++) {
+                sb.append (random.nextDouble ()).append (j == NUM_FEATURES - 1 ? "\n" : "\t");
+            }
+        }
+
+        PrintStream output = new PrintStream (new OutputStream () {
+            @Override
+            public void write (int b) {
+            }
+        });
+
+        main = NEW_MAIN.invokeExact (
+                (InputStream) new ByteArrayInputStream (sb.toString ().getBytes (StandardCharsets.UTF_8)),
+                output
+        );
+        READ_AND_PROCESS_INPUT.invokeExact (main);
+        CREATE_MODEL.invokeExact (main);
+
+    }
+
+    @Benchmark
+    public double feedForward () throws Throwable {
+
+        double[] sample = samples[nextSample];
+        nextSample = nextSample + 1 == samples.length ? 0 : nextSample + 1;
+
+        FEED_FORWARD.invokeExact (main, sample);
+        return (double) NETWORK_OUTPUT.invokeExact (main);
+
+    }
+
+    /**
+     * A full training run of the homework takes seconds, so it is only measured as average time
+     * with fewer iterations. The model is recreated before every run, see {@link FreshModel}.
+     */
+    @Benchmark
+    @BenchmarkMode (Mode.AverageTime)
+    @OutputTimeUnit (TimeUnit.SECONDS)
+    @Warmup (iterations = 1, time = 1)
+    @Measurement (iterations = 3, time = 1)
+    public void trainModel (FreshModel model) throws Throwable {
+        TRAIN_MODEL.invokeExact (main);
+    }
+
+    @State (Scope.Thread)
+    public static class FreshModel {
+
+        @Setup (Level.Invocation)
+        public void resetModel (NetworkBenchmark benchmark) throws Throwable {
+            CREATE_MODEL.invokeExact (benchmark.main);
+        }
+
+    }
+
+    public static void main (String[] args) throws RunnerException {
+
+        Options options = new OptionsBuilder ()
+                .include (NetworkBenchmark.class.getSimpleName ())
+                .addProfiler (GCProfiler.class)
+                .build ();
+
+        new Runner (options).run ();
+
+    }
+
+}
@@ -1,16 +1,108 @@
-import java.io.InputStream;
-import java.io.PrintStream;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 public class Main {
 
+    /**
+     * The search engine used to find a packing. {@link #LIST} is the original implementation,
+     * that keeps the free cells in a list and checks every candidate against every placed car,
+     * {@link #BITBOARD} keeps the occupancy of the parking lot in packed row bitmasks and backtracks
+     * in place. Both find the same packing. {@link #DLX} solves the problem as an exact cover with
+     * Dancing Links, it may find a different packing.
+     */
+    public enum Engine {
+        LIST,
+        BITBOARD,
+        DLX
+    }
+
+    /**
+     * The anchors the bitboard engine tries for the next car. {@link #EXHAUSTIVE} tries every cell,
+     * {@link #CORNER_POINTS} only the cells that can be the top left corner of a car in a packing
+     * that is pushed up and to the left as far as it goes, see {@link CornerPoints}.
+     */
+    public enum CandidateStrategy {
+        EXHAUSTIVE,
+        CORNER_POINTS
+    }
+
+    /**
+     * Cheap necessary conditions the bitboard engine checks before expanding a node, see
+     * {@link FeasibilityBounds}.
+     */
+    public enum Bound {
+        AREA,
+        FIT,
+        DEAD_CELLS
+    }
+
+    /**
+     * Symmetries the bitboard engine breaks. {@link #IDENTICAL_CARS} places cars of the same shape
+     * (up to rotation) in increasing order of their positions, instead of trying every permutation
+     * of them. {@link #IDENTICAL_CARS_AND_MIRRORS} also keeps one car, whose shape is unique, in the
+     * top left half (or quarter, or eighth of a square lot) of the lot, since the mirror image of a
+     * packing is a packing too. Breaking symmetries can change which packing is found.
+     */
+    public enum SymmetryBreaking {
+        NONE,
+        IDENTICAL_CARS,
+        IDENTICAL_CARS_AND_MIRRORS
+    }
+
+    /**
+     * How the anytime search ranks partial packings: by the number of cells the parked cars take up,
+     * or by the number of parked cars.
+     */
+    public enum PartialObjective {
+        AREA,
+        CARS
+    }
+
+    /**
+     * Receives the progress of an anytime search, on the searching thread, see {@link Progress}.
+     */
+    public interface ProgressListener {
+
+        /**
+         * Returns {@code false} to stop the search, which then returns the best packing found so far.
+         */
+        boolean onProgress (Progress progress);
+
+    }
+
     private final InputStream input;
     private final PrintStream output;
     private int width, height;
     private int numCars;
     private List<Car> cars = new ArrayList<> ();
+    private Engine engine = Engine.BITBOARD;
+    private int transpositionTableSize = 1 << 18;
+    private TranspositionTable transpositionTable;
+    private SearchState searchState;
+    private int parallelism = 1;
+    private int splitDepth = 2;
+    private boolean deterministic = true;
+    private CandidateStrategy candidateStrategy = CandidateStrategy.EXHAUSTIVE;
+    private Set<Bound> bounds = EnumSet.allOf (Bound.class);
+    private SymmetryBreaking symmetryBreaking = SymmetryBreaking.NONE;
+    private PartialObjective partialObjective;
+    private long timeBudgetMillis;
+    private long nodeBudget;
+    private ProgressListener progressListener;
+    private long progressIntervalMillis = 1000L;
+    private SearchStatistics statistics;
+    private boolean metricsEnabled;
+    private SearchMetrics metrics;
 
     private String stateToString (State state) {
         StringBuilder sb = new StringBuilder ();
@@ -50,6 +142,180 @@ public class Main {
         this.output = output;
     }
 
+    public Engine getEngine () {
+        return engine;
+    }
+
+    public void setEngine (Engine engine) {
+        this.engine = engine;
+    }
+
+    public int getTranspositionTableSize () {
+        return transpositionTableSize;
+    }
+
+    /**
+     * Sets the number of dead-end states the bitboard engine remembers, {@code 0} turns the
+     * transposition table off.
+     */
+    public void setTranspositionTableSize (int transpositionTableSize) {
+        this.transpositionTableSize = transpositionTableSize;
+    }
+
+    /**
+     * Returns the transposition table of the last sequential bitboard search, or {@code null} if it
+     * was turned off.
+     */
+    public TranspositionTable getTranspositionTable () {
+        return transpositionTable;
+    }
+
+    public int getParallelism () {
+        return parallelism;
+    }
+
+    /**
+     * Sets the number of threads the bitboard engine searches with, {@code 1} searches on the
+     * calling thread.
+     */
+    public void setParallelism (int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    public int getSplitDepth () {
+        return splitDepth;
+    }
+
+    /**
+     * Sets the number of levels of the search tree that are split into tasks in a parallel search.
+     */
+    public void setSplitDepth (int splitDepth) {
+        this.splitDepth = splitDepth;
+    }
+
+    public CandidateStrategy getCandidateStrategy () {
+        return candidateStrategy;
+    }
+
+    public void setCandidateStrategy (CandidateStrategy candidateStrategy) {
+        this.candidateStrategy = candidateStrategy;
+    }
+
+    public Set<Bound> getBounds () {
+        return bounds;
+    }
+
+    /**
+     * Sets the bounds the bitboard engine prunes with. The bounds only cut subtrees without a packing,
+     * so they do not change the packing that is found.
+     */
+    public void setBounds (Set<Bound> bounds) {
+        this.bounds = EnumSet.noneOf (Bound.class);
+        this.bounds.addAll (bounds);
+    }
+
+    public SymmetryBreaking getSymmetryBreaking () {
+        return symmetryBreaking;
+    }
+
+    public void setSymmetryBreaking (SymmetryBreaking symmetryBreaking) {
+        this.symmetryBreaking = symmetryBreaking;
+    }
+
+    /**
+     * Returns the statistics of the last bitboard search, summed over the threads of a parallel search.
+     */
+    public SearchStatistics getStatistics () {
+        return statistics;
+    }
+
+    public PartialObjective getPartialObjective () {
+        return partialObjective;
+    }
+
+    /**
+     * Turns the anytime mode of the bitboard engine on, {@code null} turns it off. In the anytime mode
+     * the search keeps the best partial packing it has seen, ranked by the given objective, and if
+     * there is no full packing, or the budget runs out before one is found, the best partial packing
+     * is printed instead. The anytime search runs on the calling thread.
+     */
+    public void setPartialObjective (PartialObjective partialObjective) {
+        this.partialObjective = partialObjective;
+    }
+
+    public long getTimeBudgetMillis () {
+        return timeBudgetMillis;
+    }
+
+    /**
+     * Sets the time the anytime search may take, {@code 0} means no limit.
+     */
+    public void setTimeBudgetMillis (long timeBudgetMillis) {
+        this.timeBudgetMillis = timeBudgetMillis;
+    }
+
+    public long getNodeBudget () {
+        return nodeBudget;
+    }
+
+    /**
+     * Sets the number of nodes the anytime search may visit, {@code 0} means no limit.
+     */
+    public void setNodeBudget (long nodeBudget) {
+        this.nodeBudget = nodeBudget;
+    }
+
+    public ProgressListener getProgressListener () {
+        return progressListener;
+    }
+
+    /**
+     * Sets the listener the anytime search reports its progress to, about every
+     * {@link #setProgressIntervalMillis(long) progress interval}, and once more at the end.
+     */
+    public void setProgressListener (ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    public long getProgressIntervalMillis () {
+        return progressIntervalMillis;
+    }
+
+    public void setProgressIntervalMillis (long progressIntervalMillis) {
+        this.progressIntervalMillis = progressIntervalMillis;
+    }
+
+    public boolean isMetricsEnabled () {
+        return metricsEnabled;
+    }
+
+    /**
+     * Turns the per-depth metrics of the search on, see {@link SearchMetrics}. They are off by default,
+     * since reading the clock around every placement slows the search down.
+     */
+    public void setMetricsEnabled (boolean metricsEnabled) {
+        this.metricsEnabled = metricsEnabled;
+    }
+
+    /**
+     * Returns the metrics of the last search, or {@code null} if they were turned off.
+     */
+    public SearchMetrics getMetrics () {
+        return metrics;
+    }
+
+    public boolean isDeterministic () {
+        return deterministic;
+    }
+
+    /**
+     * If set, a parallel search returns the same packing as the sequential search. Otherwise it
+     * returns the first packing any of the threads finds, and stops the rest right away.
+     */
+    public void setDeterministic (boolean deterministic) {
+        this.deterministic = deterministic;
+    }
+
     private void readInput () {
 
         Scanner scanner = new Scanner (this.input);
@@ -72,6 +338,7 @@ public class Main {
         List<Decision> decisions = new ArrayList<> ();
 
         Car car = state.remainingCars.get (0);
+        final int depth = state.placedCars.size ();
 
         for (Point point : state.availablePoints) {
             if (width - point.x >= car.width
@@ -79,6 +346,8 @@ public class Main {
                 decisions.add (
                         new Decision (car, false, point)
                 );
+            } else if (metrics != null) {
+                metrics.outOfLotRejections[depth]++;
             }
             if (car.width != car.height) {
                 if (width - point.x >= car.height
@@ -86,6 +355,8 @@ public class Main {
                     decisions.add (
                             new Decision (car, true, point)
                     );
+                } else if (metrics != null) {
+                    metrics.outOfLotRejections[depth]++;
                 }
             }
         }
@@ -111,6 +382,9 @@ public class Main {
                         y1 < y2 + h2 &&
                         y1 + h1 > y2) {
                     iterator.remove ();
+                    if (metrics != null) {
+                        metrics.overlapRejections[depth]++;
+                    }
                     break;
                 }
 
@@ -157,10 +431,20 @@ public class Main {
 
     private Result findSolution (int level, State state) {
 
+        final long decisionsStart = metrics != null ? System.nanoTime () : 0L;
         List<Decision> decisions = validDecisions (state);
+        if (metrics != null) {
+            metrics.candidateNanos += System.nanoTime () - decisionsStart;
+            metrics.nodes[level - 1]++;
+        }
         for (Decision decision : decisions) {
 
+            final long transitionStart = metrics != null ? System.nanoTime () : 0L;
             State stateAfterDecision = stateAfterDecision (state, decision);
+            if (metrics != null) {
+                metrics.transitionNanos += System.nanoTime () - transitionStart;
+                metrics.placements[level - 1]++;
+            }
             Result result = new Result (stateAfterDecision, stateAfterDecision.remainingCars.isEmpty ());
             if (result.finished) {
                 return result;
@@ -179,15 +463,491 @@ public class Main {
         // First, read the input
         readInput ();
 
+        if (!solveInput ()) {
+            System.err.println ("NO RESULT FOUND!");
+        }
+
+    }
+
+    /**
+     * Solves the instance that was read, and prints the packing if there is one.
+     */
+    private boolean solveInput () {
+
+        cars.sort (
+                (c1, c2) -> -1 * Integer.compare (c1.width * c1.height, c2.width * c2.height)
+        );
+        if (engine == Engine.BITBOARD && symmetryBreaking != SymmetryBreaking.NONE) {
+            // Cars of the same shape have to be next to each other to be placed in order
+            cars.sort (
+                    Comparator.comparingInt ((Car c) -> -1 * c.width * c.height)
+                            .thenComparingInt (c -> -1 * Math.min (c.width, c.height))
+            );
+        }
+
+        metrics = metricsEnabled ? new SearchMetrics (engine, cars.size ()) : null;
+        final long start = System.nanoTime ();
+
+        Result result;
+        switch (engine) {
+            case BITBOARD: {
+                if (partialObjective != null) {
+                    result = solveAnytime ();
+                    break;
+                }
+                State solution = parallelism > 1 && cars.size () > splitDepth
+                        ? solveInParallel ()
+                        : solveSequentially ();
+                result = solution != null
+                        ? new Result (solution, true)
+                        : null;
+                break;
+            }
+            case DLX: {
+                State solution = solveWithDancingLinks ();
+                result = solution != null
+                        ? new Result (solution, true)
+                        : null;
+                break;
+            }
+            case LIST:
+            default:
+                result = solveWithList ();
+                break;
+        }
+
+        if (metrics != null) {
+            metrics.wallNanos = System.nanoTime () - start;
+        }
+
+        if (result != null && result.finished) {
+            output.println (stateToString (result.state));
+            return true;
+        }
+        if (result != null) {
+            output.println (stateToString (result.state));
+            System.err.println (
+                    "PARTIAL RESULT: " + result.state.placedCars.size () + " of " + cars.size () + " cars, "
+                            + parkedArea (result.state) + " of " + width * height + " cells"
+            );
+        }
+        return false;
+
+    }
+
+    private static int parkedArea (State state) {
+        int area = 0;
+        for (PlacedCar pc : state.placedCars) {
+            area += pc.width * pc.height;
+        }
+        return area;
+    }
+
+    /**
+     * Solves a stream of instances read from the input, separated by lines starting with
+     * {@code ---}. The instances are solved on {@code threads} worker threads, each with the settings
+     * of this object, and the results are printed in the order of the input, separated by
+     * {@code ---} lines. An instance without a packing has an empty result. The solving time of every
+     * instance is printed to the standard error.
+     * <p>
+     * At most two instances per worker are read ahead, and every worker keeps its transposition
+     * table, output buffer and search scratch from one instance to the next, see {@link BatchWorker},
+     * so a long stream runs in bounded memory.
+     */
+    public void solveAll (int threads) throws IOException {
+
+        BufferedReader reader = new BufferedReader (new InputStreamReader (input, StandardCharsets.UTF_8));
+        ExecutorService executor = Executors.newFixedThreadPool (threads);
+        ThreadLocal<BatchWorker> workers = ThreadLocal.withInitial (() -> new BatchWorker (this));
+        Deque<Future<BatchResult>> pending = new ArrayDeque<> ();
+
+        try {
+
+            int index = 0;
+            boolean first = true;
+            String instance;
+            while ((instance = readInstance (reader)) != null) {
+
+                final int instanceIndex = index++;
+                final byte[] instanceInput = instance.getBytes (StandardCharsets.UTF_8);
+                pending.add (executor.submit (() -> solveBatchInstance (instanceIndex, instanceInput, workers.get ())));
+
+                while (pending.size () > threads * 2) {
+                    printBatchResult (pending.poll (), first);
+                    first = false;
+                }
+
+            }
+            while (!pending.isEmpty ()) {
+                printBatchResult (pending.poll (), first);
+                first = false;
+            }
+
+        } finally {
+            executor.shutdownNow ();
+        }
+
+    }
+
+    /**
+     * Returns the lines up to the next {@code ---} line, or {@code null} at the end of the input.
+     */
+    private static String readInstance (BufferedReader reader) throws IOException {
+        StringBuilder sb = new StringBuilder ();
+        String line;
+        while ((line = reader.readLine ()) != null) {
+            if (line.trim ().startsWith ("---")) {
+                if (sb.toString ().trim ().isEmpty ()) {
+                    sb.setLength (0);
+                    continue;
+                }
+                return sb.toString ();
+            }
+            sb.append (line).append ('\n');
+        }
+        return sb.toString ().trim ().isEmpty () ? null : sb.toString ();
+    }
+
+    private static BatchResult solveBatchInstance (int index, byte[] instanceInput, BatchWorker worker) {
+
+        final long start = System.nanoTime ();
+
+        worker.readInput (instanceInput);
+        worker.output.reset ();
+        final boolean solved = worker.main.solveInput ();
+
+        return new BatchResult (
+                index,
+                solved,
+                new String (worker.output.toByteArray (), StandardCharsets.UTF_8),
+                (System.nanoTime () - start) / 1_000_000L,
+                worker.main.metrics
+        );
+
+    }
+
+    /**
+     * The state a worker thread of {@link #solveAll(int)} keeps from one instance to the next: a
+     * {@code Main} with the settings of the batch, which reuses its transposition table and the
+     * scratch of the sequential search, the buffer it prints to, and a parser that reads the instance
+     * in place instead of creating a {@link Scanner} for it.
+     * <p>
+     * What depends on the cars of an instance, like the cars themselves and the precomputed bounds,
+     * is still created for every instance.
+     */
+    private static final class BatchWorker {
+
+        private final ByteArrayOutputStream output = new ByteArrayOutputStream ();
+        private final Main main;
+        private byte[] input;
+        private int position;
+
+        private BatchWorker (Main settings) {
+            main = new Main (new ByteArrayInputStream (new byte[0]), new PrintStream (output));
+            main.engine = settings.engine;
+            main.transpositionTableSize = settings.transpositionTableSize;
+            main.parallelism = settings.parallelism;
+            main.splitDepth = settings.splitDepth;
+            main.deterministic = settings.deterministic;
+            main.candidateStrategy = settings.candidateStrategy;
+            main.bounds = settings.bounds;
+            main.symmetryBreaking = settings.symmetryBreaking;
+            main.partialObjective = settings.partialObjective;
+            main.timeBudgetMillis = settings.timeBudgetMillis;
+            main.nodeBudget = settings.nodeBudget;
+            main.progressListener = settings.progressListener;
+            main.progressIntervalMillis = settings.progressIntervalMillis;
+            main.metricsEnabled = settings.metricsEnabled;
+        }
+
+        /**
+         * Reads the instance like {@link Main#readInput()} does.
+         */
+        private void readInput (byte[] instanceInput) {
+
+            input = instanceInput;
+            position = 0;
+
+            main.height = nextInt ();
+            main.width = nextInt ();
+
+            main.numCars = nextInt ();
+
+            main.cars.clear ();
+            for (int i = 0; i < main.numCars; i++) {
+                main.cars.add (
+                        new Car (i, nextInt (), nextInt ())
+                );
+            }
+
+        }
+
+        /**
+         * Returns the next whitespace separated integer, failing with the same exceptions as
+         * {@link Scanner#nextInt()}.
+         */
+        private int nextInt () {
+
+            while (position < input.length && Character.isWhitespace (input[position])) {
+                position++;
+            }
+            if (position == input.length) {
+                throw new NoSuchElementException ();
+            }
+
+            final int tokenStart = position;
+            final boolean negative = input[position] == '-';
+            if (negative || input[position] == '+') {
+                position++;
+            }
+            long value = 0L;
+            boolean digits = false;
+            while (position < input.length && !Character.isWhitespace (input[position])) {
+                final int digit = input[position++] - '0';
+                if (digit < 0 || digit > 9 || value > Integer.MAX_VALUE + 1L) {
+                    position = tokenStart;
+                    throw new InputMismatchException ();
+                }
+                value = value * 10 + digit;
+                digits = true;
+            }
+            if (negative) {
+                value = -value;
+            }
+            if (!digits || value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+                position = tokenStart;
+                throw new InputMismatchException ();
+            }
+            return (int) value;
+
+        }
+
+    }
+
+    private void printBatchResult (Future<BatchResult> future, boolean first) throws IOException {
+
+        BatchResult result;
+        try {
+            result = future.get ();
+        } catch (InterruptedException exc) {
+            Thread.currentThread ().interrupt ();
+            throw new InterruptedIOException ();
+        } catch (ExecutionException exc) {
+            throw new IOException ("Solving an instance failed", exc.getCause ());
+        }
+
+        if (!first) {
+            output.println ("---");
+        }
+        output.print (result.output);
+        System.err.println (
+                "INSTANCE " + result.index + ": "
+                        + (result.solved ? "solved" : "NO RESULT FOUND!")
+                        + " in " + result.millis + " ms"
+        );
+        if (result.metrics != null) {
+            System.err.println ("INSTANCE " + result.index + " METRICS: " + result.metrics.toJson ());
+        }
+
+    }
+
+    private static final class BatchResult {
+
+        public final int index;
+        public final boolean solved;
+        public final String output;
+        public final long millis;
+        public final SearchMetrics metrics;
+
+        private BatchResult (int index, boolean solved, String output, long millis, SearchMetrics metrics) {
+            this.index = index;
+            this.solved = solved;
+            this.output = output;
+            this.millis = millis;
+            this.metrics = metrics;
+        }
+
+    }
+
+    private State solveSequentially () {
+
+        Search search = new Search (
+                reuseSearchState (),
+                reuseTranspositionTable ()
+        );
+        transpositionTable = search.transpositionTable;
+        statistics = search.statistics;
+
+        return search.findSolution ()
+                ? search.state.toState ()
+                : null;
+
+    }
+
+    /**
+     * Searches for a full packing first, keeping the deepest partial packing on the way. If the search
+     * proves that there is no full packing, the rest of the budget goes to a branch and bound search
+     * for the best partial packing, see {@link Search#findBestPacking()}. Returns a finished result
+     * with a full packing, an unfinished one with the best partial packing otherwise.
+     */
+    private Result solveAnytime () {
+
+        Search search = new Search (
+                reuseSearchState (),
+                reuseTranspositionTable ()
+        );
+        transpositionTable = search.transpositionTable;
+        statistics = search.statistics;
+
+        search.startAnytime ();
+        if (search.findSolution ()) {
+            return new Result (search.state.toState (), true);
+        }
+        if (!search.isCancelled ()) {
+            search.findBestPacking ();
+        }
+        search.reportProgress ();
+
+        return new Result (search.best, false);
+
+    }
+
+    private SearchState newSearchState () {
+        return new SearchState (width, height, cars, symmetryBreaking != SymmetryBreaking.NONE, null);
+    }
+
+    /**
+     * Returns a new search state that takes over the occupancy grid and the bitsets of the previous
+     * sequential search, so solving one instance after the other does not allocate them again unless
+     * the lot grows.
+     */
+    private SearchState reuseSearchState () {
+        searchState = new SearchState (width, height, cars, symmetryBreaking != SymmetryBreaking.NONE, searchState);
+        return searchState;
+    }
+
+    /**
+     * Returns the transposition table of the previous search cleared, if it has the requested size,
+     * a new table otherwise.
+     */
+    private TranspositionTable reuseTranspositionTable () {
+        if (transpositionTableSize <= 0) {
+            return null;
+        }
+        if (transpositionTable != null && transpositionTable.capacity () == TranspositionTable.capacityFor (transpositionTableSize)) {
+            transpositionTable.clear ();
+            return transpositionTable;
+        }
+        return new TranspositionTable (transpositionTableSize);
+    }
+
+    private State solveInParallel () {
+
+        // Collect the nodes at the split depth, in the order the sequential search would visit them
+        Search splitter = new Search (newSearchState (), null);
+        splitter.frontier = new ArrayList<> ();
+        splitter.frontierDepth = splitDepth;
+        splitter.findSolution ();
+
+        transpositionTable = null;
+        statistics = new SearchStatistics ();
+        statistics.add (splitter.statistics);
+        return new ParallelSearch (splitter.frontier).run ();
+
+    }
+
+    /**
+     * Solves the problem as an exact cover: every car is a primary column that has to be covered
+     * exactly once, every cell is a secondary column that may be covered at most once, and every
+     * placement of a car (rotation and position) is a row covering the car and the cells it takes.
+     * If the cars take up the whole lot, every cell has to be covered, so the cells are primary
+     * columns too, and the column with the fewest options can also be a cell.
+     */
+    private State solveWithDancingLinks () {
+
+        final int numCells = width * height;
+        int capacity = 0, area = 0;
+        for (Car car : cars) {
+            capacity += placementCount (car) * (1 + car.width * car.height);
+            area += car.width * car.height;
+        }
+
+        transpositionTable = null;
+        statistics = new SearchStatistics ();
+        if (area > numCells) {
+            statistics.boundPrunes[Bound.AREA.ordinal ()]++;
+            return null;
+        }
+
+        final boolean fullLot = area == numCells;
+        DancingLinks links = fullLot
+                ? new DancingLinks (cars.size () + numCells, 0, capacity)
+                : new DancingLinks (cars.size (), numCells, capacity);
+        links.statistics = statistics;
+        links.metrics = metrics;
+        List<PlacedCar> rows = new ArrayList<> ();
+        int[] columns = new int[1 + numCells];
+
+        for (int c = 0; c < cars.size (); c++) {
+
+            final Car car = cars.get (c);
+            final boolean square = car.width == car.height;
+
+            for (int x = 0; x < width; x++) {
+                for (int y = 0; y < height; y++) {
+                    for (int r = 0; r < (square ? 1 : 2); r++) {
+
+                        final boolean rotated = r == 1;
+                        final int w = rotated ? car.height : car.width;
+                        final int h = rotated ? car.width : car.height;
+                        if (x + w > width || y + h > height) {
+                            continue;
+                        }
+
+                        int count = 0;
+                        columns[count++] = c;
+                        for (int cy = y; cy < y + h; cy++) {
+                            for (int cx = x; cx < x + w; cx++) {
+                                columns[count++] = cars.size () + cy * width + cx;
+                            }
+                        }
+                        links.addRow (rows.size (), columns, count);
+                        rows.add (new PlacedCar (car, rotated, new Point (x, y)));
+
+                    }
+                }
+            }
+
+        }
+
+        if (!links.search (0)) {
+            return null;
+        }
+
+        List<PlacedCar> placedCars = new ArrayList<> ();
+        for (int row : links.solution ()) {
+            placedCars.add (rows.get (row));
+        }
+        return new State (placedCars, Collections.emptyList (), Collections.emptyList ());
+
+    }
+
+    private int placementCount (Car car) {
+        int count = Math.max (0, width - car.width + 1) * Math.max (0, height - car.height + 1);
+        if (car.width != car.height) {
+            count += Math.max (0, width - car.height + 1) * Math.max (0, height - car.width + 1);
+        }
+        return count;
+    }
+
+    private Result solveWithList () {
+
         List<Point> initialAvailablePoints = new ArrayList<> ();
         for (int y = 0; y < height; y++) {
             for (int x = 0; x < width; x++) {
                 initialAvailablePoints.add (new Point (x, y));
             }
         }
-        cars.sort (
-                (c1, c2) -> -1 * Integer.compare (c1.width * c1.height, c2.width * c2.height)
-        );
 
         State initialState = new State (
                 Collections.emptyList (),
@@ -195,12 +955,7 @@ public class Main {
                 initialAvailablePoints
         );
 
-        Result result = findSolution (1, initialState);
-        if (result != null && result.finished) {
-            output.println (stateToString (result.state));
-        } else {
-            System.err.println ("NO RESULT FOUND!");
-        }
+        return findSolution (1, initialState);
 
     }
 
@@ -255,35 +1010,1941 @@ public class Main {
 
     }
 
-    private static final class PlacedCar {
+    /**
+     * The occupancy of the parking lot, stored as packed row bitmasks. Every row takes
+     * {@code wordsPerRow} consecutive words, cell {@code (x, y)} is bit {@code x % 64} of word
+     * {@code y * wordsPerRow + x / 64}, and a set bit means that the cell is taken. Only the first
+     * {@code length} words are used, the array may be longer when it is taken over from a larger lot.
+     */
+    private static final class OccupancyGrid {
 
-        public final Car car;
-        public final boolean rotated;
-        public final Point point;
         public final int width, height;
+        public final int wordsPerRow;
+        public final int length;
+        private final long[] words;
 
-        private PlacedCar (Car car, boolean rotated, Point point) {
-            this.car = car;
-            this.rotated = rotated;
-            this.point = new Point (point);
-            this.width = rotated ? car.height : car.width;
-            this.height = rotated ? car.width : car.height;
+        private OccupancyGrid (int width, int height, long[] previousWords) {
+            this.width = width;
+            this.height = height;
+            this.wordsPerRow = (width + 63) >>> 6;
+            this.length = height * wordsPerRow;
+            this.words = reuse (previousWords, length);
         }
 
-        @Override
-        public String toString () {
-            return car + " @ " + point + " "
-                    + (rotated ? "rotated" : "unrotated");
+        /**
+         * Returns {@code previous} with its first {@code length} words cleared, if it is long enough,
+         * a new array otherwise.
+         */
+        private static long[] reuse (long[] previous, int length) {
+            if (previous == null || previous.length < length) {
+                return new long[length];
+            }
+            Arrays.fill (previous, 0, length, 0L);
+            return previous;
         }
 
-    }
+        /**
+         * Returns the mask of bits {@code [from, to)} of a single word.
+         */
+        private static long rangeMask (int from, int to) {
+            return (-1L >>> (64 - (to - from))) << from;
+        }
 
-    private static final class Car {
+        /**
+         * Checks whether the {@code w} x {@code h} rectangle anchored at {@code (x, y)} is inside the
+         * parking lot, and none of its cells are taken.
+         */
+        public boolean isFree (int x, int y, int w, int h) {
 
-        public final int id;
-        public final int width, height;
+            if (x + w > width || y + h > height) {
+                return false;
+            }
 
-        private Car (int id, int width, int height) {
+            final int firstWord = x >>> 6;
+            final int lastWord = (x + w - 1) >>> 6;
+
+            if (firstWord == lastWord) {
+                final long mask = rangeMask (x & 63, (x & 63) + w);
+                for (int row = y, i = y * wordsPerRow + firstWord; row < y + h; row++, i += wordsPerRow) {
+                    if ((words[i] & mask) != 0L) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            for (int row = y; row < y + h; row++) {
+                final int base = row * wordsPerRow;
+                for (int word = firstWord; word <= lastWord; word++) {
+                    if ((words[base + word] & wordMask (word, x, w)) != 0L) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+
+        }
+
+        public void fill (int x, int y, int w, int h) {
+            for (int row = y; row < y + h; row++) {
+                final int base = row * wordsPerRow;
+                for (int word = x >>> 6; word <= (x + w - 1) >>> 6; word++) {
+                    words[base + word] |= wordMask (word, x, w);
+                }
+            }
+        }
+
+        public void clear (int x, int y, int w, int h) {
+            for (int row = y; row < y + h; row++) {
+                final int base = row * wordsPerRow;
+                for (int word = x >>> 6; word <= (x + w - 1) >>> 6; word++) {
+                    words[base + word] &= ~wordMask (word, x, w);
+                }
+            }
+        }
+
+        /**
+         * Returns the part of the cell range {@code [x, x + w)} that falls into the given word of a row.
+         */
+        private static long wordMask (int word, int x, int w) {
+            final int from = Math.max (x, word << 6) - (word << 6);
+            final int to = Math.min (x + w, (word + 1) << 6) - (word << 6);
+            return rangeMask (from, to);
+        }
+
+        public boolean isTaken (int x, int y) {
+            return (words[y * wordsPerRow + (x >>> 6)] & (1L << (x & 63))) != 0L;
+        }
+
+        @Override
+        public String toString () {
+            StringBuilder sb = new StringBuilder ();
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    sb.append (isTaken (x, y) ? '#' : '.');
+                }
+                sb.append ('\n');
+            }
+            return sb.toString ();
+        }
+
+    }
+
+    /**
+     * Depth-first search on a single mutable {@link SearchState}: every decision is applied with
+     * {@link SearchState#place(int, int, boolean)} and taken back with {@link SearchState#undo()},
+     * so no objects are created while searching. The candidates are visited in the same order as in
+     * {@link #findSolution(int, State)}, so the first packing found is the same.
+     * <p>
+     * Dead ends are recorded in the transposition table, so the same partial packing reached through
+     * a different order of placements (for example by swapping two cars of the same size) is not
+     * searched again.
+     * <p>
+     * Every thread of a parallel search has its own {@code Search}.
+     */
+    private final class Search {
+
+        private final SearchState state;
+        private final TranspositionTable transpositionTable;
+        private final SearchStatistics statistics = new SearchStatistics ();
+        // The metrics of Main, or of the worker in a parallel search, null if they are off
+        private SearchMetrics metrics = Main.this.metrics;
+        // Last reading of the clock while the metrics are collected, see place () and undo ()
+        private long clock;
+        private final long[] allColumns, allRows;
+        private final boolean areaBound, fitBound, deadCellsBound;
+        // Depth of the car that is kept in the top left part of the lot, -1 if there is none
+        private final int mirrorDepth;
+
+        // Set while the top of the tree is split into tasks of a parallel search
+        private List<int[]> frontier;
+        private int frontierDepth;
+
+        // Set while a task of a parallel search is searched
+        private ParallelSearch parallelSearch;
+        private int taskIndex;
+
+        // Set in the anytime mode, see startAnytime ()
+        private PartialObjective objective;
+        private long startNanos, deadlineNanos, nextProgressNanos;
+        private long visitedNodes;
+        private boolean aborted;
+        private State best;
+        private long bestValue = -1L;
+
+        private Search (SearchState state, TranspositionTable transpositionTable) {
+            this.state = state;
+            this.transpositionTable = transpositionTable;
+            this.allColumns = CornerPoints.range (width);
+            this.allRows = CornerPoints.range (height);
+            this.areaBound = bounds.contains (Bound.AREA);
+            this.fitBound = bounds.contains (Bound.FIT);
+            this.deadCellsBound = bounds.contains (Bound.DEAD_CELLS);
+            // A packing pushed up and left is not pushed up and left any more when mirrored, so the
+            // corner points cannot be combined with breaking the mirror symmetries
+            this.mirrorDepth = symmetryBreaking == SymmetryBreaking.IDENTICAL_CARS_AND_MIRRORS
+                    && candidateStrategy != CandidateStrategy.CORNER_POINTS
+                    ? state.firstUniqueShape ()
+                    : -1;
+        }
+
+        /**
+         * Checks whether the car placed at {@code depth} may have its center at the given doubled
+         * coordinates: the left half and the top half of the lot, and on a square lot also on or
+         * below the diagonal, which covers every orbit of the mirror images and the transposition.
+         */
+        private boolean isInMirrorDomain (int doubledCenterX, int doubledCenterY) {
+            return doubledCenterX <= width
+                    && doubledCenterY <= height
+                    && (width != height || doubledCenterX <= doubledCenterY);
+        }
+
+        /**
+         * Checks the enabled bounds from the cheapest to the most expensive one, and counts the prune.
+         */
+        private boolean isPruned () {
+
+            final FeasibilityBounds feasibilityBounds = state.feasibilityBounds;
+            final int depth = state.depth ();
+
+            if (areaBound && feasibilityBounds.isAreaExceeded (depth)) {
+                return prune (Bound.AREA, depth);
+            }
+            if (fitBound && !feasibilityBounds.doRemainingCarsFit (depth)) {
+                return prune (Bound.FIT, depth);
+            }
+            if (deadCellsBound && feasibilityBounds.isUsableAreaExceeded (depth)) {
+                return prune (Bound.DEAD_CELLS, depth);
+            }
+            return false;
+
+        }
+
+        private boolean prune (Bound bound, int depth) {
+            statistics.boundPrunes[bound.ordinal ()]++;
+            if (metrics != null) {
+                metrics.boundPrunes[bound.ordinal ()][depth]++;
+            }
+            return true;
+        }
+
+        private boolean isKnownDeadEnd () {
+            if (transpositionTable == null || !transpositionTable.contains (state.hash (), state.depth ())) {
+                return false;
+            }
+            if (metrics != null) {
+                metrics.transpositionHits[state.depth ()]++;
+            }
+            return true;
+        }
+
+        /**
+         * Checks the transposition table and the bounds, and times them if the metrics are on.
+         */
+        private boolean isDeadEnd () {
+            if (metrics == null) {
+                return isKnownDeadEnd () || isPruned ();
+            }
+            final long start = System.nanoTime ();
+            final boolean deadEnd = isKnownDeadEnd () || isPruned ();
+            metrics.boundNanos += System.nanoTime () - start;
+            return deadEnd;
+        }
+
+        /**
+         * Counts an expanded node, and starts timing the scan of its candidates.
+         */
+        private void expand () {
+            statistics.expandedNodes++;
+            if (metrics != null) {
+                metrics.nodes[state.depth ()]++;
+                clock = System.nanoTime ();
+            }
+        }
+
+        private void reject (int x, int y, int w, int h) {
+            if (metrics == null) {
+                return;
+            }
+            if (x + w > width || y + h > height) {
+                metrics.outOfLotRejections[state.depth ()]++;
+            } else {
+                metrics.overlapRejections[state.depth ()]++;
+            }
+        }
+
+        private void rejectBySymmetry () {
+            if (metrics != null) {
+                metrics.symmetryRejections[state.depth ()]++;
+            }
+        }
+
+        /**
+         * Places the next car. With the metrics on, the time since the scan of the candidates started
+         * or resumed goes to the candidates, the placement itself to the transitions.
+         */
+        private void place (int x, int y, boolean rotated) {
+            statistics.placements++;
+            if (metrics == null) {
+                state.place (x, y, rotated);
+                return;
+            }
+            final long start = System.nanoTime ();
+            metrics.candidateNanos += start - clock;
+            metrics.placements[state.depth ()]++;
+            state.place (x, y, rotated);
+            clock = System.nanoTime ();
+            metrics.transitionNanos += clock - start;
+        }
+
+        /**
+         * Takes back the last placement, and resumes timing the scan of the candidates.
+         */
+        private void undo () {
+            if (metrics == null) {
+                state.undo ();
+                return;
+            }
+            final long start = System.nanoTime ();
+            state.undo ();
+            clock = System.nanoTime ();
+            metrics.transitionNanos += clock - start;
+        }
+
+        /**
+         * Stops timing the scan of the candidates of an expanded node.
+         */
+        private void finishExpansion () {
+            if (metrics != null) {
+                metrics.candidateNanos += System.nanoTime () - clock;
+            }
+        }
+
+        private boolean isCancelled () {
+            return aborted || (parallelSearch != null && parallelSearch.isTaskCancelled (taskIndex));
+        }
+
+        private void startAnytime () {
+            objective = partialObjective;
+            startNanos = System.nanoTime ();
+            deadlineNanos = startNanos + timeBudgetMillis * 1_000_000L;
+            nextProgressNanos = startNanos + progressIntervalMillis * 1_000_000L;
+        }
+
+        private long value () {
+            return objective == PartialObjective.CARS ? state.parkedCars () : state.parkedArea ();
+        }
+
+        /**
+         * Counts a node of the anytime search, keeps it if it is the best partial packing so far, and
+         * stops the search when the budget runs out. The clock is only read every 1024 nodes.
+         */
+        private void visit () {
+
+            if (aborted) {
+                return;
+            }
+
+            final long value = value ();
+            if (value > bestValue) {
+                best = state.toState ();
+                bestValue = value;
+            }
+
+            visitedNodes++;
+            if (nodeBudget > 0 && visitedNodes >= nodeBudget) {
+                aborted = true;
+                return;
+            }
+            if ((visitedNodes & 1023L) != 0) {
+                return;
+            }
+
+            final long now = System.nanoTime ();
+            if (timeBudgetMillis > 0 && now - deadlineNanos >= 0) {
+                aborted = true;
+            } else if (progressListener != null && now - nextProgressNanos >= 0) {
+                nextProgressNanos = now + progressIntervalMillis * 1_000_000L;
+                reportProgress ();
+            }
+
+        }
+
+        private void reportProgress () {
+            if (progressListener == null) {
+                return;
+            }
+            final long elapsedNanos = System.nanoTime () - startNanos;
+            final Progress progress = new Progress (
+                    elapsedNanos / 1_000_000L,
+                    visitedNodes,
+                    elapsedNanos > 0 ? visitedNodes * 1e9 / elapsedNanos : 0.0,
+                    best != null ? best.placedCars.size () : 0,
+                    best != null ? parkedArea (best) : 0,
+                    state.cars.length,
+                    width * height
+            );
+            if (!progressListener.onProgress (progress)) {
+                aborted = true;
+            }
+        }
+
+        /**
+         * An upper bound of the value of the partial packings below the current node. The remaining
+         * cars can take at most the free cells that are usable for the smallest of them. The cars are
+         * in decreasing order of their areas, so the most cars that can still be parked are the
+         * smallest ones whose areas add up to at most that.
+         */
+        private long upperBound () {
+
+            final int depth = state.depth ();
+            final int freeArea = state.feasibilityBounds.usableArea (depth);
+            final int[] remainingAreas = state.feasibilityBounds.remainingAreas;
+
+            if (objective == PartialObjective.CARS) {
+                int count = 0;
+                while (depth + count < state.cars.length
+                        && remainingAreas[state.cars.length - count - 1] <= freeArea) {
+                    count++;
+                }
+                return state.parkedCars () + count;
+            }
+            return state.parkedArea () + Math.min (remainingAreas[depth], freeArea);
+
+        }
+
+        private boolean findSolution () {
+
+            if (state.isComplete ()) {
+                return true;
+            }
+            if (frontier != null && state.depth () == frontierDepth) {
+                frontier.add (state.path ());
+                return false;
+            }
+            if (objective != null) {
+                visit ();
+            }
+            if (isCancelled ()) {
+                return false;
+            }
+            if (isDeadEnd ()) {
+                return false;
+            }
+
+            final Car car = state.nextCar ();
+            final boolean square = car.width == car.height;
+
+            final long[] columns, rows;
+            if (candidateStrategy == CandidateStrategy.CORNER_POINTS) {
+                columns = state.cornerPoints.columns (state.depth ());
+                rows = state.cornerPoints.rows (state.depth ());
+            } else {
+                columns = allColumns;
+                rows = allRows;
+            }
+
+            expand ();
+
+            // A car of the same shape as the previous one goes after it in the order of the anchors
+            final int firstAnchor = state.isOrderedAfterPrevious ()
+                    ? state.previousAnchor () + 1
+                    : 0;
+            final int firstColumn = firstAnchor / height;
+            final boolean mirror = state.depth () == mirrorDepth;
+
+            for (int x = CornerPoints.nextSetBit (columns, firstColumn); x >= 0; x = CornerPoints.nextSetBit (columns, x + 1)) {
+                final int firstRow = x == firstColumn ? firstAnchor % height : 0;
+                for (int y = CornerPoints.nextSetBit (rows, firstRow); y >= 0; y = CornerPoints.nextSetBit (rows, y + 1)) {
+
+                    for (int r = 0; r < (square ? 1 : 2); r++) {
+
+                        final boolean rotated = r == 1;
+                        final int w = rotated ? car.height : car.width;
+                        final int h = rotated ? car.width : car.height;
+                        statistics.triedCandidates++;
+                        if (mirror && !isInMirrorDomain (2 * x + w, 2 * y + h)) {
+                            rejectBySymmetry ();
+                            continue;
+                        }
+                        if (!state.grid.isFree (x, y, w, h)) {
+                            reject (x, y, w, h);
+                            continue;
+                        }
+
+                        place (x, y, rotated);
+                        if (findSolution ()) {
+                            return true;
+                        }
+                        undo ();
+
+                    }
+
+                }
+            }
+            finishExpansion ();
+
+            // A cancelled subtree was not searched through, so it must not be recorded as a dead end
+            if (transpositionTable != null && !isCancelled ()) {
+                transpositionTable.store (state.hash (), state.depth ());
+            }
+            return false;
+
+        }
+
+        /**
+         * Branch and bound search for the best partial packing, once there is known to be no full one.
+         * Every car is either placed or left out, after all of its placements are tried. A subtree is
+         * cut off if its {@link #upperBound()} is not better than the best packing so far. Of two cars
+         * of the same shape in a row only the second one can be left out alone, that covers every
+         * packing. The feasibility bounds and the transposition table assume that every car is
+         * placed, so neither is used here.
+         */
+        private void findBestPacking () {
+
+            visit ();
+            if (isCancelled () || state.isComplete () || upperBound () <= bestValue) {
+                return;
+            }
+
+            if (!state.isSkippedWithPrevious ()) {
+
+                final Car car = state.nextCar ();
+                final boolean square = car.width == car.height;
+
+                final long[] columns, rows;
+                if (candidateStrategy == CandidateStrategy.CORNER_POINTS) {
+                    columns = state.cornerPoints.columns (state.depth ());
+                    rows = state.cornerPoints.rows (state.depth ());
+                } else {
+                    columns = allColumns;
+                    rows = allRows;
+                }
+
+                expand ();
+
+                final int firstAnchor = state.isOrderedAfterPrevious ()
+                        ? state.previousAnchor () + 1
+                        : 0;
+                final int firstColumn = firstAnchor / height;
+                final boolean mirror = state.depth () == mirrorDepth;
+
+                for (int x = CornerPoints.nextSetBit (columns, firstColumn); x >= 0; x = CornerPoints.nextSetBit (columns, x + 1)) {
+                    final int firstRow = x == firstColumn ? firstAnchor % height : 0;
+                    for (int y = CornerPoints.nextSetBit (rows, firstRow); y >= 0; y = CornerPoints.nextSetBit (rows, y + 1)) {
+
+                        for (int r = 0; r < (square ? 1 : 2); r++) {
+
+                            final boolean rotated = r == 1;
+                            final int w = rotated ? car.height : car.width;
+                            final int h = rotated ? car.width : car.height;
+                            statistics.triedCandidates++;
+                            if (mirror && !isInMirrorDomain (2 * x + w, 2 * y + h)) {
+                                rejectBySymmetry ();
+                                continue;
+                            }
+                            if (!state.grid.isFree (x, y, w, h)) {
+                                reject (x, y, w, h);
+                                continue;
+                            }
+
+                            place (x, y, rotated);
+                            findBestPacking ();
+                            undo ();
+                            if (isCancelled ()) {
+                                finishExpansion ();
+                                return;
+                            }
+
+                        }
+
+                    }
+                }
+                finishExpansion ();
+
+            }
+
+            state.skip ();
+            findBestPacking ();
+            state.undo ();
+
+        }
+
+    }
+
+    /**
+     * Searches the subtrees below the nodes of {@code tasks} on a {@link ForkJoinPool}. The tasks are
+     * in the order the sequential search would visit them. A packing found in a task cancels every
+     * later task, in the non-deterministic mode it also cancels the earlier ones.
+     */
+    private final class ParallelSearch {
+
+        private final List<int[]> tasks;
+        private final AtomicInteger solutionIndex = new AtomicInteger (Integer.MAX_VALUE);
+        private final ThreadLocal<Search> searches;
+        private final List<Search> allSearches = new ArrayList<> ();
+        private State solution;
+
+        private ParallelSearch (List<int[]> tasks) {
+            this.tasks = tasks;
+            final int workerTableSize = transpositionTableSize / parallelism;
+            this.searches = ThreadLocal.withInitial (
+                    () -> {
+                        Search search = new Search (
+                                newSearchState (),
+                                workerTableSize > 0 ? new TranspositionTable (workerTableSize) : null
+                        );
+                        search.parallelSearch = this;
+                        search.metrics = metrics != null ? new SearchMetrics (engine, cars.size ()) : null;
+                        synchronized (allSearches) {
+                            allSearches.add (search);
+                        }
+                        return search;
+                    }
+            );
+        }
+
+        private boolean isTaskCancelled (int taskIndex) {
+            return solutionIndex.get () < (deterministic ? taskIndex : Integer.MAX_VALUE);
+        }
+
+        private synchronized void offer (int taskIndex, State state) {
+            if (taskIndex < solutionIndex.get ()) {
+                solution = state;
+                solutionIndex.set (taskIndex);
+            }
+        }
+
+        private State run () {
+            ForkJoinPool pool = new ForkJoinPool (parallelism);
+            try {
+                pool.invoke (new SearchTask (0, tasks.size ()));
+            } finally {
+                pool.shutdown ();
+            }
+            synchronized (allSearches) {
+                for (Search search : allSearches) {
+                    statistics.add (search.statistics);
+                    if (metrics != null) {
+                        metrics.add (search.metrics);
+                    }
+                }
+            }
+            synchronized (this) {
+                return solution;
+            }
+        }
+
+        private final class SearchTask extends RecursiveAction {
+
+            private static final long serialVersionUID = 1L;
+
+            private final int from, to;
+
+            private SearchTask (int from, int to) {
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            protected void compute () {
+
+                if (from >= to || isTaskCancelled (from)) {
+                    return;
+                }
+                if (to - from > 1) {
+                    final int mid = (from + to) >>> 1;
+                    invokeAll (new SearchTask (from, mid), new SearchTask (mid, to));
+                    return;
+                }
+
+                Search search = searches.get ();
+                search.taskIndex = from;
+                search.state.replay (tasks.get (from));
+                if (search.findSolution ()) {
+                    offer (from, search.state.toState ());
+                }
+
+            }
+
+        }
+
+    }
+
+    /**
+     * Mutable state of the in-place search. Cars are placed in the order of {@code cars}, the
+     * placements are kept on a stack, so the last one can be taken back with {@link #undo()}.
+     */
+    private static final class SearchState {
+
+        public final Car[] cars;
+        public final OccupancyGrid grid;
+        public final CornerPoints cornerPoints;
+        public final FeasibilityBounds feasibilityBounds;
+        private final ZobristKeys zobristKeys;
+        private final int[] placedX, placedY;
+        private final boolean[] placedRotated;
+        // Whether the car at the depth has to be placed after the previous one, which has the same shape
+        private final boolean[] orderedAfterPrevious;
+        // Cars left out of a partial packing, see skip ()
+        private final boolean[] skipped;
+        private int depth;
+        private int parkedCars, parkedArea;
+        private long occupancyHash;
+
+        /**
+         * Takes over the occupancy grid and the bitsets of the bounds of {@code previous}, which must not
+         * be used any more, if it is not {@code null}.
+         */
+        private SearchState (int width, int height, List<Car> cars, boolean orderIdenticalCars, SearchState previous) {
+            this.cars = cars.toArray (new Car[0]);
+            this.orderedAfterPrevious = new boolean[this.cars.length + 1];
+            for (int i = 1; orderIdenticalCars && i < this.cars.length; i++) {
+                orderedAfterPrevious[i] = isSameShape (this.cars[i - 1], this.cars[i]);
+            }
+            this.grid = new OccupancyGrid (width, height, previous != null ? previous.grid.words : null);
+            this.cornerPoints = new CornerPoints (width, height, this.cars);
+            this.feasibilityBounds = new FeasibilityBounds (grid, this.cars, previous != null ? previous.feasibilityBounds : null);
+            this.zobristKeys = new ZobristKeys (width, height, this.cars.length);
+            this.placedX = new int[this.cars.length];
+            this.placedY = new int[this.cars.length];
+            this.placedRotated = new boolean[this.cars.length];
+            this.skipped = new boolean[this.cars.length];
+        }
+
+        public int depth () {
+            return depth;
+        }
+
+        public int parkedCars () {
+            return parkedCars;
+        }
+
+        public int parkedArea () {
+            return parkedArea;
+        }
+
+        public boolean isComplete () {
+            return depth == cars.length;
+        }
+
+        public Car nextCar () {
+            return cars[depth];
+        }
+
+        private static boolean isSameShape (Car a, Car b) {
+            return (a.width == b.width && a.height == b.height)
+                    || (a.width == b.height && a.height == b.width);
+        }
+
+        /**
+         * Returns the depth of the first car that has a shape no other car has, or {@code -1}.
+         */
+        public int firstUniqueShape () {
+            for (int i = 0; i < cars.length; i++) {
+                boolean unique = true;
+                for (int j = 0; j < cars.length && unique; j++) {
+                    unique = i == j || !isSameShape (cars[i], cars[j]);
+                }
+                if (unique) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        public boolean isOrderedAfterPrevious () {
+            return orderedAfterPrevious[depth];
+        }
+
+        /**
+         * Checks whether the previous car, which has the same shape as the next one, was left out, in
+         * which case the next one has to be left out too.
+         */
+        public boolean isSkippedWithPrevious () {
+            return depth > 0 && skipped[depth - 1] && isSameShape (cars[depth - 1], cars[depth]);
+        }
+
+        /**
+         * Returns the anchor of the last placed car as {@code x * height + y}, the order the anchors
+         * are tried in.
+         */
+        public int previousAnchor () {
+            return placedX[depth - 1] * grid.height + placedY[depth - 1];
+        }
+
+        /**
+         * Zobrist hash of the taken cells and the depth. Cars are always placed in the same order, so
+         * the depth determines which cars remain, and two states with the same hash have the same
+         * future. If the next car has to be placed after the previous one, the anchor of the previous
+         * one limits the future too, so it is part of the hash.
+         */
+        public long hash () {
+            final long hash = occupancyHash ^ zobristKeys.depthKey (depth);
+            return orderedAfterPrevious[depth]
+                    ? hash ^ zobristKeys.anchorKey (previousAnchor ())
+                    : hash;
+        }
+
+        /**
+         * Places the next car with its top left corner at {@code (x, y)}. The caller has to make
+         * sure that the car fits there.
+         */
+        public void place (int x, int y, boolean rotated) {
+            final Car car = cars[depth];
+            final int w = rotated ? car.height : car.width;
+            final int h = rotated ? car.width : car.height;
+            grid.fill (x, y, w, h);
+            cornerPoints.add (x + w, y + h);
+            occupancyHash ^= zobristKeys.rectangleKey (x, y, w, h);
+            placedX[depth] = x;
+            placedY[depth] = y;
+            placedRotated[depth] = rotated;
+            parkedCars++;
+            parkedArea += w * h;
+            depth++;
+        }
+
+        /**
+         * Leaves the next car out of the packing. Only the search for partial packings does this.
+         */
+        public void skip () {
+            skipped[depth] = true;
+            depth++;
+        }
+
+        /**
+         * Returns the placements made so far, as {@code (y * width + x) * 2 + (rotated ? 1 : 0)} codes.
+         */
+        public int[] path () {
+            int[] path = new int[depth];
+            for (int i = 0; i < depth; i++) {
+                path[i] = ((placedY[i] * grid.width + placedX[i]) << 1) | (placedRotated[i] ? 1 : 0);
+            }
+            return path;
+        }
+
+        /**
+         * Takes back every placement, then makes the placements of {@code path}.
+         */
+        public void replay (int[] path) {
+            while (depth > 0) {
+                undo ();
+            }
+            for (int code : path) {
+                place ((code >>> 1) % grid.width, (code >>> 1) / grid.width, (code & 1) == 1);
+            }
+        }
+
+        /**
+         * Takes back the last placement.
+         */
+        public void undo () {
+            depth--;
+            if (skipped[depth]) {
+                skipped[depth] = false;
+                return;
+            }
+            final Car car = cars[depth];
+            final boolean rotated = placedRotated[depth];
+            final int w = rotated ? car.height : car.width;
+            final int h = rotated ? car.width : car.height;
+            grid.clear (placedX[depth], placedY[depth], w, h);
+            cornerPoints.remove (placedX[depth] + w, placedY[depth] + h);
+            occupancyHash ^= zobristKeys.rectangleKey (placedX[depth], placedY[depth], w, h);
+            parkedCars--;
+            parkedArea -= w * h;
+        }
+
+        public State toState () {
+            List<PlacedCar> placedCars = new ArrayList<> ();
+            List<Car> remainingCars = new ArrayList<> ();
+            for (int i = 0; i < depth; i++) {
+                if (skipped[i]) {
+                    remainingCars.add (cars[i]);
+                } else {
+                    placedCars.add (new PlacedCar (cars[i], placedRotated[i], new Point (placedX[i], placedY[i])));
+                }
+            }
+            remainingCars.addAll (Arrays.asList (cars).subList (depth, cars.length));
+            return new State (
+                    placedCars,
+                    remainingCars,
+                    Collections.emptyList ()
+            );
+        }
+
+        @Override
+        public String toString () {
+            return "depth: " + depth + ", grid:\n" + grid;
+        }
+
+    }
+
+    /**
+     * Candidate anchors for {@link CandidateStrategy#CORNER_POINTS}. Every packing can be pushed up and
+     * to the left until each car touches the border or another car both on its left and on its top
+     * side. In such a packing, going left from a car, there is a chain of touching cars that ends at
+     * the border, so the column of the car is the right edge of the last already placed car of the
+     * chain (or {@code 0}), plus the widths of cars that are placed later. The candidate columns are
+     * therefore the right edges of the placed cars, shifted by every sum of the sides of the cars
+     * after the next one. The same goes for the rows with the bottom edges. No packing is lost.
+     * <p>
+     * The edges are counted on every placement, the sums only depend on the depth and are computed
+     * up front. Sets of columns and rows are bitsets, bit {@code i} of word {@code i / 64} standing
+     * for column or row {@code i}.
+     */
+    private static final class CornerPoints {
+
+        private final int width, height;
+        private final int[] rightEdgeCounts, bottomEdgeCounts;
+        // columnSums[k] holds the sums of sides of cars k, k + 1, ... that are less than width
+        private final long[][] columnSums, rowSums;
+        // Results of columns (depth) and rows (depth), one per depth, so they stay valid while searching deeper
+        private final long[][] columns, rows;
+
+        private CornerPoints (int width, int height, Car[] cars) {
+
+            this.width = width;
+            this.height = height;
+            this.rightEdgeCounts = new int[width + 1];
+            this.bottomEdgeCounts = new int[height + 1];
+
+            this.columnSums = sums (cars, width);
+            this.rowSums = sums (cars, height);
+            this.columns = new long[cars.length][(width + 63) >>> 6];
+            this.rows = new long[cars.length][(height + 63) >>> 6];
+
+        }
+
+        private static long[][] sums (Car[] cars, int limit) {
+            long[][] sums = new long[cars.length + 1][(limit + 63) >>> 6];
+            sums[cars.length][0] = 1L;
+            for (int k = cars.length - 1; k >= 0; k--) {
+                System.arraycopy (sums[k + 1], 0, sums[k], 0, sums[k].length);
+                orShifted (sums[k], sums[k + 1], cars[k].width, limit);
+                orShifted (sums[k], sums[k + 1], cars[k].height, limit);
+            }
+            return sums;
+        }
+
+        /**
+         * Returns the set of the values {@code [0, limit)}.
+         */
+        public static long[] range (int limit) {
+            long[] bits = new long[(limit + 63) >>> 6];
+            Arrays.fill (bits, -1L);
+            if ((limit & 63) != 0) {
+                bits[bits.length - 1] = -1L >>> (64 - (limit & 63));
+            }
+            return bits;
+        }
+
+        /**
+         * Adds every value of {@code source} plus {@code shift} that is less than {@code limit} to {@code target}.
+         */
+        private static void orShifted (long[] target, long[] source, int shift, int limit) {
+            final int wordShift = shift >>> 6;
+            final int bitShift = shift & 63;
+            for (int i = target.length - 1; i >= wordShift; i--) {
+                final int j = i - wordShift;
+                long word = source[j] << bitShift;
+                if (bitShift != 0 && j > 0) {
+                    word |= source[j - 1] >>> (64 - bitShift);
+                }
+                target[i] |= word;
+            }
+            if ((limit & 63) != 0) {
+                target[target.length - 1] &= -1L >>> (64 - (limit & 63));
+            }
+        }
+
+        public static int nextSetBit (long[] bits, int from) {
+            int i = from >>> 6;
+            if (i >= bits.length) {
+                return -1;
+            }
+            long word = bits[i] & (-1L << (from & 63));
+            while (word == 0L) {
+                if (++i == bits.length) {
+                    return -1;
+                }
+                word = bits[i];
+            }
+            return (i << 6) + Long.numberOfTrailingZeros (word);
+        }
+
+        public void add (int right, int bottom) {
+            rightEdgeCounts[right]++;
+            bottomEdgeCounts[bottom]++;
+        }
+
+        public void remove (int right, int bottom) {
+            rightEdgeCounts[right]--;
+            bottomEdgeCounts[bottom]--;
+        }
+
+        /**
+         * Returns the candidate columns for the car placed at {@code depth}.
+         */
+        public long[] columns (int depth) {
+            return candidates (columns[depth], columnSums[depth + 1], rightEdgeCounts, width);
+        }
+
+        /**
+         * Returns the candidate rows for the car placed at {@code depth}.
+         */
+        public long[] rows (int depth) {
+            return candidates (rows[depth], rowSums[depth + 1], bottomEdgeCounts, height);
+        }
+
+        private static long[] candidates (long[] result, long[] sums, int[] edgeCounts, int limit) {
+            Arrays.fill (result, 0L);
+            orShifted (result, sums, 0, limit);
+            for (int edge = 1; edge < limit; edge++) {
+                if (edgeCounts[edge] > 0) {
+                    orShifted (result, sums, edge, limit);
+                }
+            }
+            return result;
+        }
+
+    }
+
+    /**
+     * Necessary conditions for a node of the bitboard search to lead to a packing:
+     * <ul>
+     *     <li>{@link Bound#AREA}: the remaining cars are not larger than the free area. Cars are
+     *     placed in a fixed order, so both only depend on the depth, and this is checked in O(1).</li>
+     *     <li>{@link Bound#FIT}: every remaining car still fits somewhere. Only the shapes that no
+     *     other remaining shape fits into are checked, since if those fit, the rest fit too.</li>
+     *     <li>{@link Bound#DEAD_CELLS}: the remaining cars are not larger than the free cells they can
+     *     still cover. A free cell is dead for a car if the free run through it, either in its row or
+     *     in its column, is shorter than the shorter side of the car. This is checked for every
+     *     distinct shorter side {@code s > 1}, with the cars whose shorter side is at least {@code s}.</li>
+     * </ul>
+     * The last two work on whole words of the occupancy grid at a time: a free run of length
+     * {@code k} is found by and-ing the free mask with itself shifted by 1, 2, 4, ... cells, so both
+     * take O(cells / 64 * log k) word operations per shape, and nothing is allocated.
+     */
+    private static final class FeasibilityBounds {
+
+        private final OccupancyGrid grid;
+        private final int wordsPerRow;
+        private final long lastWordMask;
+        // Indexed by depth, for the cars from the depth on
+        private final int[] remainingAreas;
+        private final int[] shortestSides;
+        // Indexed by depth, pairs of a shorter side s > 1 and the area of the cars from the depth on
+        // with a shorter side of at least s
+        private final int[][] sideAreas;
+        // Indexed by depth, width and height of the shapes to check for the cars after the depth
+        private final int[][] fitShapes;
+        // Bitsets like the occupancy grid, of which only the first length words are used
+        private final long[] free, bits, columnBits, scratch;
+        private final int length;
+
+        private FeasibilityBounds (OccupancyGrid grid, Car[] cars, FeasibilityBounds previous) {
+
+            this.grid = grid;
+            this.wordsPerRow = grid.wordsPerRow;
+            this.length = grid.length;
+            this.lastWordMask = (grid.width & 63) == 0 ? -1L : -1L >>> (64 - (grid.width & 63));
+
+            this.remainingAreas = new int[cars.length + 1];
+            for (int k = cars.length - 1; k >= 0; k--) {
+                remainingAreas[k] = remainingAreas[k + 1] + cars[k].width * cars[k].height;
+            }
+            this.shortestSides = new int[cars.length + 1];
+            shortestSides[cars.length] = Integer.MAX_VALUE;
+            for (int k = cars.length - 1; k >= 0; k--) {
+                shortestSides[k] = Math.min (shortestSides[k + 1], Math.min (cars[k].width, cars[k].height));
+            }
+
+            this.sideAreas = new int[cars.length + 1][];
+            for (int depth = 0; depth <= cars.length; depth++) {
+                SortedMap<Integer, Integer> areas = new TreeMap<> ();
+                for (int k = depth; k < cars.length; k++) {
+                    final int side = Math.min (cars[k].width, cars[k].height);
+                    if (side > 1) {
+                        areas.merge (side, cars[k].width * cars[k].height, Integer::sum);
+                    }
+                }
+                sideAreas[depth] = new int[areas.size () * 2];
+                // Walked from the longest side down, so the areas add up
+                List<Integer> sides = new ArrayList<> (areas.keySet ());
+                int i = sideAreas[depth].length, area = 0;
+                for (int j = sides.size () - 1; j >= 0; j--) {
+                    area += areas.get (sides.get (j));
+                    sideAreas[depth][--i] = area;
+                    sideAreas[depth][--i] = sides.get (j);
+                }
+            }
+
+            this.fitShapes = new int[cars.length][];
+            for (int depth = 0; depth < cars.length; depth++) {
+                List<int[]> shapes = new ArrayList<> ();
+                for (int k = depth + 1; k < cars.length; k++) {
+                    final int a = Math.min (cars[k].width, cars[k].height);
+                    final int b = Math.max (cars[k].width, cars[k].height);
+                    boolean dominated = false;
+                    for (int j = depth + 1; j < cars.length && !dominated; j++) {
+                        final int c = Math.min (cars[j].width, cars[j].height);
+                        final int d = Math.max (cars[j].width, cars[j].height);
+                        // Keep the first one of equal shapes
+                        dominated = a <= c && b <= d && (a != c || b != d || j < k);
+                    }
+                    if (!dominated) {
+                        shapes.add (new int[] {a, b});
+                    }
+                }
+                fitShapes[depth] = new int[shapes.size () * 2];
+                for (int i = 0; i < shapes.size (); i++) {
+                    fitShapes[depth][i * 2] = shapes.get (i)[0];
+                    fitShapes[depth][i * 2 + 1] = shapes.get (i)[1];
+                }
+            }
+
+            this.free = OccupancyGrid.reuse (previous != null ? previous.free : null, length);
+            this.bits = OccupancyGrid.reuse (previous != null ? previous.bits : null, length);
+            this.columnBits = OccupancyGrid.reuse (previous != null ? previous.columnBits : null, length);
+            this.scratch = OccupancyGrid.reuse (previous != null ? previous.scratch : null, length);
+
+        }
+
+        private int freeArea (int depth) {
+            return grid.width * grid.height - (remainingAreas[0] - remainingAreas[depth]);
+        }
+
+        public boolean isAreaExceeded (int depth) {
+            return remainingAreas[depth] > freeArea (depth);
+        }
+
+        public boolean doRemainingCarsFit (int depth) {
+            final int[] shapes = fitShapes[depth];
+            if (shapes.length == 0) {
+                return true;
+            }
+            loadFreeCells ();
+            for (int i = 0; i < shapes.length; i += 2) {
+                if (!fitsAnywhere (shapes[i], shapes[i + 1])
+                        && (shapes[i] == shapes[i + 1] || !fitsAnywhere (shapes[i + 1], shapes[i]))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public boolean isUsableAreaExceeded (int depth) {
+
+            final int[] areas = sideAreas[depth];
+            if (areas.length == 0) {
+                return false;
+            }
+
+            loadFreeCells ();
+
+            for (int i = 0; i < areas.length; i += 2) {
+
+                final int side = areas[i];
+
+                // Cells in a free run of at least side cells in their row
+                System.arraycopy (free, 0, bits, 0, length);
+                horizontalRunStarts (bits, side);
+                horizontalDilate (bits, side);
+
+                // Cells in a free run of at least side cells in their column
+                System.arraycopy (free, 0, columnBits, 0, length);
+                verticalRunStarts (columnBits, side);
+                verticalDilate (columnBits, side);
+
+                int usableArea = 0;
+                for (int j = 0; j < length; j++) {
+                    usableArea += Long.bitCount (free[j] & bits[j] & columnBits[j]);
+                }
+                if (areas[i + 1] > usableArea) {
+                    return true;
+                }
+
+            }
+            return false;
+
+        }
+
+        /**
+         * Returns the number of free cells any of the cars from the depth on could take: the cells in a
+         * free run of at least the shortest side of the cars, both in their row and in their column.
+         */
+        public int usableArea (int depth) {
+
+            loadFreeCells ();
+
+            final int side = shortestSides[depth];
+            if (side == Integer.MAX_VALUE) {
+                return 0;
+            }
+            if (side > 1) {
+                System.arraycopy (free, 0, bits, 0, length);
+                horizontalRunStarts (bits, side);
+                horizontalDilate (bits, side);
+                System.arraycopy (free, 0, columnBits, 0, length);
+                verticalRunStarts (columnBits, side);
+                verticalDilate (columnBits, side);
+                and (bits, columnBits);
+                and (bits, free);
+            } else {
+                System.arraycopy (free, 0, bits, 0, length);
+            }
+
+            int usableArea = 0;
+            for (int i = 0; i < length; i++) {
+                usableArea += Long.bitCount (bits[i]);
+            }
+            return usableArea;
+
+        }
+
+        private void loadFreeCells () {
+            final long[] words = grid.words;
+            for (int i = 0; i < length; i++) {
+                free[i] = (i % wordsPerRow) == wordsPerRow - 1 ? ~words[i] & lastWordMask : ~words[i];
+            }
+        }
+
+        private boolean fitsAnywhere (int w, int h) {
+            if (w > grid.width || h > grid.height) {
+                return false;
+            }
+            System.arraycopy (free, 0, bits, 0, length);
+            verticalRunStarts (bits, h);
+            horizontalRunStarts (bits, w);
+            for (int i = 0; i < length; i++) {
+                if (bits[i] != 0L) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Keeps the cells {@code x} for which the cells {@code x, ..., x + k - 1} of the row are all set.
+         */
+        private void horizontalRunStarts (long[] target, int k) {
+            int m = 1;
+            for (; m * 2 <= k; m *= 2) {
+                shiftTowardsLowerColumns (target, scratch, m);
+                and (target, scratch);
+            }
+            if (k > m) {
+                shiftTowardsLowerColumns (target, scratch, k - m);
+                and (target, scratch);
+            }
+        }
+
+        /**
+         * Sets the cells {@code x} for which one of the cells {@code x - k + 1, ..., x} of the row is set.
+         */
+        private void horizontalDilate (long[] target, int k) {
+            int m = 1;
+            for (; m * 2 <= k; m *= 2) {
+                shiftTowardsHigherColumns (target, scratch, m);
+                or (target, scratch);
+            }
+            if (k > m) {
+                shiftTowardsHigherColumns (target, scratch, k - m);
+                or (target, scratch);
+            }
+        }
+
+        private void verticalRunStarts (long[] target, int k) {
+            int m = 1;
+            for (; m * 2 <= k; m *= 2) {
+                shiftRows (target, scratch, m);
+                and (target, scratch);
+            }
+            if (k > m) {
+                shiftRows (target, scratch, k - m);
+                and (target, scratch);
+            }
+        }
+
+        private void verticalDilate (long[] target, int k) {
+            int m = 1;
+            for (; m * 2 <= k; m *= 2) {
+                shiftRows (target, scratch, -m);
+                or (target, scratch);
+            }
+            if (k > m) {
+                shiftRows (target, scratch, m - k);
+                or (target, scratch);
+            }
+        }
+
+        private void and (long[] target, long[] other) {
+            for (int i = 0; i < length; i++) {
+                target[i] &= other[i];
+            }
+        }
+
+        private void or (long[] target, long[] other) {
+            for (int i = 0; i < length; i++) {
+                target[i] |= other[i];
+            }
+        }
+
+        /**
+         * Cell {@code x} of {@code target} becomes cell {@code x + n} of {@code source}.
+         */
+        private void shiftTowardsLowerColumns (long[] source, long[] target, int n) {
+            final int wordShift = n >>> 6;
+            final int bitShift = n & 63;
+            for (int base = 0; base < length; base += wordsPerRow) {
+                for (int i = 0; i < wordsPerRow; i++) {
+                    final int j = i + wordShift;
+                    long word = j < wordsPerRow ? source[base + j] >>> bitShift : 0L;
+                    if (bitShift != 0 && j + 1 < wordsPerRow) {
+                        word |= source[base + j + 1] << (64 - bitShift);
+                    }
+                    target[base + i] = word;
+                }
+            }
+        }
+
+        /**
+         * Cell {@code x} of {@code target} becomes cell {@code x - n} of {@code source}.
+         */
+        private void shiftTowardsHigherColumns (long[] source, long[] target, int n) {
+            final int wordShift = n >>> 6;
+            final int bitShift = n & 63;
+            for (int base = 0; base < length; base += wordsPerRow) {
+                for (int i = wordsPerRow - 1; i >= 0; i--) {
+                    final int j = i - wordShift;
+                    long word = j >= 0 ? source[base + j] << bitShift : 0L;
+                    if (bitShift != 0 && j - 1 >= 0) {
+                        word |= source[base + j - 1] >>> (64 - bitShift);
+                    }
+                    target[base + i] = i == wordsPerRow - 1 ? word & lastWordMask : word;
+                }
+            }
+        }
+
+        /**
+         * Row {@code y} of {@code target} becomes row {@code y + n} of {@code source}, rows outside of the
+         * grid are empty.
+         */
+        private void shiftRows (long[] source, long[] target, int n) {
+            final int offset = n * wordsPerRow;
+            Arrays.fill (target, 0, length, 0L);
+            if (offset >= 0) {
+                if (offset < length) {
+                    System.arraycopy (source, offset, target, 0, length - offset);
+                }
+            } else if (-offset < length) {
+                System.arraycopy (source, 0, target, -offset, length + offset);
+            }
+        }
+
+    }
+
+    /**
+     * Knuth's Algorithm X on Dancing Links. The nodes are kept in parallel {@code int} arrays: node
+     * {@code 0} is the root, nodes {@code 1 ... columns} are the column headers, the rest are the
+     * entries of the rows. Only the primary columns are linked to the root, so only those have to be
+     * covered; a secondary column is covered at most once, since covering a row removes every other
+     * row that shares a column with it.
+     * <p>
+     * The column to cover next is the primary column with the fewest rows left (minimum remaining
+     * values), ties go to the first one.
+     */
+    private static final class DancingLinks {
+
+        private final int[] left, right, up, down, column, row;
+        private final int[] size;
+        private final int[] solution;
+        private int solutionSize;
+        private int nodes;
+
+        private SearchStatistics statistics = new SearchStatistics ();
+        private SearchMetrics metrics;
+
+        private DancingLinks (int primaryColumns, int secondaryColumns, int capacity) {
+
+            final int headers = 1 + primaryColumns + secondaryColumns;
+            final int length = headers + capacity;
+            this.left = new int[length];
+            this.right = new int[length];
+            this.up = new int[length];
+            this.down = new int[length];
+            this.column = new int[length];
+            this.row = new int[length];
+            this.size = new int[headers];
+            this.solution = new int[headers];
+
+            for (int i = 0; i < headers; i++) {
+                up[i] = i;
+                down[i] = i;
+                column[i] = i;
+                row[i] = -1;
+                if (i <= primaryColumns) {
+                    left[i] = i == 0 ? primaryColumns : i - 1;
+                    right[i] = i == primaryColumns ? 0 : i + 1;
+                } else {
+                    left[i] = i;
+                    right[i] = i;
+                }
+            }
+            this.nodes = headers;
+
+        }
+
+        /**
+         * Adds a row covering the given columns, numbered from {@code 0}, primary columns first.
+         */
+        private void addRow (int rowIndex, int[] columns, int count) {
+            final int first = nodes;
+            for (int i = 0; i < count; i++) {
+                final int node = nodes++;
+                final int c = columns[i] + 1;
+                column[node] = c;
+                row[node] = rowIndex;
+                up[node] = up[c];
+                down[node] = c;
+                down[up[c]] = node;
+                up[c] = node;
+                size[c]++;
+                left[node] = i == 0 ? node : node - 1;
+                right[node] = first;
+                right[left[node]] = node;
+                left[first] = node;
+            }
+        }
+
+        private void cover (int c) {
+            right[left[c]] = right[c];
+            left[right[c]] = left[c];
+            for (int i = down[c]; i != c; i = down[i]) {
+                for (int j = right[i]; j != i; j = right[j]) {
+                    down[up[j]] = down[j];
+                    up[down[j]] = up[j];
+                    size[column[j]]--;
+                }
+            }
+        }
+
+        private void uncover (int c) {
+            for (int i = up[c]; i != c; i = up[i]) {
+                for (int j = left[i]; j != i; j = left[j]) {
+                    size[column[j]]++;
+                    down[up[j]] = j;
+                    up[down[j]] = j;
+                }
+            }
+            right[left[c]] = c;
+            left[right[c]] = c;
+        }
+
+        private boolean search (int k) {
+
+            if (right[0] == 0) {
+                solutionSize = k;
+                return true;
+            }
+
+            int c = right[0];
+            for (int j = right[c]; j != 0; j = right[j]) {
+                if (size[j] < size[c]) {
+                    c = j;
+                }
+            }
+            if (size[c] == 0) {
+                return false;
+            }
+
+            statistics.expandedNodes++;
+            if (metrics != null) {
+                metrics.nodes[k]++;
+            }
+            cover (c);
+            for (int r = down[c]; r != c; r = down[r]) {
+
+                statistics.placements++;
+                if (metrics != null) {
+                    metrics.placements[k]++;
+                }
+                solution[k] = r;
+                for (int j = right[r]; j != r; j = right[j]) {
+                    cover (column[j]);
+                }
+                if (search (k + 1)) {
+                    return true;
+                }
+                for (int j = left[r]; j != r; j = left[j]) {
+                    uncover (column[j]);
+                }
+
+            }
+            uncover (c);
+            return false;
+
+        }
+
+        /**
+         * Returns the indices of the rows of the solution found by the last successful search.
+         */
+        private int[] solution () {
+            return Arrays.stream (solution, 0, solutionSize)
+                    .map (node -> row[node])
+                    .toArray ();
+        }
+
+    }
+
+    /**
+     * A snapshot of an anytime search: the nodes visited so far and how fast, and the size of the best
+     * partial packing found so far.
+     */
+    public static final class Progress {
+
+        private final long elapsedMillis;
+        private final long visitedNodes;
+        private final double nodesPerSecond;
+        private final int bestCars, bestArea;
+        private final int totalCars, lotArea;
+
+        private Progress (long elapsedMillis, long visitedNodes, double nodesPerSecond,
+                          int bestCars, int bestArea, int totalCars, int lotArea) {
+            this.elapsedMillis = elapsedMillis;
+            this.visitedNodes = visitedNodes;
+            this.nodesPerSecond = nodesPerSecond;
+            this.bestCars = bestCars;
+            this.bestArea = bestArea;
+            this.totalCars = totalCars;
+            this.lotArea = lotArea;
+        }
+
+        public long getElapsedMillis () {
+            return elapsedMillis;
+        }
+
+        public long getVisitedNodes () {
+            return visitedNodes;
+        }
+
+        public double getNodesPerSecond () {
+            return nodesPerSecond;
+        }
+
+        public int getBestCars () {
+            return bestCars;
+        }
+
+        public int getBestArea () {
+            return bestArea;
+        }
+
+        public int getTotalCars () {
+            return totalCars;
+        }
+
+        public int getLotArea () {
+            return lotArea;
+        }
+
+        @Override
+        public String toString () {
+            return "elapsed: " + elapsedMillis + " ms"
+                    + ", visited nodes: " + visitedNodes
+                    + ", nodes/s: " + String.format (Locale.ROOT, "%.0f", nodesPerSecond)
+                    + ", best: " + bestCars + " of " + totalCars + " cars, "
+                    + bestArea + " of " + lotArea + " cells";
+        }
+
+    }
+
+    /**
+     * Counters of a bitboard search. The branching factor is the average number of placements tried
+     * in an expanded node.
+     */
+    public static final class SearchStatistics {
+
+        private long expandedNodes, triedCandidates, placements;
+        private final long[] boundPrunes = new long[Bound.values ().length];
+
+        private void add (SearchStatistics other) {
+            expandedNodes += other.expandedNodes;
+            triedCandidates += other.triedCandidates;
+            placements += other.placements;
+            for (int i = 0; i < boundPrunes.length; i++) {
+                boundPrunes[i] += other.boundPrunes[i];
+            }
+        }
+
+        public long getExpandedNodes () {
+            return expandedNodes;
+        }
+
+        public long getTriedCandidates () {
+            return triedCandidates;
+        }
+
+        public long getPlacements () {
+            return placements;
+        }
+
+        public double getBranchingFactor () {
+            return expandedNodes == 0 ? 0.0 : (double) placements / expandedNodes;
+        }
+
+        /**
+         * Returns the number of nodes the given bound cut off.
+         */
+        public long getPrunes (Bound bound) {
+            return boundPrunes[bound.ordinal ()];
+        }
+
+        @Override
+        public String toString () {
+            StringBuilder sb = new StringBuilder ();
+            sb.append ("expanded nodes: ").append (expandedNodes)
+                    .append (", tried candidates: ").append (triedCandidates)
+                    .append (", placements: ").append (placements)
+                    .append (", branching factor: ").append (String.format (Locale.ROOT, "%.2f", getBranchingFactor ()));
+            for (Bound bound : Bound.values ()) {
+                sb.append (", ").append (bound.name ().toLowerCase ()).append (" prunes: ").append (getPrunes (bound));
+            }
+            return sb.toString ();
+        }
+
+    }
+
+    /**
+     * Per-depth metrics of a search, collected if {@link #setMetricsEnabled(boolean)} is set. The
+     * arrays are allocated before the search starts, so collecting them does not allocate.
+     * <p>
+     * The depth of a node is the number of cars placed above it. A node is expanded when its
+     * candidates are scanned, a candidate is rejected if it is out of the lot, overlaps a placed car,
+     * or is cut by the symmetry breaking, and a node is pruned if the transposition table or one of
+     * the bounds cuts it off before it is expanded.
+     * <p>
+     * The candidate time is the time spent scanning the candidates ({@code validDecisions} in the list
+     * engine), the transition time is the time spent placing and taking back cars
+     * ({@code stateAfterDecision}), the bound time is the time spent in the transposition table and
+     * the bounds. The times are summed over the threads of a parallel search; the Dancing Links
+     * engine only counts nodes and placements.
+     */
+    public static final class SearchMetrics {
+
+        private final Engine engine;
+        private final long[] nodes, placements;
+        private final long[] outOfLotRejections, overlapRejections, symmetryRejections;
+        private final long[] transpositionHits;
+        private final long[][] boundPrunes;
+        private long candidateNanos, transitionNanos, boundNanos, wallNanos;
+
+        private SearchMetrics (Engine engine, int numCars) {
+            this.engine = engine;
+            this.nodes = new long[numCars + 1];
+            this.placements = new long[numCars + 1];
+            this.outOfLotRejections = new long[numCars + 1];
+            this.overlapRejections = new long[numCars + 1];
+            this.symmetryRejections = new long[numCars + 1];
+            this.transpositionHits = new long[numCars + 1];
+            this.boundPrunes = new long[Bound.values ().length][numCars + 1];
+        }
+
+        private void add (SearchMetrics other) {
+            add (nodes, other.nodes);
+            add (placements, other.placements);
+            add (outOfLotRejections, other.outOfLotRejections);
+            add (overlapRejections, other.overlapRejections);
+            add (symmetryRejections, other.symmetryRejections);
+            add (transpositionHits, other.transpositionHits);
+            for (int i = 0; i < boundPrunes.length; i++) {
+                add (boundPrunes[i], other.boundPrunes[i]);
+            }
+            candidateNanos += other.candidateNanos;
+            transitionNanos += other.transitionNanos;
+            boundNanos += other.boundNanos;
+        }
+
+        private static void add (long[] target, long[] other) {
+            for (int i = 0; i < target.length; i++) {
+                target[i] += other[i];
+            }
+        }
+
+        public long getNodes (int depth) {
+            return nodes[depth];
+        }
+
+        public long getPlacements (int depth) {
+            return placements[depth];
+        }
+
+        public double getBranchingFactor (int depth) {
+            return nodes[depth] == 0 ? 0.0 : (double) placements[depth] / nodes[depth];
+        }
+
+        public long getOutOfLotRejections (int depth) {
+            return outOfLotRejections[depth];
+        }
+
+        public long getOverlapRejections (int depth) {
+            return overlapRejections[depth];
+        }
+
+        public long getSymmetryRejections (int depth) {
+            return symmetryRejections[depth];
+        }
+
+        public long getTranspositionHits (int depth) {
+            return transpositionHits[depth];
+        }
+
+        public long getPrunes (Bound bound, int depth) {
+            return boundPrunes[bound.ordinal ()][depth];
+        }
+
+        public long getCandidateNanos () {
+            return candidateNanos;
+        }
+
+        public long getTransitionNanos () {
+            return transitionNanos;
+        }
+
+        public long getBoundNanos () {
+            return boundNanos;
+        }
+
+        public long getWallNanos () {
+            return wallNanos;
+        }
+
+        /**
+         * Returns the metrics as a single line JSON object, with one array element per depth.
+         */
+        public String toJson () {
+            StringBuilder sb = new StringBuilder ();
+            sb.append ("{\"engine\":\"").append (engine.name ().toLowerCase ()).append ("\"")
+                    .append (",\"wallNanos\":").append (wallNanos)
+                    .append (",\"candidateNanos\":").append (candidateNanos)
+                    .append (",\"transitionNanos\":").append (transitionNanos)
+                    .append (",\"boundNanos\":").append (boundNanos);
+            appendArray (sb.append (",\"nodes\":"), nodes);
+            appendArray (sb.append (",\"placements\":"), placements);
+            sb.append (",\"branchingFactors\":[");
+            for (int depth = 0; depth < nodes.length; depth++) {
+                sb.append (depth == 0 ? "" : ",").append (String.format (Locale.ROOT, "%.3f", getBranchingFactor (depth)));
+            }
+            sb.append ("]");
+            appendArray (sb.append (",\"rejections\":{\"outOfLot\":"), outOfLotRejections);
+            appendArray (sb.append (",\"overlap\":"), overlapRejections);
+            appendArray (sb.append (",\"symmetry\":"), symmetryRejections);
+            appendArray (sb.append ("},\"prunes\":{\"transposition\":"), transpositionHits);
+            for (Bound bound : Bound.values ()) {
+                appendArray (sb.append (",\"").append (bound.name ().toLowerCase ()).append ("\":"), boundPrunes[bound.ordinal ()]);
+            }
+            return sb.append ("}}").toString ();
+        }
+
+        private static void appendArray (StringBuilder sb, long[] values) {
+            sb.append ("[");
+            for (int i = 0; i < values.length; i++) {
+                sb.append (i == 0 ? "" : ",").append (values[i]);
+            }
+            sb.append ("]");
+        }
+
+    }
+
+    /**
+     * Random keys for Zobrist hashing the occupancy of the parking lot. Every cell has a key, the hash
+     * of a set of cells is the XOR of their keys. The keys are also kept as XOR prefixes of each row,
+     * so the hash of a rectangle takes one step per row instead of one per cell.
+     */
+    private static final class ZobristKeys {
+
+        private static final long SEED = 0x5EEDL;
+
+        private final int width;
+        private final long[] rowPrefixes;
+        private final long[] depthKeys;
+        private final long[] anchorKeys;
+
+        private ZobristKeys (int width, int height, int numCars) {
+            Random random = new Random (SEED);
+            this.width = width;
+            this.rowPrefixes = new long[height * (width + 1)];
+            for (int y = 0; y < height; y++) {
+                final int base = y * (width + 1);
+                for (int x = 0; x < width; x++) {
+                    rowPrefixes[base + x + 1] = rowPrefixes[base + x] ^ random.nextLong ();
+                }
+            }
+            this.depthKeys = new long[numCars + 1];
+            for (int i = 0; i < depthKeys.length; i++) {
+                depthKeys[i] = random.nextLong ();
+            }
+            this.anchorKeys = new long[width * height];
+            for (int i = 0; i < anchorKeys.length; i++) {
+                anchorKeys[i] = random.nextLong ();
+            }
+        }
+
+        public long rectangleKey (int x, int y, int w, int h) {
+            long key = 0L;
+            for (int row = y; row < y + h; row++) {
+                final int base = row * (width + 1);
+                key ^= rowPrefixes[base + x] ^ rowPrefixes[base + x + w];
+            }
+            return key;
+        }
+
+        public long depthKey (int depth) {
+            return depthKeys[depth];
+        }
+
+        public long anchorKey (int anchor) {
+            return anchorKeys[anchor];
+        }
+
+    }
+
+    /**
+     * Bounded table of states that are known to be dead ends. The table has two entries per bucket:
+     * the first one keeps the shallowest state that was stored into the bucket, since that one stands
+     * for the largest subtree, the second one is always replaced by the newest state.
+     */
+    public static final class TranspositionTable {
+
+        private final int bucketMask;
+        private final long[] keys;
+        private final int[] depths;
+
+        private long hits, misses, stores, evictions;
+
+        private TranspositionTable (int size) {
+            final int capacity = capacityFor (size);
+            this.bucketMask = capacity / 2 - 1;
+            this.keys = new long[capacity];
+            // Stored as depth + 1, so 0 means an empty entry
+            this.depths = new int[capacity];
+        }
+
+        /**
+         * Returns the number of entries a table of the given size has: the largest power of two not
+         * greater than the size, but at least one bucket.
+         */
+        private static int capacityFor (int size) {
+            return Integer.highestOneBit (Math.max (2, size));
+        }
+
+        /**
+         * Empties the table and resets the counters, so it can be used for another instance.
+         */
+        private void clear () {
+            Arrays.fill (depths, 0);
+            hits = 0;
+            misses = 0;
+            stores = 0;
+            evictions = 0;
+        }
+
+        private boolean contains (long key, int depth) {
+            final int i = ((int) (key ^ (key >>> 32)) & bucketMask) << 1;
+            if ((keys[i] == key && depths[i] == depth + 1)
+                    || (keys[i + 1] == key && depths[i + 1] == depth + 1)) {
+                hits++;
+                return true;
+            }
+            misses++;
+            return false;
+        }
+
+        private void store (long key, int depth) {
+            final int i = ((int) (key ^ (key >>> 32)) & bucketMask) << 1;
+            stores++;
+            if (depths[i] == 0 || depth + 1 <= depths[i]) {
+                if (depths[i] != 0 && keys[i] != key) {
+                    // The previous shallowest entry moves to the always-replace slot
+                    if (depths[i + 1] != 0) {
+                        evictions++;
+                    }
+                    keys[i + 1] = keys[i];
+                    depths[i + 1] = depths[i];
+                }
+                keys[i] = key;
+                depths[i] = depth + 1;
+            } else {
+                if (depths[i + 1] != 0) {
+                    evictions++;
+                }
+                keys[i + 1] = key;
+                depths[i + 1] = depth + 1;
+            }
+        }
+
+        public int capacity () {
+            return keys.length;
+        }
+
+        public long getHits () {
+            return hits;
+        }
+
+        public long getMisses () {
+            return misses;
+        }
+
+        public long getStores () {
+            return stores;
+        }
+
+        public long getEvictions () {
+            return evictions;
+        }
+
+        @Override
+        public String toString () {
+            return "capacity: " + capacity ()
+                    + ", hits: " + hits
+                    + ", misses: " + misses
+                    + ", stores: " + stores
+                    + ", evictions: " + evictions;
+        }
+
+    }
+
+    private static final class PlacedCar {
+
+        public final Car car;
+        public final boolean rotated;
+        public final Point point;
+        public final int width, height;
+
+        private PlacedCar (Car car, boolean rotated, Point point) {
+            this.car = car;
+            this.rotated = rotated;
+            this.point = new Point (point);
+            this.width = rotated ? car.height : car.width;
+            this.height = rotated ? car.width : car.height;
+        }
+
+        @Override
+        public String toString () {
+            return car + " @ " + point + " "
+                    + (rotated ? "rotated" : "unrotated");
+        }
+
+    }
+
+    private static final class Car {
+
+        public final int id;
+        public final int width, height;
+
+        private Car (int id, int width, int height) {
             this.id = id;
             this.width = width;
             this.height = height;
@@ -376,7 +3037,74 @@ public class Main {
     public static void main (String[] args) {
 
         Main m = new Main (System.in, System.out);
+        boolean printTranspositionTable = false;
+        boolean printStatistics = false;
+        int batchThreads = 0;
+        for (String arg : args) {
+            if (arg.startsWith ("--engine=")) {
+                m.setEngine (Engine.valueOf (arg.substring ("--engine=".length ()).toUpperCase ()));
+            } else if (arg.startsWith ("--tt-size=")) {
+                m.setTranspositionTableSize (Integer.parseInt (arg.substring ("--tt-size=".length ())));
+            } else if (arg.startsWith ("--parallelism=")) {
+                m.setParallelism (Integer.parseInt (arg.substring ("--parallelism=".length ())));
+            } else if (arg.startsWith ("--split-depth=")) {
+                m.setSplitDepth (Integer.parseInt (arg.substring ("--split-depth=".length ())));
+            } else if (arg.equals ("--non-deterministic")) {
+                m.setDeterministic (false);
+            } else if (arg.startsWith ("--candidates=")) {
+                m.setCandidateStrategy (CandidateStrategy.valueOf (arg.substring ("--candidates=".length ()).toUpperCase ()));
+            } else if (arg.startsWith ("--bounds=")) {
+                Set<Bound> bounds = EnumSet.noneOf (Bound.class);
+                for (String bound : arg.substring ("--bounds=".length ()).split (",")) {
+                    if (!bound.isEmpty () && !bound.equalsIgnoreCase ("none")) {
+                        bounds.add (Bound.valueOf (bound.toUpperCase ()));
+                    }
+                }
+                m.setBounds (bounds);
+            } else if (arg.startsWith ("--symmetry=")) {
+                m.setSymmetryBreaking (SymmetryBreaking.valueOf (arg.substring ("--symmetry=".length ()).toUpperCase ()));
+            } else if (arg.startsWith ("--partial=")) {
+                m.setPartialObjective (PartialObjective.valueOf (arg.substring ("--partial=".length ()).toUpperCase ()));
+            } else if (arg.startsWith ("--time-budget=")) {
+                m.setTimeBudgetMillis (Long.parseLong (arg.substring ("--time-budget=".length ())));
+            } else if (arg.startsWith ("--node-budget=")) {
+                m.setNodeBudget (Long.parseLong (arg.substring ("--node-budget=".length ())));
+            } else if (arg.equals ("--progress")) {
+                m.setProgressListener (progress -> {
+                    System.err.println ("PROGRESS: " + progress);
+                    return true;
+                });
+            } else if (arg.equals ("--metrics")) {
+                m.setMetricsEnabled (true);
+            } else if (arg.equals ("--tt-stats")) {
+                printTranspositionTable = true;
+            } else if (arg.equals ("--search-stats")) {
+                printStatistics = true;
+            } else if (arg.equals ("--batch")) {
+                batchThreads = Runtime.getRuntime ().availableProcessors ();
+            } else if (arg.startsWith ("--batch=")) {
+                batchThreads = Integer.parseInt (arg.substring ("--batch=".length ()));
+            }
+        }
+        if (batchThreads > 0) {
+            try {
+                m.solveAll (batchThreads);
+            } catch (IOException exc) {
+                exc.printStackTrace ();
+                System.exit (1);
+            }
+            return;
+        }
         m.solve ();
+        if (printTranspositionTable && m.getTranspositionTable () != null) {
+            System.err.println ("TRANSPOSITION TABLE: " + m.getTranspositionTable ());
+        }
+        if (printStatistics && m.getStatistics () != null) {
+            System.err.println ("SEARCH: " + m.getStatistics ());
+        }
+        if (m.getMetrics () != null) {
+            System.err.println ("METRICS: " + m.getMetrics ().toJson ());
+        }
 
     }
 
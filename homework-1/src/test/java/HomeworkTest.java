@@ -8,6 +8,12 @@ import java.io.PrintStream;
 import java.io.StringBufferInputStream;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
 
 public class HomeworkTest {
 
@@ -30,4 +36,369 @@ public class HomeworkTest {
 
     }
 
+    private String solve (String input, Main.Engine engine) {
+
+        ByteArrayOutputStream programOutputStream = new ByteArrayOutputStream ();
+        Main program = new Main (
+                new ByteArrayInputStream (input.getBytes ()),
+                new PrintStream (programOutputStream)
+        );
+        program.setEngine (engine);
+        program.solve ();
+
+        return new String (programOutputStream.toByteArray ());
+
+    }
+
+    /**
+     * Checks that every car of the input is parked exactly once in the produced grid, as a rectangle
+     * of its own size, either rotated or not.
+     */
+    private void assertValidPacking (String input, String output) {
+
+        Scanner scanner = new Scanner (input);
+        final int height = scanner.nextInt ();
+        final int width = scanner.nextInt ();
+        final int numCars = scanner.nextInt ();
+
+        String[] lines = output.trim ().split ("\n");
+        Assert.assertEquals (height, lines.length);
+        int[][] map = new int[height][];
+        for (int y = 0; y < height; y++) {
+            map[y] = Arrays.stream (lines[y].split ("\t")).mapToInt (Integer::parseInt).toArray ();
+            Assert.assertEquals (width, map[y].length);
+        }
+
+        for (int car = 1; car <= numCars; car++) {
+
+            final int carWidth = scanner.nextInt ();
+            final int carHeight = scanner.nextInt ();
+
+            int minX = width, minY = height, maxX = -1, maxY = -1, cells = 0;
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    if (map[y][x] == car) {
+                        minX = Math.min (minX, x);
+                        minY = Math.min (minY, y);
+                        maxX = Math.max (maxX, x);
+                        maxY = Math.max (maxY, y);
+                        cells++;
+                    }
+                }
+            }
+
+            final int w = maxX - minX + 1;
+            final int h = maxY - minY + 1;
+            Assert.assertEquals ("car " + car + " is not a rectangle", w * h, cells);
+            Assert.assertTrue (
+                    "car " + car + " has the wrong size",
+                    (w == carWidth && h == carHeight) || (w == carHeight && h == carWidth)
+            );
+
+        }
+
+    }
+
+    @Test
+    public void testEnginesProduceSameOutput () throws Exception {
+
+        String input = IOUtils.resourceToString ("/example.in", StandardCharsets.UTF_8);
+        String listOutput = solve (input, Main.Engine.LIST);
+
+        Assert.assertEquals (listOutput, solve (input, Main.Engine.BITBOARD));
+        assertValidPacking (input, solve (input, Main.Engine.DLX));
+
+    }
+
+    @Test
+    public void testTranspositionTableDoesNotChangeSolution () throws Exception {
+
+        String input = IOUtils.resourceToString ("/example.in", StandardCharsets.UTF_8);
+        String expectedOutput = solve (input, Main.Engine.LIST);
+
+        for (int size : new int[] {0, 4, 1 << 10}) {
+
+            ByteArrayOutputStream programOutputStream = new ByteArrayOutputStream ();
+            Main program = new Main (
+                    new ByteArrayInputStream (input.getBytes ()),
+                    new PrintStream (programOutputStream)
+            );
+            program.setTranspositionTableSize (size);
+            program.solve ();
+
+            Assert.assertEquals (expectedOutput, new String (programOutputStream.toByteArray ()));
+            Assert.assertEquals (size == 0, program.getTranspositionTable () == null);
+
+        }
+
+        // Six 2x2 cars do not fit in a 5x5 lot, the search backtracks and meets the same dead ends again
+        StringBuilder infeasibleInput = new StringBuilder ("5 5\n6\n");
+        for (int i = 0; i < 6; i++) {
+            infeasibleInput.append ("2 2\n");
+        }
+
+        for (int size : new int[] {4, 1 << 10}) {
+
+            ByteArrayOutputStream programOutputStream = new ByteArrayOutputStream ();
+            Main program = new Main (
+                    new ByteArrayInputStream (infeasibleInput.toString ().getBytes ()),
+                    new PrintStream (programOutputStream)
+            );
+            program.setTranspositionTableSize (size);
+            program.solve ();
+
+            Assert.assertEquals ("", new String (programOutputStream.toByteArray ()));
+            Main.TranspositionTable table = program.getTranspositionTable ();
+            Assert.assertTrue (table.getHits () > 0);
+            Assert.assertTrue (table.getMisses () > 0);
+            Assert.assertTrue (table.getStores () > 0);
+            if (size == 4) {
+                Assert.assertTrue (table.getEvictions () > 0);
+            } else {
+                Assert.assertEquals (0, table.getEvictions ());
+            }
+
+        }
+
+    }
+
+    @Test
+    public void testDeterministicParallelSearchMatchesSequentialSearch () throws Exception {
+
+        // In the second lot the first subtree of the frontier is a dead end at split depths 1 and 2, the
+        // sequential solution is in subtree 1 and 6 of them, and later subtrees have solutions as well
+        String[] inputs = {
+                IOUtils.resourceToString ("/example.in", StandardCharsets.UTF_8),
+                "4 5\n5\n2 2\n1 2\n2 2\n2 2\n2 3\n"
+        };
+
+        for (String input : inputs) {
+
+            String expectedOutput = solve (input, Main.Engine.BITBOARD);
+            Assert.assertNotEquals ("", expectedOutput);
+
+            for (int splitDepth = 1; splitDepth <= 3; splitDepth++) {
+
+                ByteArrayOutputStream programOutputStream = new ByteArrayOutputStream ();
+                Main program = new Main (
+                        new ByteArrayInputStream (input.getBytes ()),
+                        new PrintStream (programOutputStream)
+                );
+                program.setParallelism (4);
+                program.setSplitDepth (splitDepth);
+                program.solve ();
+
+                Assert.assertEquals (expectedOutput, new String (programOutputStream.toByteArray ()));
+
+            }
+
+        }
+
+    }
+
+    @Test
+    public void testCornerPointCandidatesFindValidPacking () throws Exception {
+
+        String input = IOUtils.resourceToString ("/example.in", StandardCharsets.UTF_8);
+
+        ByteArrayOutputStream programOutputStream = new ByteArrayOutputStream ();
+        Main program = new Main (
+                new ByteArrayInputStream (input.getBytes ()),
+                new PrintStream (programOutputStream)
+        );
+        program.setCandidateStrategy (Main.CandidateStrategy.CORNER_POINTS);
+        program.solve ();
+
+        assertValidPacking (input, new String (programOutputStream.toByteArray ()));
+
+    }
+
+    @Test
+    public void testBoundsPruneInfeasibleLot () throws Exception {
+
+        // Twelve 2x2 cars cover 48 of the 49 cells of a 7x7 lot, but only nine of them fit
+        StringBuilder input = new StringBuilder ("7 7\n12\n");
+        for (int i = 0; i < 12; i++) {
+            input.append ("2 2\n");
+        }
+
+        ByteArrayOutputStream programOutputStream = new ByteArrayOutputStream ();
+        Main program = new Main (
+                new ByteArrayInputStream (input.toString ().getBytes ()),
+                new PrintStream (programOutputStream)
+        );
+        program.solve ();
+
+        Assert.assertEquals ("", new String (programOutputStream.toByteArray ()));
+        Assert.assertTrue (program.getStatistics ().getPrunes (Main.Bound.DEAD_CELLS) > 0);
+
+        String exampleInput = IOUtils.resourceToString ("/example.in", StandardCharsets.UTF_8);
+        Assert.assertEquals (solve (exampleInput, Main.Engine.LIST), solve (exampleInput, Main.Engine.BITBOARD));
+
+    }
+
+    @Test
+    public void testBatchModeKeepsInputOrder () throws Exception {
+
+        String input = IOUtils.resourceToString ("/example.in", StandardCharsets.UTF_8).trim ();
+        String infeasibleInput = "2 2\n1\n3 1";
+        String expectedOutput = solve (input, Main.Engine.BITBOARD);
+
+        String batchInput = input + "\n---\n" + infeasibleInput + "\n---\n" + input + "\n";
+
+        ByteArrayOutputStream programOutputStream = new ByteArrayOutputStream ();
+        Main program = new Main (
+                new ByteArrayInputStream (batchInput.getBytes ()),
+                new PrintStream (programOutputStream)
+        );
+        program.solveAll (2);
+
+        Assert.assertEquals (
+                expectedOutput + "---\n" + "---\n" + expectedOutput,
+                new String (programOutputStream.toByteArray ())
+        );
+
+    }
+
+    @Test
+    public void testBatchWorkerReusesScratchAcrossLotSizes () throws Exception {
+
+        // A single worker solves every lot, smaller lots reuse the scratch of larger ones
+        String[] inputs = {
+                IOUtils.resourceToString ("/example.in", StandardCharsets.UTF_8).trim (),
+                "4\t5\n5\n2\t2\n1\t2\n2\t2\n2\t2\n2\t3",
+                "5 5\n6\n2 2\n2 2\n2 2\n2 2\n2 2\n2 2",
+                "3 2\n2\n1 3\n3 1",
+                IOUtils.resourceToString ("/example.in", StandardCharsets.UTF_8).trim ()
+        };
+
+        StringBuilder batchInput = new StringBuilder ();
+        StringBuilder expectedOutput = new StringBuilder ();
+        for (int i = 0; i < inputs.length; i++) {
+            if (i > 0) {
+                batchInput.append ("---\n");
+                expectedOutput.append ("---\n");
+            }
+            batchInput.append (inputs[i]).append ('\n');
+            expectedOutput.append (solve (inputs[i], Main.Engine.BITBOARD));
+        }
+
+        ByteArrayOutputStream programOutputStream = new ByteArrayOutputStream ();
+        Main program = new Main (
+                new ByteArrayInputStream (batchInput.toString ().getBytes ()),
+                new PrintStream (programOutputStream)
+        );
+        program.solveAll (1);
+
+        Assert.assertEquals (expectedOutput.toString (), new String (programOutputStream.toByteArray ()));
+
+    }
+
+    @Test
+    public void testSymmetryBreakingFindsValidPacking () throws Exception {
+
+        String input = IOUtils.resourceToString ("/example.in", StandardCharsets.UTF_8);
+
+        for (Main.SymmetryBreaking symmetryBreaking : Main.SymmetryBreaking.values ()) {
+
+            ByteArrayOutputStream programOutputStream = new ByteArrayOutputStream ();
+            Main program = new Main (
+                    new ByteArrayInputStream (input.getBytes ()),
+                    new PrintStream (programOutputStream)
+            );
+            program.setSymmetryBreaking (symmetryBreaking);
+            program.solve ();
+
+            assertValidPacking (input, new String (programOutputStream.toByteArray ()));
+
+        }
+
+    }
+
+    @Test
+    public void testAnytimeSearchReturnsBestPartialPacking () throws Exception {
+
+        StringBuilder input = new StringBuilder ("7 7\n12\n");
+        for (int i = 0; i < 12; i++) {
+            input.append ("2 2\n");
+        }
+
+        List<Main.Progress> reports = new ArrayList<> ();
+
+        ByteArrayOutputStream programOutputStream = new ByteArrayOutputStream ();
+        Main program = new Main (
+                new ByteArrayInputStream (input.toString ().getBytes ()),
+                new PrintStream (programOutputStream)
+        );
+        program.setPartialObjective (Main.PartialObjective.CARS);
+        program.setSymmetryBreaking (Main.SymmetryBreaking.IDENTICAL_CARS);
+        program.setProgressListener (reports::add);
+        program.solve ();
+
+        // Nine cars, and every one of them takes a 2x2 square
+        Map<Integer, Integer> cells = new HashMap<> ();
+        for (String line : new String (programOutputStream.toByteArray ()).trim ().split ("\n")) {
+            for (String cell : line.split ("\t")) {
+                cells.merge (Integer.parseInt (cell), 1, Integer::sum);
+            }
+        }
+        Assert.assertEquals (Integer.valueOf (13), cells.remove (-1));
+        Assert.assertEquals (9, cells.size ());
+        Assert.assertTrue (cells.values ().stream ().allMatch (count -> count == 4));
+
+        Main.Progress last = reports.get (reports.size () - 1);
+        Assert.assertEquals (9, last.getBestCars ());
+        Assert.assertEquals (36, last.getBestArea ());
+
+        // The node budget stops the search early, but there still is a partial packing
+        reports.clear ();
+        programOutputStream.reset ();
+        program = new Main (
+                new ByteArrayInputStream (input.toString ().getBytes ()),
+                new PrintStream (programOutputStream)
+        );
+        program.setPartialObjective (Main.PartialObjective.AREA);
+        program.setNodeBudget (100);
+        program.setProgressListener (reports::add);
+        program.solve ();
+
+        Assert.assertEquals (7, new String (programOutputStream.toByteArray ()).trim ().split ("\n").length);
+        Assert.assertEquals (100, reports.get (reports.size () - 1).getVisitedNodes ());
+
+    }
+
+    @Test
+    public void testMetricsMatchSearchStatistics () throws Exception {
+
+        String input = IOUtils.resourceToString ("/example.in", StandardCharsets.UTF_8);
+
+        for (Main.Engine engine : Main.Engine.values ()) {
+
+            ByteArrayOutputStream programOutputStream = new ByteArrayOutputStream ();
+            Main program = new Main (
+                    new ByteArrayInputStream (input.getBytes ()),
+                    new PrintStream (programOutputStream)
+            );
+            program.setEngine (engine);
+            program.setMetricsEnabled (true);
+            program.solve ();
+
+            Main.SearchMetrics metrics = program.getMetrics ();
+            long nodes = 0, placements = 0;
+            for (int depth = 0; depth <= 13; depth++) {
+                nodes += metrics.getNodes (depth);
+                placements += metrics.getPlacements (depth);
+            }
+            // Every car of the example is placed at the first try
+            Assert.assertEquals (13, nodes);
+            Assert.assertEquals (13, placements);
+            if (engine != Main.Engine.LIST) {
+                Assert.assertEquals (program.getStatistics ().getExpandedNodes (), nodes);
+            }
+            Assert.assertTrue (metrics.toJson ().startsWith ("{\"engine\":\"" + engine.name ().toLowerCase () + "\""));
+
+        }
+
+    }
+
 }
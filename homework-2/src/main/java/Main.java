@@ -1,141 +1,324 @@
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class Main {
 
     public static void main (String[] args) throws IOException {
 
-        //Read data from STDIN
-        BufferedReader reader = new BufferedReader (new InputStreamReader (System.in));
-        String line = reader.readLine ();
-        String[] line_list = line.split ("\\s+");
-
-        int nRatings = Integer.valueOf (line_list[0]);
-        int nUsers = Integer.valueOf (line_list[1]);
-        int nBooks = Integer.valueOf (line_list[2]);
-
-        List<User> users = new ArrayList<> ();
-
-        for (int i = 0; i < nUsers; i++) {
-            users.add (new User (i));
+        TrainingController controller = new TrainingController ();
+        int parallelism = Runtime.getRuntime ().availableProcessors ();
+        int annLists = 0;
+        int annProbe = 0;
+        boolean printTrainingStats = false;
+        String loadModel = null;
+        String saveModel = null;
+        String loadRatings = null;
+        String inputFile = null;
+        String saveRatings = null;
+        boolean deltaEncoded = false;
+        boolean recommendOnly = false;
+        boolean lambdaGiven = false;
+        String metricsFile = null;
+        MetricsFormat metricsFormat = MetricsFormat.CSV;
+        IncrementalUpdater updater = new IncrementalUpdater ();
+        // 10% of the ratings are held out for early stopping, --validation=0 trains on all of them
+        controller.setValidationFraction (0.1f);
+        for (String arg : args) {
+            if (arg.startsWith ("--trainer=")) {
+                controller.setTrainingMode (TrainingMode.valueOf (arg.substring ("--trainer=".length ()).toUpperCase ()));
+            } else if (arg.startsWith ("--parallelism=")) {
+                parallelism = Integer.parseInt (arg.substring ("--parallelism=".length ()));
+            } else if (arg.startsWith ("--max-epochs=")) {
+                controller.setMaxEpochs (Integer.parseInt (arg.substring ("--max-epochs=".length ())));
+            } else if (arg.startsWith ("--validation=")) {
+                controller.setValidationFraction (Float.parseFloat (arg.substring ("--validation=".length ())));
+            } else if (arg.startsWith ("--patience=")) {
+                controller.setPatience (Integer.parseInt (arg.substring ("--patience=".length ())));
+            } else if (arg.startsWith ("--learning-rate=")) {
+                controller.setLearningRate (Float.parseFloat (arg.substring ("--learning-rate=".length ())));
+            } else if (arg.startsWith ("--sample-order=")) {
+                controller.setSampleOrder (SampleOrder.valueOf (arg.substring ("--sample-order=".length ()).toUpperCase ()));
+            } else if (arg.startsWith ("--schedule=")) {
+                controller.setSchedule (LearningRateSchedule.valueOf (arg.substring ("--schedule=".length ()).toUpperCase ()));
+            } else if (arg.startsWith ("--decay=")) {
+                controller.setDecay (Float.parseFloat (arg.substring ("--decay=".length ())));
+            } else if (arg.startsWith ("--lambda=")) {
+                controller.setLambda (Float.parseFloat (arg.substring ("--lambda=".length ())));
+                lambdaGiven = true;
+            } else if (arg.startsWith ("--load-model=")) {
+                loadModel = arg.substring ("--load-model=".length ());
+            } else if (arg.startsWith ("--save-model=")) {
+                saveModel = arg.substring ("--save-model=".length ());
+            } else if (arg.startsWith ("--input=")) {
+                inputFile = arg.substring ("--input=".length ());
+            } else if (arg.startsWith ("--load-ratings=")) {
+                loadRatings = arg.substring ("--load-ratings=".length ());
+            } else if (arg.startsWith ("--save-ratings=")) {
+                saveRatings = arg.substring ("--save-ratings=".length ());
+            } else if (arg.equals ("--compact")) {
+                deltaEncoded = true;
+            } else if (arg.equals ("--recommend-only")) {
+                recommendOnly = true;
+            } else if (arg.startsWith ("--update-scope=")) {
+                updater.setScope (UpdateScope.valueOf (arg.substring ("--update-scope=".length ()).toUpperCase ()));
+            } else if (arg.startsWith ("--update-passes=")) {
+                updater.setPasses (Integer.parseInt (arg.substring ("--update-passes=".length ())));
+            } else if (arg.startsWith ("--metrics=")) {
+                metricsFile = arg.substring ("--metrics=".length ());
+            } else if (arg.startsWith ("--metrics-format=")) {
+                metricsFormat = MetricsFormat.valueOf (arg.substring ("--metrics-format=".length ()).toUpperCase ());
+            } else if (arg.equals ("--training-stats")) {
+                printTrainingStats = true;
+            } else if (arg.startsWith ("--ann-lists=")) {
+                annLists = Integer.parseInt (arg.substring ("--ann-lists=".length ()));
+            } else if (arg.startsWith ("--ann-probe=")) {
+                annProbe = Integer.parseInt (arg.substring ("--ann-probe=".length ()));
+            }
         }
 
-        List<Book> books = new ArrayList<> ();
-        for (int i = 0; i < nBooks; i++) {
-            books.add (new Book (i));
+        if (controller.getTrainingMode () == TrainingMode.ALS && !lambdaGiven) {
+            controller.setLambda (AlsTrainer.DEFAULT_LAMBDA);
         }
 
-        List<Rating> ratings = new ArrayList<> ();
-        float alpha = 0.1f;
+        // A saved model is mapped as it is, without reading any new ratings
+        ModelSnapshot snapshot = null;
+        if (loadModel != null) {
+            snapshot = ModelSnapshot.load (Paths.get (loadModel));
+            if (snapshot.getP () == null) {
+                throw new IllegalArgumentException (loadModel + " is a data set without a model");
+            }
+        }
 
-        for (int i = 0; i < nRatings; i++) {
-            line = reader.readLine ();
-            line_list = line.split ("\\s+");
-            int user = Integer.valueOf (line_list[0]);
-            int book = Integer.valueOf (line_list[1]);
-            float score = Float.valueOf (line_list[2]) / 5.0f;
-            ratings.add (new Rating (user, book, score));
-            users.get (user).appendRated (book);
+        //Read data from STDIN, with a saved model these are the new ratings
+        RatingStore ratings;
+        if (recommendOnly && snapshot != null) {
+            ratings = snapshot.getRatings ();
+        } else if (inputFile != null) {
+            // A named file is memory-mapped, and parsed in parallel if it is large
+            try (InputStream input = new FileInputStream (inputFile)) {
+                ratings = RatingsParser.parse (input, parallelism);
+            }
+        } else if (loadRatings != null) {
+            ratings = ModelSnapshot.load (Paths.get (loadRatings)).getRatings ();
+        } else {
+            ratings = RatingsParser.parse (System.in, parallelism);
+        }
+        if (saveRatings != null) {
+            new ModelSnapshot (ratings, null, null).save (Paths.get (saveRatings), deltaEncoded);
         }
+        int nBooks = ratings.getNumBooks ();
 
         int nFeatures = 20;
-        int nEpochs = 1000;
 
         Random rand = new Random ();
-        Float[][] P = new Float[nUsers][nFeatures];
-        Float[][] Q = new Float[nBooks][nFeatures];
-        for (int i = 0; i < P.length; i++) {
-            for (int j = 0; j < P[i].length; j++) {
-                P[i][j] = rand.nextFloat ();
-            }
-        }
-        for (int i = 0; i < Q.length; i++) {
-            for (int j = 0; j < Q[i].length; j++) {
-                Q[i][j] = rand.nextFloat ();
-            }
-        }
+        FactorMatrix P;
+        FactorMatrix Q;
 
-        for (int epoch = 0; epoch < nEpochs; epoch++) {
-            float totalError = 0.0f;
-            for (int i = 0; i < nRatings; i++) {
-                Rating rating = ratings.get (i);
+        final long trainingStart = System.nanoTime ();
+        if (recommendOnly && snapshot != null) {
 
-                int u = rating.getUser ();
-                int b = rating.getBook ();
-                float a = rating.getScore ();
+            P = snapshot.getP ();
+            Q = snapshot.getQ ();
 
-                float p = predict (u, b, nFeatures, P, Q);
-                float err = p - a;
-                float err2 = (float) Math.pow (err, 2.0f);
-                totalError += err2;
+        } else if (snapshot != null) {
 
-                for (int j = 0; j < nFeatures; j++) {
-                    float gradP = -2.0f * err * Q[b][j];
-                    float gradQ = -2.0f * err * P[u][j];
-                    P[u][j] = P[u][j] + alpha * gradP;
-                    Q[b][j] = Q[b][j] + alpha * gradQ;
+            updater.setLearningRate (controller.getLearningRate ());
+            updater.setLambda (controller.getLambda ());
+            snapshot = updater.update (snapshot, ratings, rand);
+            ratings = snapshot.getRatings ();
+            nBooks = ratings.getNumBooks ();
+            P = snapshot.getP ();
+            Q = snapshot.getQ ();
+            if (printTrainingStats) {
+                System.err.printf (
+                        "UPDATE: passes: %d, affected ratings: %d of %d, time: %d ms%n",
+                        updater.getPasses (), updater.getAffectedRatings (), ratings.size (),
+                        (System.nanoTime () - trainingStart) / 1000000L
+                );
+            }
+
+        } else {
+
+            P = new FactorMatrix (ratings.getNumUsers (), nFeatures);
+            Q = new FactorMatrix (nBooks, nFeatures);
+            P.randomize (rand);
+            Q.randomize (rand);
+
+            controller.setParallelism (parallelism);
+            if (metricsFile != null) {
+                try (MetricsSink sink = new MetricsSink (Files.newOutputStream (Paths.get (metricsFile)), metricsFormat)) {
+                    controller.addListener (sink);
+                    controller.train (ratings, P, Q, rand);
                 }
+            } else {
+                controller.train (ratings, P, Q, rand);
             }
+            if (printTrainingStats) {
+                System.err.printf (
+                        "TRAINING: epochs: %d, best epoch: %d, validation rmse: %.5f, time: %d ms%n",
+                        controller.getEpochs (), controller.getBestEpoch (), controller.getBestValidationRmse (),
+                        (System.nanoTime () - trainingStart) / 1000000L
+                );
+            }
+
         }
 
-        for (int u = 0; u < nUsers; u++) {
+        if (saveModel != null) {
+            new ModelSnapshot (ratings, P, Q).save (Paths.get (saveModel), deltaEncoded);
+        }
 
-            List<Integer> rec = new ArrayList<> ();
-            for (int i = 0; i < nBooks; i++) {
-                rec.add (i);
+        List<Book> books = new ArrayList<> ();
+        for (int i = 0; i < nBooks; i++) {
+            books.add (new Book (i));
+        }
+
+        if (annProbe > 0) {
+            if (annLists <= 0) {
+                annLists = (int) Math.ceil (Math.sqrt (nBooks));
             }
-            for (int b : users.get (u).getRated ()) {
-                rec.remove (Integer.valueOf (b));
+            InnerProductIndex index = new InnerProductIndex (Q, annLists, 10, rand);
+            writeApproximateRecommendations (new ApproximateRecommender (index, 10, annProbe), ratings, P, System.out);
+        } else {
+            try (BatchScorer scorer = new BatchScorer (ratings, P, Q, 10, parallelism)) {
+                scorer.writeRecommendations (System.out);
             }
-            final int user = u;
-            rec.sort (new Comparator<Integer> () {
-                @Override
-                public int compare (Integer o1, Integer o2) {
-                    float cmp1 = predict (user, o1, nFeatures, P, Q);
-                    float cmp2 = predict (user, o2, nFeatures, P, Q);
-                    return Float.compare (cmp1, cmp2);
-                }
-            });
+        }
+
+    }
 
-            for (int i = rec.size () - 1; i > rec.size () - 11; i--) {
-                System.out.print (rec.get (i));
-                if (i != rec.size () - 10) {
-                    System.out.print ('\t');
+    /**
+     * Writes the recommendations of every user in the format of {@link BatchScorer}, found with an
+     * approximate index instead of scoring every book.
+     */
+    static void writeApproximateRecommendations (
+            ApproximateRecommender recommender, RatingStore ratings, FactorMatrix P, OutputStream output
+    ) throws IOException {
+        BufferedOutputStream out = new BufferedOutputStream (output, 1 << 16);
+        StringBuilder sb = new StringBuilder ();
+        int[] recommended = new int[10];
+        for (int u = 0; u < P.getRows (); u++) {
+            final int count = recommender.recommend (u, ratings, P, recommended);
+            sb.setLength (0);
+            for (int i = 0; i < count; i++) {
+                if (i > 0) {
+                    sb.append ('\t');
                 }
+                sb.append (recommended[i]);
             }
-            System.out.println ();
+            sb.append ('\n');
+            out.write (sb.toString ().getBytes (StandardCharsets.US_ASCII));
+        }
+        out.flush ();
+    }
+
+    /**
+     * Returns the root mean square error of the predictions for {@code ratings}.
+     */
+    static double rmse (RatingStore ratings, FactorMatrix P, FactorMatrix Q) {
+        final int[] users = ratings.getUsers ();
+        final int[] books = ratings.getBooks ();
+        final float[] scores = ratings.getScores ();
+        double sum = 0.0;
+        for (int i = 0; i < ratings.size (); i++) {
+            final double err = predict (users[i], books[i], P, Q) - scores[i];
+            sum += err * err;
         }
+        return Math.sqrt (sum / Math.max (1, ratings.size ()));
+    }
+
+    static float trainEpoch (RatingStore ratings, float alpha, FactorMatrix P, FactorMatrix Q) {
+        return trainEpoch (ratings, alpha, 0.0f, P, Q);
+    }
 
+    /**
+     * Runs one epoch over the ratings in the order of the store, with L2 regularization of strength
+     * {@code lambda}, and returns the sum of the squared errors.
+     */
+    static float trainEpoch (RatingStore ratings, float alpha, float lambda, FactorMatrix P, FactorMatrix Q) {
+        return trainRange (
+                ratings.getUsers (), ratings.getBooks (), ratings.getScores (), 0, ratings.size (),
+                alpha, lambda, P, Q, new float[P.getCols ()]
+        );
     }
 
-    private static float predict (int user, int book, int nFeatures, Float[][] P, Float[][] Q) {
-        float s = 0.0f;
-        for (int i = 0; i < nFeatures; i++) {
-            s += P[user][i] * Q[book][i];
+    /**
+     * Runs one step of stochastic gradient descent for each of the ratings {@code from} up to (but
+     * not including) {@code to} of the columns, in order, and returns the sum of their squared
+     * errors. The loss of a rating is {@code err^2 + lambda * (|p|^2 + |q|^2)}. {@code oldP} is
+     * scratch space for one row of {@code P}.
+     */
+    static float trainRange (
+            int[] users, int[] books, float[] scores, int from, int to,
+            float alpha, float lambda, FactorMatrix P, FactorMatrix Q, float[] oldP
+    ) {
+        final int nFeatures = P.getCols ();
+        final float[] p = P.getData ();
+        final float[] q = Q.getData ();
+
+        float totalError = 0.0f;
+        for (int i = from; i < to; i++) {
+            final int pOffset = P.offset (users[i]);
+            final int qOffset = Q.offset (books[i]);
+            float a = scores[i];
+
+            float err = FactorMatrix.dot (p, pOffset, q, qOffset, nFeatures) - a;
+            totalError += err * err;
+
+            // The gradient of the loss is 2 * (err * q + lambda * p) for the user, and
+            // 2 * (err * p + lambda * q) for the book, both are taken at the factors before the update
+            final float step = -2.0f * alpha * err;
+            final float shrink = 1.0f - 2.0f * alpha * lambda;
+            System.arraycopy (p, pOffset, oldP, 0, nFeatures);
+            FactorMatrix.axpby (step, q, qOffset, shrink, p, pOffset, nFeatures);
+            FactorMatrix.axpby (step, oldP, 0, shrink, q, qOffset, nFeatures);
         }
-        return s;
+        return totalError;
+    }
+
+    private static float predict (int user, int book, FactorMatrix P, FactorMatrix Q) {
+        return FactorMatrix.dot (P.getData (), P.offset (user), Q.getData (), Q.offset (book), P.getCols ());
     }
 
-    private float keyFunction (int u, int book, int nFeature, Float[][] P, Float[][] Q) {
-        return predict (u, book, nFeature, P, Q);
+    private float keyFunction (int u, int book, FactorMatrix P, FactorMatrix Q) {
+        return predict (u, book, P, Q);
     }
 
 }
 
-class User {
+class Book {
 
     private int id;
 
-    private List<Integer> rated;
-
-    public User (int id) {
+    public Book (int id) {
         this.id = id;
-        this.rated = new ArrayList<> ();
     }
 
     public int getId () {
@@ -146,72 +329,3030 @@ class User {
         this.id = id;
     }
 
-    public List<Integer> getRated () {
-        return rated;
+}
+
+/**
+ * How the epochs of the training are run.
+ */
+enum TrainingMode {
+
+    /**
+     * One thread visits the ratings in input order.
+     */
+    SEQUENTIAL,
+
+    /**
+     * The ratings are split into one contiguous shard per thread, and the threads update the
+     * shared factors without any locking (Hogwild!). Two threads may update the same row at the
+     * same time, then one of the updates is partially lost; with sparse ratings this is rare
+     * enough not to hurt convergence, but the result depends on the scheduling of the threads.
+     */
+    HOGWILD,
+
+    /**
+     * The users and the books are both split into one block per thread, and an epoch is run as a
+     * series of strata (DSGD). In each stratum every thread trains the ratings of a different
+     * user block and a different book block, so no two threads ever touch the same row, and the
+     * result does not depend on the scheduling of the threads.
+     */
+    DSGD,
+
+    /**
+     * Not gradient descent: every epoch is a sweep of alternating least squares, which solves each
+     * row of the factors exactly with the other side fixed, see {@link AlsTrainer}. The learning rate
+     * is not used. It needs far fewer epochs than gradient descent, and the rows of a sweep are
+     * solved in parallel.
+     */
+    ALS
+
+}
+
+/**
+ * How the learning rate changes from one epoch to the next.
+ */
+enum LearningRateSchedule {
+
+    /**
+     * The learning rate stays the same.
+     */
+    CONSTANT,
+
+    /**
+     * The learning rate of epoch {@code t} is {@code alpha / (1 + decay * t)}.
+     */
+    DECAY,
+
+    /**
+     * "Bold driver": after an epoch that lowered the training error the learning rate is raised by
+     * 5%, after one that did not it is halved.
+     */
+    BOLD_DRIVER
+
+}
+
+/**
+ * The order in which an epoch of gradient descent visits the ratings, see
+ * {@link RatingStore#ordered}.
+ */
+enum SampleOrder {
+
+    /**
+     * The order the ratings were read in, the same in every epoch.
+     */
+    INPUT,
+
+    /**
+     * A new random order in every epoch, shuffled in place. With {@link TrainingMode#DSGD} the
+     * ratings are shuffled once, before they are grouped into blocks.
+     */
+    SHUFFLE,
+
+    /**
+     * All the ratings of a user one after the other, so each row of {@code P} is loaded once per
+     * epoch, but the row is pulled towards its books one after the other.
+     */
+    USER_MAJOR,
+
+    /**
+     * All the ratings of a book one after the other, the same way.
+     */
+    BOOK_MAJOR,
+
+    /**
+     * The users and the books are cut into tiles of rows that fit in the cache together, see
+     * {@link RatingStore#TILE_BYTES}, and the ratings are visited tile by tile, in input order within
+     * a tile. The tiles are visited in strata, as the blocks of {@link TrainingMode#DSGD}: stratum
+     * {@code s} is the tile of each user tile {@code u} and book tile {@code (u + s) % bookTiles}, so
+     * the updates of a row are spread over the whole epoch instead of coming all at once, which
+     * converges as well as the input order.
+     */
+    TILED
+
+}
+
+/**
+ * Runs the epochs of stochastic gradient descent until the model stops improving.
+ * <p>
+ * A random part of the ratings is held out for validation. After every epoch the root mean square
+ * error on the held-out ratings is measured, and the training stops once it has not improved by at
+ * least {@code minImprovement} for {@code patience} epochs in a row, or after {@code maxEpochs}
+ * epochs. The factors of the epoch with the best validation error are kept. Without a validation
+ * split every epoch is run, as before.
+ * <p>
+ * The learning rate follows a {@link LearningRateSchedule}, and the factors can be regularized with
+ * an L2 penalty of strength {@code lambda}.
+ */
+class TrainingController {
+
+    private int maxEpochs = 1000;
+    private float validationFraction = 0.0f;
+    private int patience = 10;
+    private double minImprovement = 1e-4;
+
+    private float learningRate = 0.1f;
+    private LearningRateSchedule schedule = LearningRateSchedule.CONSTANT;
+    private float decay = 0.01f;
+    private float lambda = 0.0f;
+
+    private final List<TrainingListener> listeners = new ArrayList<> ();
+
+    private TrainingMode trainingMode = TrainingMode.SEQUENTIAL;
+    private SampleOrder sampleOrder = SampleOrder.INPUT;
+    private int parallelism = 1;
+
+    private int epochs;
+    private int bestEpoch;
+    private double bestValidationRmse = Double.NaN;
+
+    public int getMaxEpochs () {
+        return maxEpochs;
+    }
+
+    public void setMaxEpochs (int maxEpochs) {
+        this.maxEpochs = maxEpochs;
+    }
+
+    public float getValidationFraction () {
+        return validationFraction;
+    }
+
+    /**
+     * Sets the part of the ratings held out for validation, {@code 0} trains on all of them and
+     * turns early stopping off.
+     */
+    public void setValidationFraction (float validationFraction) {
+        this.validationFraction = validationFraction;
+    }
+
+    public int getPatience () {
+        return patience;
+    }
+
+    public void setPatience (int patience) {
+        this.patience = patience;
+    }
+
+    public double getMinImprovement () {
+        return minImprovement;
+    }
+
+    public void setMinImprovement (double minImprovement) {
+        this.minImprovement = minImprovement;
+    }
+
+    public float getLearningRate () {
+        return learningRate;
+    }
+
+    public void setLearningRate (float learningRate) {
+        this.learningRate = learningRate;
+    }
+
+    public LearningRateSchedule getSchedule () {
+        return schedule;
+    }
+
+    public void setSchedule (LearningRateSchedule schedule) {
+        this.schedule = schedule;
+    }
+
+    public float getDecay () {
+        return decay;
+    }
+
+    public void setDecay (float decay) {
+        this.decay = decay;
+    }
+
+    public float getLambda () {
+        return lambda;
+    }
+
+    public void setLambda (float lambda) {
+        this.lambda = lambda;
+    }
+
+    public TrainingMode getTrainingMode () {
+        return trainingMode;
+    }
+
+    public void setTrainingMode (TrainingMode trainingMode) {
+        this.trainingMode = trainingMode;
+    }
+
+    /**
+     * Adds a listener that is told about every epoch. Without listeners nothing is measured.
+     */
+    public void addListener (TrainingListener listener) {
+        listeners.add (listener);
+    }
+
+    public SampleOrder getSampleOrder () {
+        return sampleOrder;
+    }
+
+    public void setSampleOrder (SampleOrder sampleOrder) {
+        this.sampleOrder = sampleOrder;
+    }
+
+    public int getParallelism () {
+        return parallelism;
+    }
+
+    public void setParallelism (int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Returns the number of epochs the last training ran.
+     */
+    public int getEpochs () {
+        return epochs;
+    }
+
+    /**
+     * Returns the number of epochs after which the kept factors were taken.
+     */
+    public int getBestEpoch () {
+        return bestEpoch;
+    }
+
+    /**
+     * Returns the validation error of the kept factors, {@code NaN} without a validation split.
+     */
+    public double getBestValidationRmse () {
+        return bestValidationRmse;
+    }
+
+    /**
+     * Trains {@code P} and {@code Q} on {@code ratings}, the held-out ratings are drawn with
+     * {@code random}.
+     */
+    public void train (RatingStore ratings, FactorMatrix P, FactorMatrix Q, Random random) {
+
+        final RatingStore training;
+        final RatingStore validation;
+        if (validationFraction > 0.0f) {
+            RatingStore[] split = ratings.split (validationFraction, random);
+            training = split[0];
+            validation = split[1];
+        } else {
+            training = ratings;
+            validation = null;
+        }
+
+        final float[] bestP = validation != null ? P.getData ().clone () : null;
+        final float[] bestQ = validation != null ? Q.getData ().clone () : null;
+        bestValidationRmse = validation != null ? Main.rmse (validation, P, Q) : Double.NaN;
+        bestEpoch = 0;
+
+        // ALS solves whole rows at once, the order of the ratings does not matter to it
+        final RatingStore samples = trainingMode != TrainingMode.ALS
+                ? training.ordered (sampleOrder, P.getCols (), random)
+                : training;
+
+        ParallelTrainer trainer = trainingMode == TrainingMode.HOGWILD || trainingMode == TrainingMode.DSGD
+                ? new ParallelTrainer (samples, P, Q, trainingMode, parallelism)
+                : null;
+        AlsTrainer alsTrainer = trainingMode == TrainingMode.ALS
+                ? new AlsTrainer (training, P, Q, parallelism)
+                : null;
+
+        // The factors before the epoch, for the gradient norms of the listeners
+        final float[] previousP = !listeners.isEmpty () ? P.getData ().clone () : null;
+        final float[] previousQ = !listeners.isEmpty () ? Q.getData ().clone () : null;
+
+        try {
+
+            float alpha = learningRate;
+            float previousError = Float.POSITIVE_INFINITY;
+            epochs = 0;
+            while (epochs < maxEpochs) {
+
+                final long epochStart = System.nanoTime ();
+
+                if (schedule == LearningRateSchedule.DECAY) {
+                    alpha = learningRate / (1.0f + decay * epochs);
+                }
+                // With ALS the samples are the training store itself, which may be the caller's. DSGD
+                // trains on its own copy of the samples, grouped by blocks, so it shuffles that one
+                if (sampleOrder == SampleOrder.SHUFFLE && epochs > 0) {
+                    if (trainingMode == TrainingMode.DSGD) {
+                        trainer.shuffleBlocks (random);
+                    } else if (alsTrainer == null) {
+                        samples.shuffle (random);
+                    }
+                }
+                final float epochAlpha = alpha;
+
+                final float totalError;
+                if (alsTrainer != null) {
+                    totalError = alsTrainer.sweep (lambda);
+                } else if (trainer != null) {
+                    totalError = trainer.trainEpoch (alpha, lambda);
+                } else {
+                    totalError = Main.trainEpoch (samples, alpha, lambda, P, Q);
+                }
+                epochs++;
+                final long epochNanos = System.nanoTime () - epochStart;
+
+                if (schedule == LearningRateSchedule.BOLD_DRIVER) {
+                    alpha = totalError < previousError ? alpha * 1.05f : alpha * 0.5f;
+                }
+                previousError = totalError;
+
+                final double validationRmse = validation != null ? Main.rmse (validation, P, Q) : Double.NaN;
+
+                if (previousP != null) {
+                    final float stepSize = alsTrainer != null ? 1.0f : epochAlpha;
+                    EpochMetrics metrics = new EpochMetrics (
+                            epochs, alsTrainer != null ? Float.NaN : epochAlpha,
+                            Math.sqrt (totalError / Math.max (1, samples.size ())), validationRmse,
+                            epochNanos, samples.size (),
+                            advance (previousP, P.getData ()) / stepSize, advance (previousQ, Q.getData ()) / stepSize
+                    );
+                    for (TrainingListener listener : listeners) {
+                        listener.epochFinished (metrics);
+                    }
+                }
+
+                if (validation == null) {
+                    continue;
+                }
+
+                if (validationRmse < bestValidationRmse - minImprovement) {
+                    bestValidationRmse = validationRmse;
+                    bestEpoch = epochs;
+                    System.arraycopy (P.getData (), 0, bestP, 0, bestP.length);
+                    System.arraycopy (Q.getData (), 0, bestQ, 0, bestQ.length);
+                } else if (epochs - bestEpoch >= patience) {
+                    break;
+                }
+
+            }
+
+        } finally {
+            if (trainer != null) {
+                trainer.close ();
+            }
+            if (alsTrainer != null) {
+                alsTrainer.close ();
+            }
+        }
+
+        if (validation != null) {
+            System.arraycopy (bestP, 0, P.getData (), 0, bestP.length);
+            System.arraycopy (bestQ, 0, Q.getData (), 0, bestQ.length);
+        } else {
+            bestEpoch = epochs;
+        }
+
     }
 
-    public void setRated (List<Integer> rated) {
-        this.rated = rated;
+    /**
+     * Returns the distance of {@code previous} and {@code current}, and copies {@code current} into
+     * {@code previous}, in one pass over the two.
+     */
+    private static double advance (float[] previous, float[] current) {
+        double sum = 0.0;
+        for (int i = 0; i < previous.length; i++) {
+            final float d = current[i] - previous[i];
+            sum += d * d;
+            previous[i] = current[i];
+        }
+        return Math.sqrt (sum);
+    }
+
+}
+
+/**
+ * Is told about every epoch a {@link TrainingController} runs.
+ */
+interface TrainingListener {
+
+    void epochFinished (EpochMetrics metrics);
+
+}
+
+/**
+ * What happened in one epoch of the training.
+ * <p>
+ * The gradient norms are measured from the factors before and after the epoch, so the training
+ * loops themselves do no extra work for them: the norm of the change of {@code P}, and of
+ * {@code Q}, divided by the learning rate, which is the norm of the sum of the gradient steps of the
+ * epoch. For {@link TrainingMode#ALS}, which has no learning rate, they are the norms of the changes.
+ */
+class EpochMetrics {
+
+    private final int epoch;
+    private final float learningRate;
+    private final double trainingRmse;
+    private final double validationRmse;
+    private final long nanos;
+    private final int samples;
+    private final double pGradientNorm;
+    private final double qGradientNorm;
+
+    public EpochMetrics (
+            int epoch, float learningRate, double trainingRmse, double validationRmse, long nanos, int samples,
+            double pGradientNorm, double qGradientNorm
+    ) {
+        this.epoch = epoch;
+        this.learningRate = learningRate;
+        this.trainingRmse = trainingRmse;
+        this.validationRmse = validationRmse;
+        this.nanos = nanos;
+        this.samples = samples;
+        this.pGradientNorm = pGradientNorm;
+        this.qGradientNorm = qGradientNorm;
+    }
+
+    /**
+     * Returns the number of the epoch, from 1.
+     */
+    public int getEpoch () {
+        return epoch;
+    }
+
+    /**
+     * Returns the learning rate of the epoch, {@code NaN} for {@link TrainingMode#ALS}.
+     */
+    public float getLearningRate () {
+        return learningRate;
+    }
+
+    /**
+     * Returns the root mean square error of the training ratings, as measured while training them,
+     * so for gradient descent each rating is measured before its own step.
+     */
+    public double getTrainingRmse () {
+        return trainingRmse;
+    }
+
+    /**
+     * Returns the error of the held-out ratings after the epoch, {@code NaN} without a validation split.
+     */
+    public double getValidationRmse () {
+        return validationRmse;
+    }
+
+    /**
+     * Returns the wall time of the epoch, including the shuffle of {@link SampleOrder#SHUFFLE}, but
+     * not the validation.
+     */
+    public long getNanos () {
+        return nanos;
+    }
+
+    public int getSamples () {
+        return samples;
+    }
+
+    public double getSamplesPerSecond () {
+        return samples * 1e9 / Math.max (1L, nanos);
+    }
+
+    public double getPGradientNorm () {
+        return pGradientNorm;
     }
 
-    public void appendRated (int rate) {
-        this.rated.add (rate);
+    public double getQGradientNorm () {
+        return qGradientNorm;
     }
 
 }
 
-class Book {
+/**
+ * The formats a {@link MetricsSink} can write.
+ */
+enum MetricsFormat {
 
-    private int id;
+    /**
+     * A header line, then one line of comma separated values per epoch.
+     */
+    CSV,
 
-    public Book (int id) {
-        this.id = id;
+    /**
+     * One JSON object per line and epoch (JSON Lines), with {@code null} for the missing values.
+     */
+    JSON
+
+}
+
+/**
+ * Writes the metrics of every epoch to a stream, one line per epoch, flushed after every line so
+ * the file can be followed while the training runs.
+ */
+class MetricsSink implements TrainingListener, AutoCloseable {
+
+    private static final String[] COLUMNS = {
+            "epoch", "learning_rate", "training_rmse", "validation_rmse", "time_ms", "samples_per_second",
+            "p_gradient_norm", "q_gradient_norm"
+    };
+
+    private final Writer writer;
+    private final MetricsFormat format;
+
+    public MetricsSink (OutputStream output, MetricsFormat format) throws IOException {
+        this.writer = new BufferedWriter (new OutputStreamWriter (output, StandardCharsets.UTF_8));
+        this.format = format;
+        if (format == MetricsFormat.CSV) {
+            writer.write (String.join (",", COLUMNS));
+            writer.write ('\n');
+        }
     }
 
-    public int getId () {
-        return id;
+    @Override
+    public void epochFinished (EpochMetrics metrics) {
+
+        final String[] values = {
+                Integer.toString (metrics.getEpoch ()),
+                number (metrics.getLearningRate ()),
+                number (metrics.getTrainingRmse ()),
+                number (metrics.getValidationRmse ()),
+                number (metrics.getNanos () / 1e6),
+                number (metrics.getSamplesPerSecond ()),
+                number (metrics.getPGradientNorm ()),
+                number (metrics.getQGradientNorm ())
+        };
+
+        StringBuilder line = new StringBuilder ();
+        for (int i = 0; i < values.length; i++) {
+            if (format == MetricsFormat.CSV) {
+                line.append (i > 0 ? "," : "").append (values[i]);
+            } else {
+                line.append (i > 0 ? "," : "{").append ('"').append (COLUMNS[i]).append ("\":")
+                        .append (values[i].isEmpty () ? "null" : values[i]);
+            }
+        }
+        if (format == MetricsFormat.JSON) {
+            line.append ('}');
+        }
+
+        try {
+            writer.write (line.append ('\n').toString ());
+            writer.flush ();
+        } catch (IOException exc) {
+            throw new UncheckedIOException (exc);
+        }
+
     }
 
-    public void setId (int id) {
-        this.id = id;
+    /**
+     * Formats a value, an empty string stands for {@code NaN} and the infinities of a diverging run,
+     * which JSON has no numbers for. {@link Double#toString} does not depend on the locale, and its
+     * output for a finite value is a valid JSON number.
+     */
+    private static String number (double value) {
+        return Double.isNaN (value) || Double.isInfinite (value) ? "" : Double.toString (value);
+    }
+
+    private static String number (float value) {
+        return Float.isNaN (value) || Float.isInfinite (value) ? "" : Float.toString (value);
+    }
+
+    @Override
+    public void close () throws IOException {
+        writer.close ();
     }
 
 }
 
-class Rating {
+/**
+ * Trains the factors on a pool of threads, see {@link TrainingMode#HOGWILD} and
+ * {@link TrainingMode#DSGD}. The pool lives as long as the trainer, so it should be closed once
+ * the training is done.
+ */
+class ParallelTrainer implements AutoCloseable {
+
+    private final FactorMatrix P;
+    private final FactorMatrix Q;
+    private final TrainingMode mode;
+    private final int parallelism;
+    private final ExecutorService executor;
+
+    /**
+     * The ratings, in the order the threads visit them: for Hogwild! the input order, for DSGD
+     * grouped by blocks, block {@code (userBlock, bookBlock)} being the ratings
+     * {@code blockOffsets[userBlock * parallelism + bookBlock]} up to
+     * {@code blockOffsets[userBlock * parallelism + bookBlock + 1]}.
+     */
+    private final int[] users;
+    private final int[] books;
+    private final float[] scores;
+    private final int[] blockOffsets;
+
+    /**
+     * One row of scratch space per thread.
+     */
+    private final float[][] oldP;
+
+    public ParallelTrainer (RatingStore ratings, FactorMatrix P, FactorMatrix Q, TrainingMode mode, int parallelism) {
+
+        if (mode == TrainingMode.SEQUENTIAL) {
+            throw new IllegalArgumentException ("The sequential mode is trained by Main.trainEpoch");
+        }
+        if (mode == TrainingMode.ALS) {
+            throw new IllegalArgumentException ("ALS is trained by AlsTrainer");
+        }
+
+        this.P = P;
+        this.Q = Q;
+        this.mode = mode;
+        this.parallelism = Math.max (1, parallelism);
+        this.oldP = new float[this.parallelism][P.getCols ()];
+
+        final int nRatings = ratings.size ();
+        if (mode == TrainingMode.HOGWILD) {
+            this.users = ratings.getUsers ();
+            this.books = ratings.getBooks ();
+            this.scores = ratings.getScores ();
+            this.blockOffsets = new int[this.parallelism + 1];
+            for (int shard = 0; shard <= this.parallelism; shard++) {
+                blockOffsets[shard] = (int) ((long) nRatings * shard / this.parallelism);
+            }
+        } else {
+            this.users = new int[nRatings];
+            this.books = new int[nRatings];
+            this.scores = new float[nRatings];
+            this.blockOffsets = new int[this.parallelism * this.parallelism + 1];
+            groupByBlocks (ratings);
+        }
+
+        this.executor = Executors.newFixedThreadPool (this.parallelism, runnable -> {
+            Thread thread = new Thread (runnable, "sgd-worker");
+            thread.setDaemon (true);
+            return thread;
+        });
+
+    }
+
+    /**
+     * Copies the ratings into {@link #users}, {@link #books} and {@link #scores} with a counting
+     * sort by block, keeping the input order within each block.
+     */
+    private void groupByBlocks (RatingStore ratings) {
+
+        final int nRatings = ratings.size ();
+        final int[] ratingUsers = ratings.getUsers ();
+        final int[] ratingBooks = ratings.getBooks ();
+        final float[] ratingScores = ratings.getScores ();
+
+        final int[] block = new int[nRatings];
+        for (int i = 0; i < nRatings; i++) {
+            block[i] = blockOf (ratingUsers[i], ratings.getNumUsers ()) * parallelism
+                    + blockOf (ratingBooks[i], ratings.getNumBooks ());
+            blockOffsets[block[i] + 1]++;
+        }
+        for (int b = 0; b < parallelism * parallelism; b++) {
+            blockOffsets[b + 1] += blockOffsets[b];
+        }
+
+        final int[] next = Arrays.copyOf (blockOffsets, parallelism * parallelism);
+        for (int i = 0; i < nRatings; i++) {
+            final int j = next[block[i]]++;
+            users[j] = ratingUsers[i];
+            books[j] = ratingBooks[i];
+            scores[j] = ratingScores[i];
+        }
 
-    private int user;
-    private int book;
-    private float score;
+    }
 
-    public Rating (int user, int book, float score) {
-        this.user = user;
-        this.book = book;
-        this.score = score;
+    /**
+     * Shuffles the ratings of every DSGD block in place, with a Fisher-Yates shuffle like
+     * {@link RatingStore#shuffle(Random)}. The blocks stay where they are.
+     */
+    public void shuffleBlocks (Random random) {
+        for (int b = 0; b + 1 < blockOffsets.length; b++) {
+            for (int i = blockOffsets[b + 1] - 1; i > blockOffsets[b]; i--) {
+                final int j = blockOffsets[b] + random.nextInt (i - blockOffsets[b] + 1);
+                final int user = users[i];
+                users[i] = users[j];
+                users[j] = user;
+                final int book = books[i];
+                books[i] = books[j];
+                books[j] = book;
+                final float score = scores[i];
+                scores[i] = scores[j];
+                scores[j] = score;
+            }
+        }
     }
 
-    public int getUser () {
-        return user;
+    private int blockOf (int id, int count) {
+        return (int) ((long) id * parallelism / Math.max (count, 1));
     }
 
-    public void setUser (int user) {
-        this.user = user;
+    /**
+     * Runs one epoch on the pool, and returns the sum of the squared errors of the ratings. For
+     * DSGD the partial sums are added in a fixed order, so the sum is reproducible as well.
+     */
+    public float trainEpoch (float alpha) {
+        return trainEpoch (alpha, 0.0f);
     }
 
-    public int getBook () {
-        return book;
+    /**
+     * Runs one epoch with L2 regularization of strength {@code lambda}, see
+     * {@link Main#trainRange}.
+     */
+    public float trainEpoch (float alpha, float lambda) {
+
+        if (mode == TrainingMode.HOGWILD) {
+            return sum (run (alpha, lambda, 0));
+        }
+
+        float totalError = 0.0f;
+        for (int stratum = 0; stratum < parallelism; stratum++) {
+            totalError += sum (run (alpha, lambda, stratum));
+        }
+        return totalError;
+
     }
 
-    public void setBook (int book) {
-        this.book = book;
+    /**
+     * Trains one shard per thread, for DSGD thread {@code t} trains the block of user block
+     * {@code t} and book block {@code (t + stratum) % parallelism}. Returns the errors of the threads.
+     */
+    private float[] run (float alpha, float lambda, int stratum) {
+
+        List<Callable<Float>> tasks = new ArrayList<> (parallelism);
+        for (int t = 0; t < parallelism; t++) {
+            final int block = mode == TrainingMode.HOGWILD
+                    ? t
+                    : t * parallelism + (t + stratum) % parallelism;
+            final float[] scratch = oldP[t];
+            tasks.add (() -> Main.trainRange (
+                    users, books, scores, blockOffsets[block], blockOffsets[block + 1], alpha, lambda, P, Q, scratch
+            ));
+        }
+
+        float[] errors = new float[parallelism];
+        try {
+            List<Future<Float>> results = executor.invokeAll (tasks);
+            for (int t = 0; t < parallelism; t++) {
+                errors[t] = results.get (t).get ();
+            }
+        } catch (InterruptedException exc) {
+            Thread.currentThread ().interrupt ();
+            throw new IllegalStateException ("Interrupted while training", exc);
+        } catch (ExecutionException exc) {
+            throw new IllegalStateException ("A training thread failed", exc.getCause ());
+        }
+        return errors;
+
     }
 
-    public float getScore () {
-        return score;
+    private static float sum (float[] values) {
+        float sum = 0.0f;
+        for (float value : values) {
+            sum += value;
+        }
+        return sum;
     }
 
-    public void setScore (float score) {
-        this.score = score;
+    @Override
+    public void close () {
+        executor.shutdownNow ();
     }
 
-}
\ No newline at end of file
+}
+
+/**
+ * Trains the factors with alternating least squares, see {@link TrainingMode#ALS}.
+ * <p>
+ * A sweep first solves every row of {@code P} with {@code Q} fixed, then every row of {@code Q}
+ * with the new {@code P} fixed. With the other side fixed, the row {@code p} of a user who rated
+ * the books {@code q_1 .. q_n} with the scores {@code r_1 .. r_n} minimizes
+ * {@code sum (r_i - p.q_i)^2 + lambda * n * |p|^2}, so it is the solution of the ridge system
+ * {@code (sum q_i q_i^T + lambda * n * I) p = sum r_i q_i} of {@code nFeatures} equations, solved
+ * with a Cholesky decomposition. The penalty grows with the number of ratings of the row
+ * (weighted-lambda regularization), so {@code lambda} means roughly the same as for
+ * {@link Main#trainRange}. Rows without ratings are left as they are.
+ * <p>
+ * The rows of one side do not depend on each other, so they are solved on a pool of threads, each
+ * thread taking a contiguous range of rows with about the same number of ratings. The result does
+ * not depend on the number of threads. The pool lives as long as the trainer, so it should be
+ * closed once the training is done.
+ */
+class AlsTrainer implements AutoCloseable {
+
+    /**
+     * Added to the diagonal, so that the systems stay positive definite without regularization.
+     */
+    static final double MIN_RIDGE = 1e-6;
+
+    /**
+     * The regularization used from the command line when none is given. Without it every row fits its
+     * ratings exactly, which overfits the users and books with few ratings.
+     */
+    static final float DEFAULT_LAMBDA = 0.05f;
+
+    private final FactorMatrix P;
+    private final FactorMatrix Q;
+    private final int parallelism;
+    private final ExecutorService executor;
+
+    /**
+     * The ratings by user: the books and scores of user {@code u} are {@code userBooks} and
+     * {@code userScores} from {@code userOffsets[u]} up to {@code userOffsets[u + 1]}.
+     */
+    private final int[] userOffsets;
+    private final int[] userBooks;
+    private final float[] userScores;
+
+    /**
+     * The ratings by book, the same way.
+     */
+    private final int[] bookOffsets;
+    private final int[] bookUsers;
+    private final float[] bookScores;
+
+    /**
+     * One system, {@code nFeatures * nFeatures} and {@code nFeatures} wide, of scratch space per thread.
+     */
+    private final double[][] systems;
+    private final double[][] rightHandSides;
+
+    public AlsTrainer (RatingStore ratings, FactorMatrix P, FactorMatrix Q, int parallelism) {
+
+        this.P = P;
+        this.Q = Q;
+        this.parallelism = Math.max (1, parallelism);
+
+        final int nRatings = ratings.size ();
+        final int nFeatures = P.getCols ();
+        final float[] scores = ratings.getScores ();
+
+        this.userOffsets = ratings.getUserOffsets ();
+        this.userBooks = ratings.getRatedBooks ();
+        this.userScores = new float[nRatings];
+        final int[] ratedPositions = ratings.getRatedPositions ();
+        for (int k = 0; k < nRatings; k++) {
+            userScores[k] = scores[ratedPositions[k]];
+        }
+
+        final int[] users = ratings.getUsers ();
+        final int[] books = ratings.getBooks ();
+        this.bookOffsets = new int[ratings.getNumBooks () + 1];
+        this.bookUsers = new int[nRatings];
+        this.bookScores = new float[nRatings];
+        for (int i = 0; i < nRatings; i++) {
+            bookOffsets[books[i] + 1]++;
+        }
+        for (int b = 0; b < ratings.getNumBooks (); b++) {
+            bookOffsets[b + 1] += bookOffsets[b];
+        }
+        final int[] next = Arrays.copyOf (bookOffsets, ratings.getNumBooks ());
+        for (int i = 0; i < nRatings; i++) {
+            final int j = next[books[i]]++;
+            bookUsers[j] = users[i];
+            bookScores[j] = scores[i];
+        }
+
+        this.systems = new double[this.parallelism][nFeatures * nFeatures];
+        this.rightHandSides = new double[this.parallelism][nFeatures];
+
+        this.executor = Executors.newFixedThreadPool (this.parallelism, runnable -> {
+            Thread thread = new Thread (runnable, "als-worker");
+            thread.setDaemon (true);
+            return thread;
+        });
+
+    }
+
+    /**
+     * Runs one sweep, and returns the sum of the squared errors of the ratings after it.
+     */
+    public float sweep (float lambda) {
+        run (P, Q, userOffsets, userBooks, userScores, lambda);
+        return run (Q, P, bookOffsets, bookUsers, bookScores, lambda);
+    }
+
+    /**
+     * Solves every row of {@code target} with {@code fixed} fixed, on the pool. Returns the sum of
+     * the squared errors with the new rows, added in a fixed order.
+     */
+    private float run (
+            FactorMatrix target, FactorMatrix fixed, int[] offsets, int[] others, float[] rowScores, float lambda
+    ) {
+
+        final int nRows = offsets.length - 1;
+        final int nRatings = offsets[nRows];
+
+        List<Callable<Float>> tasks = new ArrayList<> (parallelism);
+        int from = 0;
+        for (int t = 0; t < parallelism; t++) {
+            // The rows up to the first one that starts at or after the share of the ratings of the thread
+            int to = nRows;
+            if (t < parallelism - 1) {
+                final int share = (int) ((long) nRatings * (t + 1) / parallelism);
+                to = Arrays.binarySearch (offsets, from, nRows, share);
+                to = to >= 0 ? to : -to - 1;
+            }
+            final int rowsFrom = from;
+            final int rowsTo = to;
+            final double[] a = systems[t];
+            final double[] b = rightHandSides[t];
+            tasks.add (() -> solveRows (target, fixed, offsets, others, rowScores, rowsFrom, rowsTo, lambda, a, b));
+            from = to;
+        }
+
+        float totalError = 0.0f;
+        try {
+            List<Future<Float>> results = executor.invokeAll (tasks);
+            for (Future<Float> result : results) {
+                totalError += result.get ();
+            }
+        } catch (InterruptedException exc) {
+            Thread.currentThread ().interrupt ();
+            throw new IllegalStateException ("Interrupted while training", exc);
+        } catch (ExecutionException exc) {
+            throw new IllegalStateException ("A training thread failed", exc.getCause ());
+        }
+        return totalError;
+
+    }
+
+    /**
+     * Solves the rows {@code from} up to (but not including) {@code to} of {@code target}, and
+     * returns the sum of the squared errors of their ratings with the new rows. {@code a} and
+     * {@code b} are scratch space for one system.
+     */
+    static float solveRows (
+            FactorMatrix target, FactorMatrix fixed, int[] offsets, int[] others, float[] rowScores,
+            int from, int to, float lambda, double[] a, double[] b
+    ) {
+
+        final int n = target.getCols ();
+        final float[] targetData = target.getData ();
+        final float[] fixedData = fixed.getData ();
+        final double[] x = new double[4 * n];
+        final double[] score = new double[4];
+        float totalError = 0.0f;
+
+        for (int row = from; row < to; row++) {
+
+            final int ratingsFrom = offsets[row];
+            final int ratingsTo = offsets[row + 1];
+            if (ratingsFrom == ratingsTo) {
+                continue;
+            }
+
+            // Only the lower triangle is accumulated, the decomposition does not read the rest
+            Arrays.fill (a, 0.0);
+            Arrays.fill (b, 0.0);
+            // Four ratings at a time, so every element of the system is loaded and stored once per four
+            // rank one updates, the missing ones of the last group are zero rows
+            for (int k = ratingsFrom; k < ratingsTo; k += 4) {
+                for (int g = 0; g < 4; g++) {
+                    final int xg = g * n;
+                    if (k + g < ratingsTo) {
+                        final int q = fixed.offset (others[k + g]);
+                        for (int i = 0; i < n; i++) {
+                            x[xg + i] = fixedData[q + i];
+                        }
+                        score[g] = rowScores[k + g];
+                    } else {
+                        Arrays.fill (x, xg, xg + n, 0.0);
+                        score[g] = 0.0;
+                    }
+                }
+                for (int i = 0; i < n; i++) {
+                    final double x0 = x[i];
+                    final double x1 = x[n + i];
+                    final double x2 = x[2 * n + i];
+                    final double x3 = x[3 * n + i];
+                    final int ai = i * n;
+                    for (int j = 0; j <= i; j++) {
+                        a[ai + j] += x0 * x[j] + x1 * x[n + j] + x2 * x[2 * n + j] + x3 * x[3 * n + j];
+                    }
+                    b[i] += score[0] * x0 + score[1] * x1 + score[2] * x2 + score[3] * x3;
+                }
+            }
+            final double ridge = (double) lambda * (ratingsTo - ratingsFrom) + MIN_RIDGE;
+            for (int i = 0; i < n; i++) {
+                a[i * n + i] += ridge;
+            }
+
+            if (!solveCholesky (a, b, n)) {
+                continue;
+            }
+            final int p = target.offset (row);
+            for (int i = 0; i < n; i++) {
+                targetData[p + i] = (float) b[i];
+            }
+
+            for (int k = ratingsFrom; k < ratingsTo; k++) {
+                final float err = FactorMatrix.dot (targetData, p, fixedData, fixed.offset (others[k]), n) - rowScores[k];
+                totalError += err * err;
+            }
+
+        }
+
+        return totalError;
+
+    }
+
+    /**
+     * Solves {@code a x = b} in place for a symmetric positive definite {@code n * n} matrix given by
+     * its lower triangle, row-major: {@code a} is overwritten by its Cholesky factor and {@code b}
+     * by {@code x}. Returns {@code false}, leaving {@code b} undefined, if the matrix is not positive
+     * definite.
+     */
+    static boolean solveCholesky (double[] a, double[] b, int n) {
+
+        for (int i = 0; i < n; i++) {
+            final int ai = i * n;
+            for (int j = 0; j <= i; j++) {
+                final int aj = j * n;
+                double sum = a[ai + j];
+                for (int k = 0; k < j; k++) {
+                    sum -= a[ai + k] * a[aj + k];
+                }
+                if (i == j) {
+                    if (sum <= 0.0) {
+                        return false;
+                    }
+                    a[ai + i] = Math.sqrt (sum);
+                } else {
+                    a[ai + j] = sum / a[aj + j];
+                }
+            }
+        }
+
+        // L y = b, then L^T x = y
+        for (int i = 0; i < n; i++) {
+            double sum = b[i];
+            for (int k = 0; k < i; k++) {
+                sum -= a[i * n + k] * b[k];
+            }
+            b[i] = sum / a[i * n + i];
+        }
+        for (int i = n - 1; i >= 0; i--) {
+            double sum = b[i];
+            for (int k = i + 1; k < n; k++) {
+                sum -= a[k * n + i] * b[k];
+            }
+            b[i] = sum / a[i * n + i];
+        }
+        return true;
+
+    }
+
+    @Override
+    public void close () {
+        executor.shutdownNow ();
+    }
+
+}
+
+/**
+ * Finds the books with the highest predicted score among those a user has not rated yet.
+ * <p>
+ * Every book is scored once into a primitive buffer, the rated books are skipped with a bitset,
+ * and the best {@code k} are kept in a {@link TopKHeap}, so a user costs
+ * {@code O(books * (features + log k))}.
+ * <p>
+ * The buffers are reused from one user to the next, so an instance must not be shared between
+ * threads.
+ */
+class TopKRecommender {
+
+    private final int nBooks;
+
+    private final long[] rated;
+    private final float[] scores;
+    private final TopKHeap heap;
+
+    public TopKRecommender (int nBooks, int k) {
+        this.nBooks = nBooks;
+        this.rated = new long[(nBooks + 63) >>> 6];
+        this.scores = new float[nBooks];
+        this.heap = new TopKHeap (k);
+    }
+
+    /**
+     * Writes the (at most {@code k}) recommended books of {@code user} into {@code result}, best
+     * first, and returns their number.
+     */
+    public int recommend (int user, RatingStore ratings, FactorMatrix P, FactorMatrix Q, int[] result) {
+
+        final int nFeatures = P.getCols ();
+        final float[] p = P.getData ();
+        final float[] q = Q.getData ();
+        final int pOffset = P.offset (user);
+        for (int book = 0; book < nBooks; book++) {
+            scores[book] = FactorMatrix.dot (p, pOffset, q, Q.offset (book), nFeatures);
+        }
+
+        final int[] userOffsets = ratings.getUserOffsets ();
+        final int[] ratedBooks = ratings.getRatedBooks ();
+        final int from = userOffsets[user];
+        final int to = userOffsets[user + 1];
+        for (int i = from; i < to; i++) {
+            rated[ratedBooks[i] >>> 6] |= 1L << ratedBooks[i];
+        }
+
+        heap.clear ();
+        for (int book = 0; book < nBooks; book++) {
+            if ((rated[book >>> 6] & (1L << book)) == 0) {
+                heap.offer (book, scores[book]);
+            }
+        }
+
+        for (int i = from; i < to; i++) {
+            rated[ratedBooks[i] >>> 6] = 0L;
+        }
+
+        return heap.drainInto (result);
+
+    }
+
+}
+
+/**
+ * Keeps the best {@code k} of the books offered to it, in a binary min-heap of primitive arrays with
+ * the worst kept book at the root. Books with equal scores are ranked by decreasing id.
+ */
+class TopKHeap {
+
+    private final int k;
+    private final int[] books;
+    private final float[] scores;
+    private int size;
+
+    public TopKHeap (int k) {
+        this.k = k;
+        this.books = new int[k];
+        this.scores = new float[k];
+    }
+
+    public void clear () {
+        size = 0;
+    }
+
+    public int size () {
+        return size;
+    }
+
+    public void offer (int book, float score) {
+
+        if (size < k) {
+            int i = size++;
+            while (i > 0) {
+                final int parent = (i - 1) >>> 1;
+                if (!isWorse (book, score, books[parent], scores[parent])) {
+                    break;
+                }
+                books[i] = books[parent];
+                scores[i] = scores[parent];
+                i = parent;
+            }
+            books[i] = book;
+            scores[i] = score;
+        } else if (k > 0 && isWorse (books[0], scores[0], book, score)) {
+            books[0] = book;
+            scores[0] = score;
+            siftDown ();
+        }
+
+    }
+
+    /**
+     * Writes the kept books into {@code result}, best first, empties the heap and returns the
+     * number of books written.
+     */
+    public int drainInto (int[] result) {
+
+        final int count = size;
+        for (int i = count - 1; i >= 0; i--) {
+            result[i] = books[0];
+            books[0] = books[size - 1];
+            scores[0] = scores[size - 1];
+            size--;
+            siftDown ();
+        }
+        return count;
+
+    }
+
+    private void siftDown () {
+
+        final int book = books[0];
+        final float score = scores[0];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && isWorse (books[child + 1], scores[child + 1], books[child], scores[child])) {
+                child++;
+            }
+            if (!isWorse (books[child], scores[child], book, score)) {
+                break;
+            }
+            books[i] = books[child];
+            scores[i] = scores[child];
+            i = child;
+        }
+        books[i] = book;
+        scores[i] = score;
+
+    }
+
+    private static boolean isWorse (int book, float score, int otherBook, float otherScore) {
+        final int cmp = Float.compare (score, otherScore);
+        return cmp < 0 || (cmp == 0 && book < otherBook);
+    }
+
+}
+
+/**
+ * Recommends books to every user at once, on a pool of threads.
+ * <p>
+ * The users are cut into tiles of {@link #USER_TILE} users, one task each. A task walks the books in
+ * tiles small enough for the book factors of a tile to stay in the L1 cache, and scores every user
+ * of its tile against the whole book tile before moving on, so each row of {@code Q} is loaded
+ * from memory once per user tile instead of once per user. The scores go straight into one
+ * {@link TopKHeap} per user; the rated books are skipped with a cursor into the (sorted) CSR index
+ * of each user, since the books are visited in increasing order.
+ * <p>
+ * Every task formats the lines of its users into its own buffer, and the buffers are written to the
+ * output in user order.
+ */
+class BatchScorer implements AutoCloseable {
+
+    static final int USER_TILE = 64;
+
+    /**
+     * The size of the book factors of one book tile, in floats: 16 KiB, half of a typical L1 cache.
+     */
+    static final int BOOK_TILE_FLOATS = 4096;
+
+    private final RatingStore ratings;
+    private final FactorMatrix P;
+    private final FactorMatrix Q;
+    private final int k;
+    private final int parallelism;
+    private final int bookTile;
+    private final ExecutorService executor;
+
+    public BatchScorer (RatingStore ratings, FactorMatrix P, FactorMatrix Q, int k, int parallelism) {
+        this.ratings = ratings;
+        this.P = P;
+        this.Q = Q;
+        this.k = k;
+        this.parallelism = Math.max (1, parallelism);
+        this.bookTile = Math.max (16, BOOK_TILE_FLOATS / Math.max (1, Q.getCols ()));
+        this.executor = Executors.newFixedThreadPool (this.parallelism, runnable -> {
+            Thread thread = new Thread (runnable, "scoring-worker");
+            thread.setDaemon (true);
+            return thread;
+        });
+    }
+
+    /**
+     * Writes one line per user to {@code output}: the ids of the recommended books, best first,
+     * separated by tabs. At most two tiles per thread are kept waiting for the output.
+     */
+    public void writeRecommendations (OutputStream output) throws IOException {
+
+        BufferedOutputStream out = new BufferedOutputStream (output, 1 << 16);
+        Deque<Future<byte[]>> pending = new ArrayDeque<> ();
+
+        for (int from = 0; from < P.getRows (); from += USER_TILE) {
+            final int tileFrom = from;
+            final int tileTo = Math.min (from + USER_TILE, P.getRows ());
+            pending.add (executor.submit (() -> scoreTile (tileFrom, tileTo)));
+            while (pending.size () > parallelism * 2) {
+                out.write (await (pending.poll ()));
+            }
+        }
+        while (!pending.isEmpty ()) {
+            out.write (await (pending.poll ()));
+        }
+        out.flush ();
+
+    }
+
+    private static byte[] await (Future<byte[]> future) {
+        try {
+            return future.get ();
+        } catch (InterruptedException exc) {
+            Thread.currentThread ().interrupt ();
+            throw new IllegalStateException ("Interrupted while scoring", exc);
+        } catch (ExecutionException exc) {
+            throw new IllegalStateException ("A scoring thread failed", exc.getCause ());
+        }
+    }
+
+    /**
+     * Returns the formatted lines of the users {@code from} up to (but not including) {@code to}.
+     */
+    byte[] scoreTile (int from, int to) {
+
+        final int nUsers = to - from;
+        final int nBooks = Q.getRows ();
+        final int nFeatures = P.getCols ();
+        final float[] p = P.getData ();
+        final float[] q = Q.getData ();
+        final int[] userOffsets = ratings.getUserOffsets ();
+        final int[] ratedBooks = ratings.getRatedBooks ();
+
+        final TopKHeap[] heaps = new TopKHeap[nUsers];
+        final int[] cursors = new int[nUsers];
+        for (int u = 0; u < nUsers; u++) {
+            heaps[u] = new TopKHeap (k);
+            cursors[u] = userOffsets[from + u];
+        }
+
+        final float[] tileScores = new float[4 * bookTile];
+        for (int bookFrom = 0; bookFrom < nBooks; bookFrom += bookTile) {
+            final int bookTo = Math.min (bookFrom + bookTile, nBooks);
+            for (int u = 0; u < nUsers; u += 4) {
+
+                // Four users at a time: every element of a book row loaded is used for all four
+                final int users = Math.min (4, nUsers - u);
+                final int p0 = P.offset (from + u);
+                final int p1 = users > 1 ? p0 + nFeatures : p0;
+                final int p2 = users > 2 ? p0 + 2 * nFeatures : p0;
+                final int p3 = users > 3 ? p0 + 3 * nFeatures : p0;
+                for (int book = bookFrom; book < bookTo; book++) {
+                    final int qOffset = Q.offset (book);
+                    // The same four-way split of the sum as FactorMatrix.dot, so the scores are
+                    // exactly the ones predict gives
+                    float a0 = 0.0f, a1 = 0.0f, a2 = 0.0f, a3 = 0.0f;
+                    float b0 = 0.0f, b1 = 0.0f, b2 = 0.0f, b3 = 0.0f;
+                    float c0 = 0.0f, c1 = 0.0f, c2 = 0.0f, c3 = 0.0f;
+                    float d0 = 0.0f, d1 = 0.0f, d2 = 0.0f, d3 = 0.0f;
+                    int f = 0;
+                    for (; f + 3 < nFeatures; f += 4) {
+                        final float q0 = q[qOffset + f];
+                        final float q1 = q[qOffset + f + 1];
+                        final float q2 = q[qOffset + f + 2];
+                        final float q3 = q[qOffset + f + 3];
+                        a0 += p[p0 + f] * q0;
+                        a1 += p[p0 + f + 1] * q1;
+                        a2 += p[p0 + f + 2] * q2;
+                        a3 += p[p0 + f + 3] * q3;
+                        b0 += p[p1 + f] * q0;
+                        b1 += p[p1 + f + 1] * q1;
+                        b2 += p[p1 + f + 2] * q2;
+                        b3 += p[p1 + f + 3] * q3;
+                        c0 += p[p2 + f] * q0;
+                        c1 += p[p2 + f + 1] * q1;
+                        c2 += p[p2 + f + 2] * q2;
+                        c3 += p[p2 + f + 3] * q3;
+                        d0 += p[p3 + f] * q0;
+                        d1 += p[p3 + f + 1] * q1;
+                        d2 += p[p3 + f + 2] * q2;
+                        d3 += p[p3 + f + 3] * q3;
+                    }
+                    for (; f < nFeatures; f++) {
+                        final float qf = q[qOffset + f];
+                        a0 += p[p0 + f] * qf;
+                        b0 += p[p1 + f] * qf;
+                        c0 += p[p2 + f] * qf;
+                        d0 += p[p3 + f] * qf;
+                    }
+                    final float s0 = (a0 + a1) + (a2 + a3);
+                    final float s1 = (b0 + b1) + (b2 + b3);
+                    final float s2 = (c0 + c1) + (c2 + c3);
+                    final float s3 = (d0 + d1) + (d2 + d3);
+                    final int j = book - bookFrom;
+                    tileScores[j] = s0;
+                    tileScores[bookTile + j] = s1;
+                    tileScores[2 * bookTile + j] = s2;
+                    tileScores[3 * bookTile + j] = s3;
+                }
+
+                for (int v = 0; v < users; v++) {
+                    final int ratedTo = userOffsets[from + u + v + 1];
+                    final TopKHeap heap = heaps[u + v];
+                    int cursor = cursors[u + v];
+                    for (int book = bookFrom; book < bookTo; book++) {
+                        while (cursor < ratedTo && ratedBooks[cursor] < book) {
+                            cursor++;
+                        }
+                        if (cursor < ratedTo && ratedBooks[cursor] == book) {
+                            continue;
+                        }
+                        heap.offer (book, tileScores[v * bookTile + book - bookFrom]);
+                    }
+                    cursors[u + v] = cursor;
+                }
+
+            }
+        }
+
+        final int[] recommended = new int[k];
+        final StringBuilder sb = new StringBuilder (nUsers * k * 5);
+        for (int u = 0; u < nUsers; u++) {
+            final int count = heaps[u].drainInto (recommended);
+            for (int i = 0; i < count; i++) {
+                if (i > 0) {
+                    sb.append ('\t');
+                }
+                sb.append (recommended[i]);
+            }
+            sb.append ('\n');
+        }
+        return sb.toString ().getBytes (StandardCharsets.US_ASCII);
+
+    }
+
+    @Override
+    public void close () {
+        executor.shutdownNow ();
+    }
+
+}
+
+/**
+ * An inverted file index over the rows of {@code Q} for maximum inner product search: the books are
+ * clustered with k-means, and a query only scores the books of the clusters it is closest to.
+ * <p>
+ * Inner products are not a distance, so the clustering is done on transformed rows: every row
+ * {@code q} gets one more coordinate, {@code sqrt (M^2 - |q|^2)}, where {@code M} is the largest
+ * norm of all rows. The transformed rows all have norm {@code M}, and for a query {@code (p, 0)}
+ * the squared distance to a transformed row is {@code |p|^2 + M^2 - 2 p.q}, so the closest rows are
+ * exactly the ones with the largest inner product.
+ * <p>
+ * The rows of each cluster are copied next to each other, so a probed cluster is scanned through
+ * contiguous memory. The index is immutable once built, and can be searched from several threads,
+ * each with its own {@link ApproximateRecommender}.
+ */
+class InnerProductIndex {
+
+    private final int nBooks;
+    private final int nFeatures;
+    private final int nLists;
+
+    /**
+     * The cluster centers, {@code nFeatures + 1} coordinates each.
+     */
+    private final float[] centroids;
+    private final float[] centroidNorms;
+
+    /**
+     * The books of cluster {@code c} are {@code listBooks[listOffsets[c]]} up to (but not including)
+     * {@code listBooks[listOffsets[c + 1]]}, their rows of {@code Q} are at the same positions of
+     * {@code listFactors}.
+     */
+    private final int[] listOffsets;
+    private final int[] listBooks;
+    private final float[] listFactors;
+
+    /**
+     * Builds an index of {@code nLists} clusters with {@code iterations} rounds of k-means, started
+     * from randomly chosen rows.
+     */
+    public InnerProductIndex (FactorMatrix Q, int nLists, int iterations, Random random) {
+
+        this.nBooks = Q.getRows ();
+        this.nFeatures = Q.getCols ();
+        this.nLists = Math.max (1, Math.min (nLists, nBooks));
+
+        final int dim = nFeatures + 1;
+        final float[] points = augment (Q);
+
+        // k-means, initialised with distinct random rows
+        centroids = new float[this.nLists * dim];
+        centroidNorms = new float[this.nLists];
+        final int[] order = new int[nBooks];
+        for (int i = 0; i < nBooks; i++) {
+            order[i] = i;
+        }
+        for (int c = 0; c < this.nLists; c++) {
+            final int j = c + random.nextInt (nBooks - c);
+            final int book = order[j];
+            order[j] = order[c];
+            order[c] = book;
+            System.arraycopy (points, book * dim, centroids, c * dim, dim);
+        }
+
+        final int[] assignment = new int[nBooks];
+        final int[] counts = new int[this.nLists];
+        for (int iteration = 0; iteration <= iterations; iteration++) {
+
+            updateNorms ();
+            Arrays.fill (counts, 0);
+            for (int book = 0; book < nBooks; book++) {
+                assignment[book] = nearestCentroid (points, book * dim);
+                counts[assignment[book]]++;
+            }
+            if (iteration == iterations) {
+                break;
+            }
+
+            Arrays.fill (centroids, 0.0f);
+            for (int book = 0; book < nBooks; book++) {
+                FactorMatrix.axpy (1.0f, points, book * dim, centroids, assignment[book] * dim, dim);
+            }
+            for (int c = 0; c < this.nLists; c++) {
+                if (counts[c] == 0) {
+                    // An empty cluster is restarted from a random row
+                    System.arraycopy (points, random.nextInt (nBooks) * dim, centroids, c * dim, dim);
+                } else {
+                    final float scale = 1.0f / counts[c];
+                    for (int i = 0; i < dim; i++) {
+                        centroids[c * dim + i] *= scale;
+                    }
+                }
+            }
+
+        }
+
+        listOffsets = new int[this.nLists + 1];
+        for (int c = 0; c < this.nLists; c++) {
+            listOffsets[c + 1] = listOffsets[c] + counts[c];
+        }
+        listBooks = new int[nBooks];
+        listFactors = new float[nBooks * nFeatures];
+        final int[] next = Arrays.copyOf (listOffsets, this.nLists);
+        final float[] q = Q.getData ();
+        for (int book = 0; book < nBooks; book++) {
+            final int j = next[assignment[book]]++;
+            listBooks[j] = book;
+            System.arraycopy (q, Q.offset (book), listFactors, j * nFeatures, nFeatures);
+        }
+
+    }
+
+    /**
+     * Returns the rows of {@code Q} with the extra coordinate that gives them all the same norm.
+     */
+    private static float[] augment (FactorMatrix Q) {
+
+        final int nBooks = Q.getRows ();
+        final int nFeatures = Q.getCols ();
+        final float[] q = Q.getData ();
+
+        float maxNorm = 0.0f;
+        for (int book = 0; book < nBooks; book++) {
+            maxNorm = Math.max (maxNorm, FactorMatrix.dot (q, Q.offset (book), q, Q.offset (book), nFeatures));
+        }
+
+        final float[] points = new float[nBooks * (nFeatures + 1)];
+        for (int book = 0; book < nBooks; book++) {
+            final int offset = book * (nFeatures + 1);
+            System.arraycopy (q, Q.offset (book), points, offset, nFeatures);
+            final float norm = FactorMatrix.dot (q, Q.offset (book), q, Q.offset (book), nFeatures);
+            points[offset + nFeatures] = (float) Math.sqrt (Math.max (0.0f, maxNorm - norm));
+        }
+        return points;
+
+    }
+
+    private void updateNorms () {
+        final int dim = nFeatures + 1;
+        for (int c = 0; c < nLists; c++) {
+            centroidNorms[c] = FactorMatrix.dot (centroids, c * dim, centroids, c * dim, dim);
+        }
+    }
+
+    /**
+     * Returns the centroid closest to the transformed row at {@code offset} of {@code points}. All
+     * transformed rows have the same norm, so it is the one with the largest
+     * {@code 2 x.c - |c|^2}.
+     */
+    private int nearestCentroid (float[] points, int offset) {
+        final int dim = nFeatures + 1;
+        int best = 0;
+        float bestScore = Float.NEGATIVE_INFINITY;
+        for (int c = 0; c < nLists; c++) {
+            final float score = 2.0f * FactorMatrix.dot (points, offset, centroids, c * dim, dim) - centroidNorms[c];
+            if (score > bestScore) {
+                best = c;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Offers the clusters to {@code heap} by how close they are to the query {@code (p, 0)}, that is
+     * by {@code 2 p.c - |c|^2}, the extra coordinate of the query being zero.
+     */
+    void rankLists (float[] p, int pOffset, TopKHeap heap) {
+        final int dim = nFeatures + 1;
+        for (int c = 0; c < nLists; c++) {
+            heap.offer (c, 2.0f * FactorMatrix.dot (p, pOffset, centroids, c * dim, nFeatures) - centroidNorms[c]);
+        }
+    }
+
+    public int getNumBooks () {
+        return nBooks;
+    }
+
+    public int getNumFeatures () {
+        return nFeatures;
+    }
+
+    public int getNumLists () {
+        return nLists;
+    }
+
+    int[] getListOffsets () {
+        return listOffsets;
+    }
+
+    int[] getListBooks () {
+        return listBooks;
+    }
+
+    float[] getListFactors () {
+        return listFactors;
+    }
+
+}
+
+/**
+ * Recommends books with an {@link InnerProductIndex}: only the books of the {@code nProbe} clusters
+ * closest to the user are scored, and further clusters only while fewer than {@code k} unrated
+ * books were found. More probes find more of the exact top {@code k} at the cost of scoring more
+ * books; probing every cluster gives the exact result.
+ * <p>
+ * Like {@link TopKRecommender}, the buffers are reused from one user to the next, so an instance
+ * must not be shared between threads.
+ */
+class ApproximateRecommender {
+
+    private final InnerProductIndex index;
+    private final int k;
+    private final int nProbe;
+
+    private final long[] rated;
+    private final TopKHeap lists;
+    private final int[] probed;
+    private final TopKHeap heap;
+
+    public ApproximateRecommender (InnerProductIndex index, int k, int nProbe) {
+        this.index = index;
+        this.k = k;
+        this.nProbe = Math.max (1, Math.min (nProbe, index.getNumLists ()));
+        this.rated = new long[(index.getNumBooks () + 63) >>> 6];
+        this.lists = new TopKHeap (index.getNumLists ());
+        this.probed = new int[index.getNumLists ()];
+        this.heap = new TopKHeap (k);
+    }
+
+    /**
+     * Writes the (at most {@code k}) recommended books of {@code user} into {@code result}, best
+     * first, and returns their number.
+     */
+    public int recommend (int user, RatingStore ratings, FactorMatrix P, int[] result) {
+
+        final int nFeatures = index.getNumFeatures ();
+        final float[] p = P.getData ();
+        final int pOffset = P.offset (user);
+
+        lists.clear ();
+        index.rankLists (p, pOffset, lists);
+        final int nProbed = lists.drainInto (probed);
+
+        final int[] userOffsets = ratings.getUserOffsets ();
+        final int[] ratedBooks = ratings.getRatedBooks ();
+        final int from = userOffsets[user];
+        final int to = userOffsets[user + 1];
+        for (int i = from; i < to; i++) {
+            rated[ratedBooks[i] >>> 6] |= 1L << ratedBooks[i];
+        }
+
+        final int[] listOffsets = index.getListOffsets ();
+        final int[] listBooks = index.getListBooks ();
+        final float[] listFactors = index.getListFactors ();
+        heap.clear ();
+        for (int i = 0; i < nProbed && (i < nProbe || heap.size () < k); i++) {
+            final int list = probed[i];
+            for (int j = listOffsets[list]; j < listOffsets[list + 1]; j++) {
+                final int book = listBooks[j];
+                if ((rated[book >>> 6] & (1L << book)) == 0) {
+                    heap.offer (book, FactorMatrix.dot (p, pOffset, listFactors, j * nFeatures, nFeatures));
+                }
+            }
+        }
+
+        for (int i = from; i < to; i++) {
+            rated[ratedBooks[i] >>> 6] = 0L;
+        }
+
+        return heap.drainInto (result);
+
+    }
+
+}
+
+/**
+ * Reads the ratings in the input format of the homework (see {@link Main#main}) straight from bytes:
+ * the numbers are tokenized by hand from a reused buffer into the columns of a {@link RatingStore},
+ * without a {@code String} per line or per number. The scores are scaled to {@code (0, 1]}.
+ * <p>
+ * A file (also a file redirected to the standard input) is memory-mapped, and the ratings are split
+ * at line boundaries into one chunk per thread, which are parsed in parallel and concatenated in
+ * input order. Any other stream is parsed on the calling thread through a 64 KiB buffer.
+ */
+class RatingsParser {
+
+    /**
+     * Below this size a mapped input is parsed on one thread.
+     */
+    static final int MIN_PARALLEL_BYTES = 1 << 20;
+
+    private final InputStream input;
+    private final ByteBuffer source;
+    private final byte[] buffer = new byte[1 << 16];
+    private int position;
+    private int limit;
+
+    private RatingsParser (InputStream input, ByteBuffer source) {
+        this.input = input;
+        this.source = source;
+    }
+
+    /**
+     * Parses the ratings of {@code input} on up to {@code parallelism} threads, and builds their
+     * index.
+     */
+    public static RatingStore parse (InputStream input, int parallelism) throws IOException {
+
+        if (input instanceof FileInputStream) {
+            ByteBuffer mapped = null;
+            try {
+                FileChannel channel = ((FileInputStream) input).getChannel ();
+                final long start = channel.position ();
+                final long size = channel.size () - start;
+                if (size > 0 && size <= Integer.MAX_VALUE) {
+                    mapped = channel.map (FileChannel.MapMode.READ_ONLY, start, size);
+                }
+            } catch (IOException exc) {
+                // Not a regular file (a pipe for example), it is read as a stream
+            }
+            if (mapped != null) {
+                return parse (mapped, parallelism);
+            }
+        }
+
+        RatingsParser parser = new RatingsParser (input, null);
+        final int nRatings = parser.readInt ();
+        final int nUsers = parser.readInt ();
+        final int nBooks = parser.readInt ();
+        parser.skipLine ();
+        RatingStore ratings = new RatingStore (nUsers, nBooks, nRatings);
+        parser.readRatings (ratings, nRatings);
+        ratings.buildIndex ();
+        return ratings;
+
+    }
+
+    /**
+     * Parses the ratings in {@code bytes}, from its position to its limit, on up to
+     * {@code parallelism} threads, and builds their index.
+     */
+    public static RatingStore parse (ByteBuffer bytes, int parallelism) throws IOException {
+
+        RatingsParser header = new RatingsParser (null, bytes.duplicate ());
+        final int nRatings = header.readInt ();
+        final int nUsers = header.readInt ();
+        final int nBooks = header.readInt ();
+
+        // The ratings start after the end of the header line
+        int start = bytes.position ();
+        while (start < bytes.limit () && bytes.get (start) != '\n') {
+            start++;
+        }
+        final int end = bytes.limit ();
+        final int nChunks = end - start < MIN_PARALLEL_BYTES ? 1 : Math.max (1, parallelism);
+
+        final int[] bounds = new int[nChunks + 1];
+        bounds[0] = start;
+        for (int c = 1; c < nChunks; c++) {
+            int bound = Math.max (bounds[c - 1], (int) (start + (long) (end - start) * c / nChunks));
+            while (bound < end && bytes.get (bound) != '\n') {
+                bound++;
+            }
+            bounds[c] = bound;
+        }
+        bounds[nChunks] = end;
+
+        if (nChunks == 1) {
+            ByteBuffer body = bytes.duplicate ();
+            body.position (start);
+            RatingStore ratings = new RatingStore (nUsers, nBooks, nRatings);
+            new RatingsParser (null, body).readRatings (ratings, nRatings);
+            ratings.buildIndex ();
+            return ratings;
+        }
+
+        final RatingStore[] chunks = new RatingStore[nChunks];
+        ExecutorService executor = Executors.newFixedThreadPool (nChunks, runnable -> {
+            Thread thread = new Thread (runnable, "parsing-worker");
+            thread.setDaemon (true);
+            return thread;
+        });
+        try {
+            List<Callable<RatingStore>> tasks = new ArrayList<> (nChunks);
+            for (int c = 0; c < nChunks; c++) {
+                final int from = bounds[c];
+                final int to = bounds[c + 1];
+                final int expected = (int) ((long) nRatings * (to - from) / Math.max (1, end - start)) + 16;
+                tasks.add (() -> parseChunk (bytes, from, to, nUsers, nBooks, expected));
+            }
+            List<Future<RatingStore>> results = executor.invokeAll (tasks);
+            for (int c = 0; c < nChunks; c++) {
+                chunks[c] = results.get (c).get ();
+            }
+        } catch (InterruptedException exc) {
+            Thread.currentThread ().interrupt ();
+            throw new IOException ("Interrupted while parsing", exc);
+        } catch (ExecutionException exc) {
+            if (exc.getCause () instanceof IOException) {
+                throw (IOException) exc.getCause ();
+            }
+            throw new IllegalStateException ("A parsing thread failed", exc.getCause ());
+        } finally {
+            executor.shutdownNow ();
+        }
+
+        // The chunks are concatenated in input order, up to the number of ratings of the header
+        RatingStore ratings = new RatingStore (nUsers, nBooks, nRatings);
+        for (RatingStore chunk : chunks) {
+            final int count = Math.min (chunk.size (), nRatings - ratings.size ());
+            ratings.addAll (chunk, count);
+        }
+        ratings.buildIndex ();
+        return ratings;
+
+    }
+
+    private static RatingStore parseChunk (ByteBuffer bytes, int from, int to, int nUsers, int nBooks, int capacity)
+            throws IOException {
+        ByteBuffer slice = bytes.duplicate ();
+        slice.limit (to);
+        slice.position (from);
+        RatingStore chunk = new RatingStore (nUsers, nBooks, capacity);
+        new RatingsParser (null, slice).readRatings (chunk, Integer.MAX_VALUE);
+        return chunk;
+    }
+
+    /**
+     * Adds up to {@code count} ratings to {@code ratings}, until the end of the input.
+     */
+    private void readRatings (RatingStore ratings, int count) throws IOException {
+        for (int i = 0; i < count && skipWhitespace (); i++) {
+            final int user = readInt ();
+            final int book = readInt ();
+            final float score = readFloat () / 5.0f;
+            ratings.add (user, book, score);
+            skipLine ();
+        }
+    }
+
+    /**
+     * Moves the buffer past the end of the current line, anything after the expected fields of a
+     * line is ignored.
+     */
+    private void skipLine () throws IOException {
+        int c;
+        while ((c = peek ()) != -1) {
+            position++;
+            if (c == '\n') {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Moves the buffer past the whitespace, and returns whether there is anything after it.
+     */
+    private boolean skipWhitespace () throws IOException {
+        while (true) {
+            if (position == limit && !fill ()) {
+                return false;
+            }
+            if (buffer[position] > ' ') {
+                return true;
+            }
+            position++;
+        }
+    }
+
+    private boolean fill () throws IOException {
+        position = 0;
+        if (source != null) {
+            limit = Math.min (buffer.length, source.remaining ());
+            source.get (buffer, 0, limit);
+        } else {
+            limit = Math.max (0, input.read (buffer, 0, buffer.length));
+        }
+        return limit > 0;
+    }
+
+    private int peek () throws IOException {
+        if (position == limit && !fill ()) {
+            return -1;
+        }
+        return buffer[position];
+    }
+
+    private int readInt () throws IOException {
+
+        if (!skipWhitespace ()) {
+            throw new EOFException ("Expected a number");
+        }
+        boolean negative = false;
+        if (buffer[position] == '-') {
+            negative = true;
+            position++;
+        }
+        int value = 0;
+        int digits = 0;
+        int c;
+        while ((c = peek ()) >= '0' && c <= '9') {
+            value = value * 10 + (c - '0');
+            position++;
+            digits++;
+        }
+        if (digits == 0) {
+            throw new IOException ("Expected a number");
+        }
+        return negative ? -value : value;
+
+    }
+
+    /**
+     * Reads a decimal number: an optional sign, digits, an optional fraction and an optional
+     * exponent.
+     */
+    private float readFloat () throws IOException {
+
+        if (!skipWhitespace ()) {
+            throw new EOFException ("Expected a number");
+        }
+        boolean negative = false;
+        if (buffer[position] == '-' || buffer[position] == '+') {
+            negative = buffer[position] == '-';
+            position++;
+        }
+        long mantissa = 0;
+        int scale = 0;
+        int digits = 0;
+        int c;
+        while ((c = peek ()) >= '0' && c <= '9') {
+            mantissa = mantissa * 10 + (c - '0');
+            position++;
+            digits++;
+        }
+        if (c == '.') {
+            position++;
+            while ((c = peek ()) >= '0' && c <= '9') {
+                if (mantissa < Long.MAX_VALUE / 10) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    scale--;
+                }
+                position++;
+                digits++;
+            }
+        }
+        if (digits == 0) {
+            throw new IOException ("Expected a number");
+        }
+        if (c == 'e' || c == 'E') {
+            position++;
+            if (peek () == '+') {
+                position++;
+            }
+            scale += readInt ();
+        }
+
+        double value = mantissa;
+        if (scale < 0) {
+            value /= Math.pow (10, -scale);
+        } else if (scale > 0) {
+            value *= Math.pow (10, scale);
+        }
+        return (float) (negative ? -value : value);
+
+    }
+
+}
+
+/**
+ * A trained model together with the ratings it was trained on, which are needed both to skip the
+ * rated books in the recommendations and to update the model later, see {@link IncrementalUpdater}.
+ * A snapshot without factors is just a data set.
+ * <p>
+ * The file format is little-endian, with every array aligned to its element size, so that loading a
+ * file is a memory mapping and a bulk copy of each array, without parsing anything:
+ * <pre>
+ *  0  int    magic, "HW2B"
+ *  4  int    format version, 2
+ *  8  int    flags, see {@link #RATINGS}, {@link #DELTA_ENCODED} and {@link #FACTORS}
+ * 12  int    number of users
+ * 16  int    number of books
+ * 20  int    number of ratings
+ * 24  int    number of features, 0 without factors
+ * 32  long   offset of the ratings
+ * 40  long   offset of the factors
+ * 64         end of the header
+ * </pre>
+ * The ratings are either three columns, {@code int} users, {@code int} books and {@code float}
+ * scores, in the order of the store; or, with {@link #DELTA_ENCODED}, sorted by user and book: the
+ * {@code int} offsets of the rows of the users, an {@code int} score encoding, the {@code int} length
+ * of the books and the books themselves, each the difference to the previous book of its user as an
+ * unsigned LEB128 varint, and finally the scores, either {@code float}s or, if every score is a
+ * multiple of {@code 1/5}, one byte of five times the score each. The factors are the rows of
+ * {@code P} and then the rows of {@code Q}, as {@code float}s.
+ */
+class ModelSnapshot {
+
+    static final int MAGIC = 0x42325748;
+    static final int VERSION = 2;
+
+    static final int RATINGS = 1;
+    static final int DELTA_ENCODED = 2;
+    static final int FACTORS = 4;
+
+    static final int HEADER_SIZE = 64;
+
+    private static final int FLOAT_SCORES = 0;
+    private static final int BYTE_SCORES = 1;
+
+    private final RatingStore ratings;
+    private final FactorMatrix P;
+    private final FactorMatrix Q;
+
+    public ModelSnapshot (RatingStore ratings, FactorMatrix P, FactorMatrix Q) {
+        this.ratings = ratings;
+        this.P = P;
+        this.Q = Q;
+    }
+
+    public RatingStore getRatings () {
+        return ratings;
+    }
+
+    /**
+     * Returns the user factors, {@code null} for a data set.
+     */
+    public FactorMatrix getP () {
+        return P;
+    }
+
+    /**
+     * Returns the book factors, {@code null} for a data set.
+     */
+    public FactorMatrix getQ () {
+        return Q;
+    }
+
+    public void write (OutputStream output) throws IOException {
+        write (output, false);
+    }
+
+    /**
+     * Writes the snapshot, with the ratings sorted and delta-encoded if {@code deltaEncoded} is set.
+     */
+    public void write (OutputStream output, boolean deltaEncoded) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate ((int) encodedSize (deltaEncoded));
+        encode (buffer, deltaEncoded);
+        output.write (buffer.array ());
+        output.flush ();
+    }
+
+    /**
+     * Writes the snapshot to {@code path}, through a memory mapping of the file.
+     */
+    public void save (Path path, boolean deltaEncoded) throws IOException {
+        final long size = encodedSize (deltaEncoded);
+        try (FileChannel channel = FileChannel.open (
+                path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE
+        )) {
+            encode (channel.map (FileChannel.MapMode.READ_WRITE, 0, size), deltaEncoded);
+        }
+    }
+
+    public static ModelSnapshot read (InputStream input) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream ();
+        byte[] buffer = new byte[1 << 16];
+        int n;
+        while ((n = input.read (buffer)) > 0) {
+            bytes.write (buffer, 0, n);
+        }
+        return read (ByteBuffer.wrap (bytes.toByteArray ()));
+    }
+
+    /**
+     * Loads the snapshot saved at {@code path}, through a memory mapping of the file.
+     */
+    public static ModelSnapshot load (Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open (path, StandardOpenOption.READ)) {
+            return read (channel.map (FileChannel.MapMode.READ_ONLY, 0, channel.size ()));
+        }
+    }
+
+    private long encodedSize (boolean deltaEncoded) {
+        long size = HEADER_SIZE + ratingsSize (deltaEncoded);
+        if (P != null) {
+            size += 4L * (P.getData ().length + Q.getData ().length);
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalStateException ("The snapshot is too large for one mapping: " + size + " bytes");
+        }
+        return size;
+    }
+
+    private long ratingsSize (boolean deltaEncoded) {
+        if (!deltaEncoded) {
+            return 12L * ratings.size ();
+        }
+        final long books = align (encodedBooksSize (), 4);
+        final long scores = byteScores () ? ratings.size () : 4L * ratings.size ();
+        return align (4L * (ratings.getNumUsers () + 1) + 8 + books + scores, 4);
+    }
+
+    private static long align (long size, int alignment) {
+        return (size + alignment - 1) / alignment * alignment;
+    }
+
+    private long encodedBooksSize () {
+        final int[] userOffsets = ratings.getUserOffsets ();
+        final int[] ratedBooks = ratings.getRatedBooks ();
+        long size = 0;
+        for (int u = 0; u < ratings.getNumUsers (); u++) {
+            int previous = 0;
+            for (int k = userOffsets[u]; k < userOffsets[u + 1]; k++) {
+                size += varintSize (ratedBooks[k] - previous);
+                previous = ratedBooks[k];
+            }
+        }
+        return size;
+    }
+
+    private static int varintSize (int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Returns whether every score is five times an integer from 1 to 255 exactly, as the scores of the
+     * homework input are.
+     */
+    private boolean byteScores () {
+        final float[] scores = ratings.getScores ();
+        for (int i = 0; i < ratings.size (); i++) {
+            final int quantized = Math.round (scores[i] * 5.0f);
+            if (quantized < 1 || quantized > 255 || quantized / 5.0f != scores[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void encode (ByteBuffer buffer, boolean deltaEncoded) {
+
+        buffer.order (ByteOrder.LITTLE_ENDIAN);
+        final int nRatings = ratings.size ();
+
+        buffer.putInt (0, MAGIC);
+        buffer.putInt (4, VERSION);
+        buffer.putInt (8, RATINGS | (deltaEncoded ? DELTA_ENCODED : 0) | (P != null ? FACTORS : 0));
+        buffer.putInt (12, ratings.getNumUsers ());
+        buffer.putInt (16, ratings.getNumBooks ());
+        buffer.putInt (20, nRatings);
+        buffer.putInt (24, P != null ? P.getCols () : 0);
+        buffer.putLong (32, HEADER_SIZE);
+        buffer.putLong (40, HEADER_SIZE + ratingsSize (deltaEncoded));
+
+        buffer.position (HEADER_SIZE);
+        if (deltaEncoded) {
+            encodeDeltas (buffer);
+        } else {
+            buffer.asIntBuffer ().put (ratings.getUsers (), 0, nRatings);
+            buffer.position (buffer.position () + 4 * nRatings);
+            buffer.asIntBuffer ().put (ratings.getBooks (), 0, nRatings);
+            buffer.position (buffer.position () + 4 * nRatings);
+            buffer.asFloatBuffer ().put (ratings.getScores (), 0, nRatings);
+            buffer.position (buffer.position () + 4 * nRatings);
+        }
+
+        if (P != null) {
+            buffer.asFloatBuffer ().put (P.getData ());
+            buffer.position (buffer.position () + 4 * P.getData ().length);
+            buffer.asFloatBuffer ().put (Q.getData ());
+        }
+
+    }
+
+    private void encodeDeltas (ByteBuffer buffer) {
+
+        final int nUsers = ratings.getNumUsers ();
+        final int[] userOffsets = ratings.getUserOffsets ();
+        final int[] ratedBooks = ratings.getRatedBooks ();
+        final int[] ratedPositions = ratings.getRatedPositions ();
+        final float[] scores = ratings.getScores ();
+        final boolean byteScores = byteScores ();
+
+        buffer.asIntBuffer ().put (userOffsets, 0, nUsers + 1);
+        buffer.position (buffer.position () + 4 * (nUsers + 1));
+        buffer.putInt (byteScores ? BYTE_SCORES : FLOAT_SCORES);
+        final int booksSize = (int) encodedBooksSize ();
+        buffer.putInt (booksSize);
+
+        for (int u = 0; u < nUsers; u++) {
+            int previous = 0;
+            for (int k = userOffsets[u]; k < userOffsets[u + 1]; k++) {
+                int delta = ratedBooks[k] - previous;
+                previous = ratedBooks[k];
+                while ((delta & ~0x7F) != 0) {
+                    buffer.put ((byte) ((delta & 0x7F) | 0x80));
+                    delta >>>= 7;
+                }
+                buffer.put ((byte) delta);
+            }
+        }
+        buffer.position ((int) align (buffer.position (), 4));
+
+        for (int k = 0; k < ratings.size (); k++) {
+            final float score = scores[ratedPositions[k]];
+            if (byteScores) {
+                buffer.put ((byte) Math.round (score * 5.0f));
+            } else {
+                buffer.putFloat (score);
+            }
+        }
+        buffer.position ((int) align (buffer.position (), 4));
+
+    }
+
+    /**
+     * Reads a snapshot from {@code buffer}, from its position. The arrays are copied out of the
+     * buffer in bulk, so the buffer is not needed afterwards. Sizes and offsets that do not fit the
+     * buffer, and ratings of unknown users or books, are reported as an {@link IOException}.
+     */
+    public static ModelSnapshot read (ByteBuffer source) throws IOException {
+
+        ByteBuffer buffer = source.slice ().order (ByteOrder.LITTLE_ENDIAN);
+        if (buffer.remaining () < HEADER_SIZE || buffer.getInt (0) != MAGIC) {
+            throw new IOException ("Not a model snapshot");
+        }
+        final int version = buffer.getInt (4);
+        if (version != VERSION) {
+            throw new IOException ("Unsupported model snapshot version: " + version);
+        }
+
+        final int flags = buffer.getInt (8);
+        final int nUsers = buffer.getInt (12);
+        final int nBooks = buffer.getInt (16);
+        final int nRatings = buffer.getInt (20);
+        final int nFeatures = buffer.getInt (24);
+        final long ratingsOffset = buffer.getLong (32);
+        final long factorsOffset = buffer.getLong (40);
+
+        final int limit = buffer.limit ();
+        check (nUsers >= 0 && nBooks >= 0 && nRatings >= 0 && nFeatures >= 0, "negative size");
+        check (nUsers < Integer.MAX_VALUE, "too many users");
+        if ((flags & RATINGS) != 0) {
+            // The delta encoding takes at least one byte for the book and one for the score
+            final long ratingsSize = (flags & DELTA_ENCODED) != 0
+                    ? 4L * nUsers + 12 + 2L * nRatings
+                    : 12L * nRatings;
+            check (ratingsOffset >= HEADER_SIZE && ratingsOffset + ratingsSize <= limit, "ratings out of bounds");
+        } else {
+            check (nRatings == 0, "ratings without the ratings flag");
+        }
+        if ((flags & FACTORS) != 0) {
+            final long factorsSize = 4L * ((long) nUsers + nBooks) * nFeatures;
+            check (factorsOffset >= HEADER_SIZE && factorsOffset + factorsSize <= limit, "factors out of bounds");
+        }
+
+        final int[] users = new int[nRatings];
+        final int[] books = new int[nRatings];
+        final float[] scores = new float[nRatings];
+        int[] userOffsets = null;
+        if ((flags & RATINGS) != 0) {
+            buffer.position ((int) ratingsOffset);
+            if ((flags & DELTA_ENCODED) != 0) {
+                userOffsets = decodeDeltas (buffer, nUsers, nBooks, users, books, scores);
+            } else {
+                buffer.asIntBuffer ().get (users);
+                buffer.position (buffer.position () + 4 * nRatings);
+                buffer.asIntBuffer ().get (books);
+                buffer.position (buffer.position () + 4 * nRatings);
+                buffer.asFloatBuffer ().get (scores);
+                for (int i = 0; i < nRatings; i++) {
+                    check (users[i] >= 0 && users[i] < nUsers && books[i] >= 0 && books[i] < nBooks, "unknown user or book");
+                }
+            }
+        }
+        RatingStore ratings = new RatingStore (nUsers, nBooks, users, books, scores);
+        if (userOffsets != null) {
+            ratings.setSortedIndex (userOffsets);
+        } else {
+            ratings.buildIndex ();
+        }
+
+        if ((flags & FACTORS) == 0) {
+            return new ModelSnapshot (ratings, null, null);
+        }
+
+        FactorMatrix P = new FactorMatrix (nUsers, nFeatures);
+        FactorMatrix Q = new FactorMatrix (nBooks, nFeatures);
+        buffer.position ((int) factorsOffset);
+        buffer.asFloatBuffer ().get (P.getData ());
+        buffer.position (buffer.position () + 4 * P.getData ().length);
+        buffer.asFloatBuffer ().get (Q.getData ());
+        return new ModelSnapshot (ratings, P, Q);
+
+    }
+
+    /**
+     * Decodes the delta-encoded ratings at the position of {@code buffer}, whose header
+     * {@link #read(ByteBuffer)} has checked, and returns the offsets of the rows of the users.
+     */
+    private static int[] decodeDeltas (
+            ByteBuffer buffer, int nUsers, int nBooks, int[] users, int[] books, float[] scores
+    ) throws IOException {
+
+        final int[] userOffsets = new int[nUsers + 1];
+        buffer.asIntBuffer ().get (userOffsets);
+        buffer.position (buffer.position () + 4 * (nUsers + 1));
+        final int scoreEncoding = buffer.getInt ();
+        final int booksSize = buffer.getInt ();
+
+        check (userOffsets[0] == 0 && userOffsets[nUsers] == scores.length, "user offsets do not cover the ratings");
+        for (int u = 0; u < nUsers; u++) {
+            check (userOffsets[u] <= userOffsets[u + 1], "user offsets are not ascending");
+        }
+        check (scoreEncoding == FLOAT_SCORES || scoreEncoding == BYTE_SCORES, "unknown score encoding");
+        check (booksSize >= 0 && booksSize <= buffer.remaining (), "books out of bounds");
+        final int booksEnd = buffer.position () + booksSize;
+
+        for (int u = 0; u < nUsers; u++) {
+            int previous = 0;
+            for (int k = userOffsets[u]; k < userOffsets[u + 1]; k++) {
+                int delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    check (buffer.position () < booksEnd && shift < 32, "books out of bounds");
+                    b = buffer.get ();
+                    delta |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                previous += delta;
+                check (delta >= 0 && previous >= 0 && previous < nBooks, "unknown book");
+                users[k] = u;
+                books[k] = previous;
+            }
+        }
+        check (buffer.position () == booksEnd, "books out of bounds");
+        buffer.position ((int) Math.min (align (buffer.position (), 4), buffer.limit ()));
+
+        final long scoresSize = scoreEncoding == BYTE_SCORES ? scores.length : 4L * scores.length;
+        check (scoresSize <= buffer.remaining (), "scores out of bounds");
+        if (scoreEncoding == BYTE_SCORES) {
+            for (int k = 0; k < scores.length; k++) {
+                scores[k] = (buffer.get () & 0xFF) / 5.0f;
+            }
+        } else {
+            buffer.asFloatBuffer ().get (scores);
+        }
+        return userOffsets;
+
+    }
+
+    private static void check (boolean condition, String problem) throws IOException {
+        if (!condition) {
+            throw new IOException ("Corrupt model snapshot: " + problem);
+        }
+    }
+
+}
+
+/**
+ * Which of the ratings an {@link IncrementalUpdater} trains on. The rows updated are always the
+ * ones of the users and books of the new ratings, the scope only decides which ratings their
+ * gradients are taken from.
+ */
+enum UpdateScope {
+
+    /**
+     * Only the new ratings: the cost is proportional to the size of the update.
+     */
+    DELTA,
+
+    /**
+     * Every rating of the users of the new ratings, so their rows are fitted to their whole history.
+     */
+    AFFECTED_USERS,
+
+    /**
+     * Every rating of the users and of the books of the new ratings. The most accurate, but a
+     * popular book brings all of its ratings with it.
+     */
+    AFFECTED_ROWS
+
+}
+
+/**
+ * Folds new ratings into a trained model without training it again from scratch.
+ * <p>
+ * The new ratings are merged into the old ones, a new score for an already rated book replacing the
+ * old one. The factor matrices grow to the new number of users and books, with random rows for
+ * the new ones. Then a few passes of stochastic gradient descent are run over the ratings selected
+ * by the {@link UpdateScope}, updating the rows of the users and books of the new ratings only;
+ * every other row of the model stays as it was.
+ */
+class IncrementalUpdater {
+
+    private int passes = 5;
+    private float learningRate = 0.1f;
+    private float lambda = 0.0f;
+    private UpdateScope scope = UpdateScope.AFFECTED_USERS;
+
+    private int affectedRatings;
+
+    public int getPasses () {
+        return passes;
+    }
+
+    public void setPasses (int passes) {
+        this.passes = passes;
+    }
+
+    public float getLearningRate () {
+        return learningRate;
+    }
+
+    public void setLearningRate (float learningRate) {
+        this.learningRate = learningRate;
+    }
+
+    public float getLambda () {
+        return lambda;
+    }
+
+    public void setLambda (float lambda) {
+        this.lambda = lambda;
+    }
+
+    public UpdateScope getScope () {
+        return scope;
+    }
+
+    public void setScope (UpdateScope scope) {
+        this.scope = scope;
+    }
+
+    /**
+     * Returns the number of ratings the last update trained on.
+     */
+    public int getAffectedRatings () {
+        return affectedRatings;
+    }
+
+    /**
+     * Returns the model updated with the ratings of {@code delta}, the new rows are drawn with
+     * {@code random}. The factors of {@code snapshot} are not modified.
+     */
+    public ModelSnapshot update (ModelSnapshot snapshot, RatingStore delta, Random random) {
+
+        final RatingStore ratings = snapshot.getRatings ().merge (delta);
+        final FactorMatrix P = snapshot.getP ().resize (ratings.getNumUsers (), random);
+        final FactorMatrix Q = snapshot.getQ ().resize (ratings.getNumBooks (), random);
+
+        final boolean[] updateUser = new boolean[ratings.getNumUsers ()];
+        final boolean[] updateBook = new boolean[ratings.getNumBooks ()];
+        for (int i = 0; i < delta.size (); i++) {
+            updateUser[delta.getUsers ()[i]] = true;
+            updateBook[delta.getBooks ()[i]] = true;
+        }
+
+        // The ratings trained on are copied out, so the passes read contiguous memory. Of the delta
+        // only the ratings the merge kept are trained on, merge has built its index
+        final RatingStore source = scope == UpdateScope.DELTA ? delta : ratings;
+        final boolean[] superseded = scope == UpdateScope.DELTA ? delta.superseded () : null;
+        final int[] allUsers = source.getUsers ();
+        final int[] allBooks = source.getBooks ();
+        final float[] allScores = source.getScores ();
+        final boolean[] selected = new boolean[source.size ()];
+        affectedRatings = 0;
+        for (int i = 0; i < source.size (); i++) {
+            selected[i] = scope == UpdateScope.DELTA
+                    ? !superseded[i]
+                    : updateUser[allUsers[i]]
+                    || (scope == UpdateScope.AFFECTED_ROWS && updateBook[allBooks[i]]);
+            if (selected[i]) {
+                affectedRatings++;
+            }
+        }
+        final int[] users = new int[affectedRatings];
+        final int[] books = new int[affectedRatings];
+        final float[] scores = new float[affectedRatings];
+        for (int i = 0, j = 0; i < source.size (); i++) {
+            if (selected[i]) {
+                users[j] = allUsers[i];
+                books[j] = allBooks[i];
+                scores[j] = allScores[i];
+                j++;
+            }
+        }
+
+        final int nFeatures = P.getCols ();
+        final float[] p = P.getData ();
+        final float[] q = Q.getData ();
+        final float[] oldP = new float[nFeatures];
+        final float shrink = 1.0f - 2.0f * learningRate * lambda;
+        for (int pass = 0; pass < passes; pass++) {
+            for (int i = 0; i < affectedRatings; i++) {
+
+                final int pOffset = P.offset (users[i]);
+                final int qOffset = Q.offset (books[i]);
+                final float err = FactorMatrix.dot (p, pOffset, q, qOffset, nFeatures) - scores[i];
+                final float step = -2.0f * learningRate * err;
+
+                if (updateUser[users[i]]) {
+                    System.arraycopy (p, pOffset, oldP, 0, nFeatures);
+                    FactorMatrix.axpby (step, q, qOffset, shrink, p, pOffset, nFeatures);
+                    if (updateBook[books[i]]) {
+                        FactorMatrix.axpby (step, oldP, 0, shrink, q, qOffset, nFeatures);
+                    }
+                } else if (updateBook[books[i]]) {
+                    FactorMatrix.axpby (step, p, pOffset, shrink, q, qOffset, nFeatures);
+                }
+
+            }
+        }
+
+        return new ModelSnapshot (ratings, P, Q);
+
+    }
+
+}
+
+/**
+ * A dense matrix of latent factors, one row per user or book, stored row-major in one flat array:
+ * element {@code (row, col)} is {@code data[row * cols + col]}.
+ * <p>
+ * The kernels work on slices of arrays, plain counted loops over primitive floats that HotSpot can
+ * unroll and vectorize.
+ */
+class FactorMatrix {
+
+    private final int rows;
+    private final int cols;
+    private final float[] data;
+
+    public FactorMatrix (int rows, int cols) {
+        this.rows = rows;
+        this.cols = cols;
+        this.data = new float[rows * cols];
+    }
+
+    public int getRows () {
+        return rows;
+    }
+
+    public int getCols () {
+        return cols;
+    }
+
+    public float[] getData () {
+        return data;
+    }
+
+    /**
+     * Returns the index of the first element of the row in {@link #getData()}.
+     */
+    public int offset (int row) {
+        return row * cols;
+    }
+
+    public float get (int row, int col) {
+        return data[row * cols + col];
+    }
+
+    public void set (int row, int col, float value) {
+        data[row * cols + col] = value;
+    }
+
+    /**
+     * Returns a copy of the matrix with {@code rows} rows: the rows it has in common with this one
+     * are copied, the new ones are filled like {@link #randomize(Random)} does.
+     */
+    public FactorMatrix resize (int rows, Random random) {
+        FactorMatrix resized = new FactorMatrix (rows, cols);
+        final int copied = Math.min (rows, this.rows) * cols;
+        System.arraycopy (data, 0, resized.data, 0, copied);
+        for (int i = copied; i < resized.data.length; i++) {
+            resized.data[i] = random.nextFloat ();
+        }
+        return resized;
+    }
+
+    /**
+     * Fills the matrix with uniform random numbers from {@code [0, 1)}, row by row.
+     */
+    public void randomize (Random random) {
+        for (int i = 0; i < data.length; i++) {
+            data[i] = random.nextFloat ();
+        }
+    }
+
+    /**
+     * Returns the dot product of {@code a[aOffset .. aOffset + n)} and {@code b[bOffset .. bOffset + n)}.
+     * The sum is kept in four accumulators, so the additions do not have to wait for each other.
+     */
+    public static float dot (float[] a, int aOffset, float[] b, int bOffset, int n) {
+        float s0 = 0.0f, s1 = 0.0f, s2 = 0.0f, s3 = 0.0f;
+        int i = 0;
+        for (; i + 3 < n; i += 4) {
+            s0 += a[aOffset + i] * b[bOffset + i];
+            s1 += a[aOffset + i + 1] * b[bOffset + i + 1];
+            s2 += a[aOffset + i + 2] * b[bOffset + i + 2];
+            s3 += a[aOffset + i + 3] * b[bOffset + i + 3];
+        }
+        for (; i < n; i++) {
+            s0 += a[aOffset + i] * b[bOffset + i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Adds {@code alpha} times {@code x[xOffset .. xOffset + n)} to {@code y[yOffset .. yOffset + n)}.
+     */
+    public static void axpy (float alpha, float[] x, int xOffset, float[] y, int yOffset, int n) {
+        for (int i = 0; i < n; i++) {
+            y[yOffset + i] += alpha * x[xOffset + i];
+        }
+    }
+
+    /**
+     * Sets {@code y[yOffset .. yOffset + n)} to {@code alpha} times {@code x[xOffset .. xOffset + n)}
+     * plus {@code beta} times itself. With {@code beta = 1} the result is exactly that of
+     * {@link #axpy}.
+     */
+    public static void axpby (float alpha, float[] x, int xOffset, float beta, float[] y, int yOffset, int n) {
+        for (int i = 0; i < n; i++) {
+            y[yOffset + i] = beta * y[yOffset + i] + alpha * x[xOffset + i];
+        }
+    }
+
+}
+
+/**
+ * The ratings in columnar form: the user, the book and the score of rating {@code i} are element
+ * {@code i} of three parallel arrays, so a pass over the ratings reads contiguous memory.
+ * <p>
+ * After {@link #buildIndex()} the books each user rated are also available as a compressed sparse
+ * row index: the books rated by user {@code u} are {@code ratedBooks[userOffsets[u]]} up to (but not
+ * including) {@code ratedBooks[userOffsets[u + 1]]}, in increasing order, and
+ * {@code ratedPositions} holds the index of the rating of each of them.
+ */
+class RatingStore {
+
+    /**
+     * The size of the rows of {@code P}, and the same of {@code Q}, of one tile of
+     * {@link SampleOrder#TILED}: the two together fit in the L2 cache of most cores.
+     */
+    static final int TILE_BYTES = 96 * 1024;
+
+    private final int nUsers;
+    private final int nBooks;
+
+    private int size;
+    private int[] users;
+    private int[] books;
+    private float[] scores;
+
+    private int[] userOffsets;
+    private int[] ratedBooks;
+    private int[] ratedPositions;
+
+    /**
+     * Creates a store of the ratings in the given columns, which it takes over.
+     */
+    public RatingStore (int nUsers, int nBooks, int[] users, int[] books, float[] scores) {
+        this.nUsers = nUsers;
+        this.nBooks = nBooks;
+        this.size = users.length;
+        this.users = users;
+        this.books = books;
+        this.scores = scores;
+    }
+
+    public RatingStore (int nUsers, int nBooks, int capacity) {
+        this.nUsers = nUsers;
+        this.nBooks = nBooks;
+        this.users = new int[Math.max (capacity, 1)];
+        this.books = new int[Math.max (capacity, 1)];
+        this.scores = new float[Math.max (capacity, 1)];
+    }
+
+    /**
+     * Adds the first {@code count} ratings of {@code other}.
+     */
+    public void addAll (RatingStore other, int count) {
+        if (size + count > users.length) {
+            final int capacity = Math.max (size + count, size * 2);
+            users = Arrays.copyOf (users, capacity);
+            books = Arrays.copyOf (books, capacity);
+            scores = Arrays.copyOf (scores, capacity);
+        }
+        System.arraycopy (other.users, 0, users, size, count);
+        System.arraycopy (other.books, 0, books, size, count);
+        System.arraycopy (other.scores, 0, scores, size, count);
+        size += count;
+    }
+
+    public void add (int user, int book, float score) {
+        if (size == users.length) {
+            users = Arrays.copyOf (users, size * 2);
+            books = Arrays.copyOf (books, size * 2);
+            scores = Arrays.copyOf (scores, size * 2);
+        }
+        users[size] = user;
+        books[size] = book;
+        scores[size] = score;
+        size++;
+    }
+
+    /**
+     * Takes {@code userOffsets} as the index of ratings that are already sorted by user and book, as
+     * the ones of a delta-encoded {@link ModelSnapshot} are.
+     */
+    void setSortedIndex (int[] userOffsets) {
+        this.userOffsets = userOffsets;
+        this.ratedBooks = Arrays.copyOf (books, size);
+        this.ratedPositions = new int[size];
+        for (int i = 0; i < size; i++) {
+            ratedPositions[i] = i;
+        }
+    }
+
+    /**
+     * Builds the index of the books rated by each user, with a radix sort of the ratings: a counting
+     * sort by book, then a stable counting sort by user, so the books of each user come out in
+     * increasing order.
+     */
+    public void buildIndex () {
+
+        int[] bookOffsets = new int[nBooks + 1];
+        for (int i = 0; i < size; i++) {
+            bookOffsets[books[i] + 1]++;
+        }
+        for (int b = 0; b < nBooks; b++) {
+            bookOffsets[b + 1] += bookOffsets[b];
+        }
+        int[] byBook = new int[size];
+        for (int i = 0; i < size; i++) {
+            byBook[bookOffsets[books[i]]++] = i;
+        }
+
+        userOffsets = new int[nUsers + 1];
+        for (int i = 0; i < size; i++) {
+            userOffsets[users[i] + 1]++;
+        }
+        for (int u = 0; u < nUsers; u++) {
+            userOffsets[u + 1] += userOffsets[u];
+        }
+
+        ratedBooks = new int[size];
+        ratedPositions = new int[size];
+        int[] next = Arrays.copyOf (userOffsets, nUsers);
+        for (int j = 0; j < size; j++) {
+            final int i = byBook[j];
+            final int k = next[users[i]]++;
+            ratedBooks[k] = books[i];
+            ratedPositions[k] = i;
+        }
+
+    }
+
+    /**
+     * Returns the index of the rating of {@code book} by {@code user}, or {@code -1} if the user has
+     * not rated the book. Needs the index.
+     */
+    public int find (int user, int book) {
+        if (user < 0 || user >= nUsers) {
+            return -1;
+        }
+        final int k = Arrays.binarySearch (ratedBooks, userOffsets[user], userOffsets[user + 1], book);
+        return k >= 0 ? ratedPositions[k] : -1;
+    }
+
+    /**
+     * Returns a new store with these ratings followed by the ones of {@code other}, with its index
+     * built. A rating of {@code other} for a book the user has already rated here replaces the score
+     * in place, and of several ratings of {@code other} for the same book by the same user only the
+     * last one is kept. The store has room for the users and books of both. Needs the index, and
+     * builds the one of {@code other} if it has none.
+     */
+    public RatingStore merge (RatingStore other) {
+
+        if (other.userOffsets == null) {
+            other.buildIndex ();
+        }
+        final boolean[] superseded = other.superseded ();
+
+        RatingStore merged = new RatingStore (
+                Math.max (nUsers, other.nUsers), Math.max (nBooks, other.nBooks), size + other.size
+        );
+        for (int i = 0; i < size; i++) {
+            merged.add (users[i], books[i], scores[i]);
+        }
+        for (int i = 0; i < other.size; i++) {
+            if (superseded[i]) {
+                continue;
+            }
+            final int existing = find (other.users[i], other.books[i]);
+            if (existing >= 0) {
+                merged.scores[existing] = other.scores[i];
+            } else {
+                merged.add (other.users[i], other.books[i], other.scores[i]);
+            }
+        }
+        merged.buildIndex ();
+        return merged;
+
+    }
+
+    /**
+     * Returns for every rating whether a later rating of the same book by the same user supersedes
+     * it. Needs the index.
+     */
+    public boolean[] superseded () {
+        // The books of a user come out of the stable sort of buildIndex in input order, so a rating
+        // is superseded when the next one in the index is for the same book
+        final boolean[] superseded = new boolean[size];
+        for (int u = 0; u < nUsers; u++) {
+            for (int k = userOffsets[u]; k + 1 < userOffsets[u + 1]; k++) {
+                if (ratedBooks[k] == ratedBooks[k + 1]) {
+                    superseded[ratedPositions[k]] = true;
+                }
+            }
+        }
+        return superseded;
+    }
+
+    /**
+     * Splits the ratings in two at random: a {@code fraction} of them goes to the second store, the
+     * rest to the first, both in input order and with their index built.
+     */
+    public RatingStore[] split (float fraction, Random random) {
+
+        final boolean[] held = new boolean[size];
+        final int heldOut = Math.min (size, Math.round (size * fraction));
+        // A partial Fisher-Yates shuffle picks the held-out ratings
+        final int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        for (int i = 0; i < heldOut; i++) {
+            final int j = i + random.nextInt (size - i);
+            final int rating = order[j];
+            order[j] = order[i];
+            order[i] = rating;
+            held[rating] = true;
+        }
+
+        RatingStore kept = new RatingStore (nUsers, nBooks, size - heldOut);
+        RatingStore other = new RatingStore (nUsers, nBooks, heldOut);
+        for (int i = 0; i < size; i++) {
+            (held[i] ? other : kept).add (users[i], books[i], scores[i]);
+        }
+        kept.buildIndex ();
+        other.buildIndex ();
+        return new RatingStore[] {kept, other};
+
+    }
+
+    /**
+     * Returns the ratings in the given order as a new store without an index, or this store for
+     * {@link SampleOrder#INPUT}. The tiles of {@link SampleOrder#TILED} are sized for rows of
+     * {@code nFeatures} factors.
+     */
+    public RatingStore ordered (SampleOrder order, int nFeatures, Random random) {
+
+        final int[] keys;
+        final int nKeys;
+        switch (order) {
+            case INPUT:
+                return this;
+            case SHUFFLE:
+                RatingStore shuffled = new RatingStore (
+                        nUsers, nBooks,
+                        Arrays.copyOf (users, size), Arrays.copyOf (books, size), Arrays.copyOf (scores, size)
+                );
+                shuffled.shuffle (random);
+                return shuffled;
+            case USER_MAJOR:
+                keys = users;
+                nKeys = nUsers;
+                break;
+            case BOOK_MAJOR:
+                keys = books;
+                nKeys = nBooks;
+                break;
+            default:
+                final int tileRows = Math.max (1, TILE_BYTES / (4 * nFeatures));
+                final int userTiles = (nUsers + tileRows - 1) / tileRows;
+                final int bookTiles = (nBooks + tileRows - 1) / tileRows;
+                keys = new int[size];
+                for (int i = 0; i < size; i++) {
+                    final int userTile = users[i] / tileRows;
+                    final int bookTile = books[i] / tileRows;
+                    final int stratum = (bookTile - userTile % bookTiles + bookTiles) % bookTiles;
+                    keys[i] = stratum * userTiles + userTile;
+                }
+                nKeys = userTiles * bookTiles;
+                break;
+        }
+
+        // A counting sort by key, keeping the input order within a key
+        final int[] offsets = new int[nKeys + 1];
+        for (int i = 0; i < size; i++) {
+            offsets[keys[i] + 1]++;
+        }
+        for (int k = 0; k < nKeys; k++) {
+            offsets[k + 1] += offsets[k];
+        }
+        RatingStore sorted = new RatingStore (nUsers, nBooks, new int[size], new int[size], new float[size]);
+        for (int i = 0; i < size; i++) {
+            final int j = offsets[keys[i]]++;
+            sorted.users[j] = users[i];
+            sorted.books[j] = books[i];
+            sorted.scores[j] = scores[i];
+        }
+        return sorted;
+
+    }
+
+    /**
+     * Shuffles the ratings in place, with a Fisher-Yates shuffle of the columns. The index no longer
+     * matches the ratings afterwards, so it is dropped.
+     */
+    public void shuffle (Random random) {
+        for (int i = size - 1; i > 0; i--) {
+            final int j = random.nextInt (i + 1);
+            final int user = users[i];
+            users[i] = users[j];
+            users[j] = user;
+            final int book = books[i];
+            books[i] = books[j];
+            books[j] = book;
+            final float score = scores[i];
+            scores[i] = scores[j];
+            scores[j] = score;
+        }
+        userOffsets = null;
+        ratedBooks = null;
+        ratedPositions = null;
+    }
+
+    public int size () {
+        return size;
+    }
+
+    public int getNumUsers () {
+        return nUsers;
+    }
+
+    public int getNumBooks () {
+        return nBooks;
+    }
+
+    /**
+     * The arrays may be longer than {@link #size()}, only the first {@code size ()} elements are ratings.
+     */
+    public int[] getUsers () {
+        return users;
+    }
+
+    public int[] getBooks () {
+        return books;
+    }
+
+    public float[] getScores () {
+        return scores;
+    }
+
+    public int[] getUserOffsets () {
+        return userOffsets;
+    }
+
+    public int[] getRatedBooks () {
+        return ratedBooks;
+    }
+
+    public int[] getRatedPositions () {
+        return ratedPositions;
+    }
+
+}
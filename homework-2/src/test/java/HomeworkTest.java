@@ -1,6 +1,9 @@
+import org.junit.Assert;
 import org.junit.Test;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.*;
 
 public class HomeworkTest {
@@ -86,4 +89,662 @@ public class HomeworkTest {
 
     }
 
+    @Test
+    public void testMainReadsTheRedirectedStandardInput () throws Exception {
+
+        Random random = new Random (3);
+        StringBuilder input = new StringBuilder ("600\t30\t50\n");
+        for (int i = 0; i < 600; i++) {
+            input.append (i % 30).append ('\t').append (random.nextInt (50)).append ('\t')
+                    .append (random.nextInt (5) + 1).append ('\n');
+        }
+
+        InputStream stdin = System.in;
+        PrintStream stdout = System.out;
+        ByteArrayOutputStream output = new ByteArrayOutputStream ();
+        try {
+            System.setIn (new ByteArrayInputStream (input.toString ().getBytes ("UTF-8")));
+            System.setOut (new PrintStream (output, true, "UTF-8"));
+            Main.main (new String[] {"--max-epochs=2", "--parallelism=1"});
+        } finally {
+            System.setIn (stdin);
+            System.setOut (stdout);
+        }
+
+        String[] lines = output.toString ("UTF-8").split ("\n");
+        Assert.assertEquals (30, lines.length);
+        for (String line : lines) {
+            Assert.assertEquals (10, line.trim ().split ("\\s+").length);
+        }
+
+    }
+
+    @Test
+    public void testRatingStoreIndexesRatedBooksByUser () {
+
+        RatingStore ratings = new RatingStore (3, 4, 1);
+        ratings.add (2, 3, 0.2f);
+        ratings.add (0, 1, 0.4f);
+        ratings.add (2, 0, 0.6f);
+        ratings.add (0, 2, 0.8f);
+        ratings.buildIndex ();
+
+        Assert.assertEquals (4, ratings.size ());
+        Assert.assertEquals (0.6f, ratings.getScores ()[2], 0.0f);
+        Assert.assertArrayEquals (new int[] {0, 2, 2, 4}, ratings.getUserOffsets ());
+        Assert.assertArrayEquals (new int[] {1, 2, 0, 3}, ratings.getRatedBooks ());
+
+    }
+
+    @Test
+    public void testFactorMatrixKernels () {
+
+        FactorMatrix matrix = new FactorMatrix (2, 5);
+        for (int col = 0; col < 5; col++) {
+            matrix.set (0, col, col + 1);
+            matrix.set (1, col, 1.0f);
+        }
+
+        float[] data = matrix.getData ();
+        Assert.assertEquals (15.0f, FactorMatrix.dot (data, matrix.offset (0), data, matrix.offset (1), 5), 0.0f);
+
+        FactorMatrix.axpy (2.0f, data, matrix.offset (0), data, matrix.offset (1), 5);
+        Assert.assertEquals (3.0f, matrix.get (1, 0), 0.0f);
+        Assert.assertEquals (11.0f, matrix.get (1, 4), 0.0f);
+        Assert.assertEquals (5.0f, matrix.get (0, 4), 0.0f);
+
+    }
+
+    private RatingStore generateRatings (int nUsers, int nBooks, int nRatings, long seed) {
+
+        Random random = new Random (seed);
+        Set<Long> alreadyRated = new HashSet<> ();
+        RatingStore ratings = new RatingStore (nUsers, nBooks, nRatings);
+        while (ratings.size () < nRatings) {
+            final int userId = random.nextInt (nUsers);
+            final int bookId = random.nextInt (nBooks);
+            if (alreadyRated.add ((long) userId * nBooks + bookId)) {
+                ratings.add (userId, bookId, (random.nextInt (5) + 1) / 5.0f);
+            }
+        }
+        ratings.buildIndex ();
+        return ratings;
+
+    }
+
+    private FactorMatrix[] trainFactors (RatingStore ratings, TrainingMode mode, int parallelism, int nEpochs) {
+
+        Random random = new Random (7);
+        FactorMatrix P = new FactorMatrix (ratings.getNumUsers (), 10);
+        FactorMatrix Q = new FactorMatrix (ratings.getNumBooks (), 10);
+        P.randomize (random);
+        Q.randomize (random);
+
+        if (mode == TrainingMode.SEQUENTIAL) {
+            for (int epoch = 0; epoch < nEpochs; epoch++) {
+                Main.trainEpoch (ratings, 0.01f, P, Q);
+            }
+        } else if (mode == TrainingMode.ALS) {
+            try (AlsTrainer trainer = new AlsTrainer (ratings, P, Q, parallelism)) {
+                for (int epoch = 0; epoch < nEpochs; epoch++) {
+                    trainer.sweep (0.05f);
+                }
+            }
+        } else {
+            try (ParallelTrainer trainer = new ParallelTrainer (ratings, P, Q, mode, parallelism)) {
+                for (int epoch = 0; epoch < nEpochs; epoch++) {
+                    trainer.trainEpoch (0.01f);
+                }
+            }
+        }
+        return new FactorMatrix[] {P, Q};
+
+    }
+
+    private double rmse (RatingStore ratings, FactorMatrix[] factors) {
+        FactorMatrix P = factors[0];
+        FactorMatrix Q = factors[1];
+        double sum = 0.0;
+        for (int i = 0; i < ratings.size (); i++) {
+            double err = FactorMatrix.dot (
+                    P.getData (), P.offset (ratings.getUsers ()[i]),
+                    Q.getData (), Q.offset (ratings.getBooks ()[i]), P.getCols ()
+            ) - ratings.getScores ()[i];
+            sum += err * err;
+        }
+        return Math.sqrt (sum / ratings.size ());
+    }
+
+    @Test
+    public void testParallelTrainersConvergeLikeTheSequentialOne () {
+
+        RatingStore ratings = generateRatings (100, 60, 2000, 42);
+
+        FactorMatrix[] sequential = trainFactors (ratings, TrainingMode.SEQUENTIAL, 1, 30);
+        FactorMatrix[] singleBlock = trainFactors (ratings, TrainingMode.DSGD, 1, 30);
+        Assert.assertArrayEquals (sequential[0].getData (), singleBlock[0].getData (), 0.0f);
+        Assert.assertArrayEquals (sequential[1].getData (), singleBlock[1].getData (), 0.0f);
+
+        FactorMatrix[] dsgd = trainFactors (ratings, TrainingMode.DSGD, 3, 30);
+        FactorMatrix[] dsgdAgain = trainFactors (ratings, TrainingMode.DSGD, 3, 30);
+        Assert.assertArrayEquals (dsgd[0].getData (), dsgdAgain[0].getData (), 0.0f);
+        Assert.assertArrayEquals (dsgd[1].getData (), dsgdAgain[1].getData (), 0.0f);
+
+        FactorMatrix[] hogwild = trainFactors (ratings, TrainingMode.HOGWILD, 3, 30);
+
+        double baseline = rmse (ratings, sequential);
+        Assert.assertEquals (baseline, rmse (ratings, dsgd), 0.05 * baseline);
+        Assert.assertEquals (baseline, rmse (ratings, hogwild), 0.05 * baseline);
+
+    }
+
+    @Test
+    public void testAlsTrainerConvergesInFewSweeps () {
+
+        RatingStore ratings = generateRatings (100, 60, 2000, 42);
+
+        FactorMatrix[] als = trainFactors (ratings, TrainingMode.ALS, 1, 10);
+        FactorMatrix[] parallelAls = trainFactors (ratings, TrainingMode.ALS, 3, 10);
+        Assert.assertArrayEquals (als[0].getData (), parallelAls[0].getData (), 0.0f);
+        Assert.assertArrayEquals (als[1].getData (), parallelAls[1].getData (), 0.0f);
+
+        // Ten sweeps fit the ratings better than ten epochs of gradient descent
+        FactorMatrix[] sgd = trainFactors (ratings, TrainingMode.SEQUENTIAL, 1, 10);
+        Assert.assertTrue (rmse (ratings, als) < rmse (ratings, sgd));
+
+    }
+
+    private long[] sortedRatings (RatingStore ratings) {
+        long[] encoded = new long[ratings.size ()];
+        for (int i = 0; i < ratings.size (); i++) {
+            encoded[i] = ((long) ratings.getUsers ()[i] * ratings.getNumBooks () + ratings.getBooks ()[i]) * 8
+                    + Math.round (ratings.getScores ()[i] * 5.0f);
+        }
+        Arrays.sort (encoded);
+        return encoded;
+    }
+
+    @Test
+    public void testSampleOrdersKeepEveryRating () {
+
+        RatingStore ratings = generateRatings (300, 200, 3000, 5);
+        final long[] expected = sortedRatings (ratings);
+
+        // Rows this wide make tiles of 61 rows, 5 tiles of users and 4 of books
+        final int nFeatures = 400;
+        final int tileRows = RatingStore.TILE_BYTES / (4 * nFeatures);
+        Assert.assertEquals (61, tileRows);
+
+        for (SampleOrder order : SampleOrder.values ()) {
+            RatingStore ordered = ratings.ordered (order, nFeatures, new Random (1));
+            Assert.assertArrayEquals (order.name (), expected, sortedRatings (ordered));
+            int previousTile = 0;
+            for (int i = 0; i < ordered.size (); i++) {
+                final int user = ordered.getUsers ()[i];
+                final int book = ordered.getBooks ()[i];
+                if (order == SampleOrder.USER_MAJOR && i > 0) {
+                    Assert.assertTrue (ordered.getUsers ()[i - 1] <= user);
+                } else if (order == SampleOrder.BOOK_MAJOR && i > 0) {
+                    Assert.assertTrue (ordered.getBooks ()[i - 1] <= book);
+                } else if (order == SampleOrder.TILED) {
+                    final int stratum = (book / tileRows - user / tileRows % 4 + 4) % 4;
+                    final int tile = stratum * 5 + user / tileRows;
+                    Assert.assertTrue (previousTile <= tile);
+                    previousTile = tile;
+                }
+            }
+        }
+
+        // Training never reorders the ratings it is given, even with ALS and no validation split
+        TrainingController controller = new TrainingController ();
+        controller.setTrainingMode (TrainingMode.ALS);
+        controller.setSampleOrder (SampleOrder.SHUFFLE);
+        controller.setMaxEpochs (3);
+        FactorMatrix[] factors = trainFactors (ratings, TrainingMode.SEQUENTIAL, 1, 0);
+        final int[] userOffsets = ratings.getUserOffsets ();
+        controller.train (ratings, factors[0], factors[1], new Random (1));
+        Assert.assertSame (userOffsets, ratings.getUserOffsets ());
+        Assert.assertNotNull (ratings.getRatedPositions ());
+        Assert.assertArrayEquals (expected, sortedRatings (ratings));
+
+        // The shuffle is in place, and a new order every time
+        RatingStore shuffled = ratings.ordered (SampleOrder.SHUFFLE, 10, new Random (1));
+        final int[] firstOrder = shuffled.getUsers ().clone ();
+        shuffled.shuffle (new Random (2));
+        Assert.assertFalse (Arrays.equals (firstOrder, shuffled.getUsers ()));
+        Assert.assertArrayEquals (expected, sortedRatings (shuffled));
+
+    }
+
+    @Test
+    public void testTopKRecommenderMatchesFullSort () {
+
+        RatingStore ratings = generateRatings (30, 50, 600, 3);
+        Random random = new Random (11);
+        FactorMatrix P = new FactorMatrix (30, 3);
+        FactorMatrix Q = new FactorMatrix (50, 3);
+        // Small integer factors, so that many books have equal scores
+        for (int row = 0; row < 30; row++) {
+            for (int col = 0; col < 3; col++) {
+                P.set (row, col, random.nextInt (3));
+            }
+        }
+        for (int row = 0; row < 50; row++) {
+            for (int col = 0; col < 3; col++) {
+                Q.set (row, col, random.nextInt (3));
+            }
+        }
+
+        TopKRecommender recommender = new TopKRecommender (50, 10);
+        int[] recommended = new int[10];
+        for (int u = 0; u < 30; u++) {
+
+            // The ranking of the original implementation: a stable ascending sort, read from the end
+            List<Integer> rec = new ArrayList<> ();
+            for (int book = 0; book < 50; book++) {
+                rec.add (book);
+            }
+            for (int k = ratings.getUserOffsets ()[u]; k < ratings.getUserOffsets ()[u + 1]; k++) {
+                rec.remove (Integer.valueOf (ratings.getRatedBooks ()[k]));
+            }
+            final int user = u;
+            rec.sort (Comparator.comparingDouble (book -> FactorMatrix.dot (
+                    P.getData (), P.offset (user), Q.getData (), Q.offset (book), 3
+            )));
+            Collections.reverse (rec);
+
+            final int count = recommender.recommend (u, ratings, P, Q, recommended);
+            Assert.assertEquals (Math.min (10, rec.size ()), count);
+            for (int i = 0; i < count; i++) {
+                Assert.assertEquals ((int) rec.get (i), recommended[i]);
+            }
+
+        }
+
+    }
+
+    @Test
+    public void testBatchScorerWritesTheTopKOfEveryUserInOrder () throws Exception {
+
+        RatingStore ratings = generateRatings (150, 900, 6000, 5);
+        FactorMatrix[] factors = trainFactors (ratings, TrainingMode.SEQUENTIAL, 1, 5);
+
+        StringBuilder expected = new StringBuilder ();
+        TopKRecommender recommender = new TopKRecommender (900, 10);
+        int[] recommended = new int[10];
+        for (int u = 0; u < 150; u++) {
+            final int count = recommender.recommend (u, ratings, factors[0], factors[1], recommended);
+            for (int i = 0; i < count; i++) {
+                expected.append (i > 0 ? "\t" : "").append (recommended[i]);
+            }
+            expected.append ("\n");
+        }
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream ();
+        try (BatchScorer scorer = new BatchScorer (ratings, factors[0], factors[1], 10, 3)) {
+            scorer.writeRecommendations (output);
+        }
+        Assert.assertEquals (expected.toString (), new String (output.toByteArray (), "US-ASCII"));
+
+    }
+
+    @Test
+    public void testInnerProductIndexFindsTheExactTopKWhenProbingEveryList () {
+
+        RatingStore ratings = generateRatings (80, 1000, 4000, 9);
+        FactorMatrix[] factors = trainFactors (ratings, TrainingMode.SEQUENTIAL, 1, 5);
+
+        InnerProductIndex index = new InnerProductIndex (factors[1], 32, 10, new Random (1));
+        int[] listBooks = index.getListBooks ().clone ();
+        Arrays.sort (listBooks);
+        for (int book = 0; book < 1000; book++) {
+            Assert.assertEquals (book, listBooks[book]);
+        }
+
+        TopKRecommender exact = new TopKRecommender (1000, 10);
+        ApproximateRecommender everyList = new ApproximateRecommender (index, 10, 32);
+        ApproximateRecommender someLists = new ApproximateRecommender (index, 10, 8);
+        int[] expected = new int[10];
+        int[] actual = new int[10];
+        int found = 0;
+        for (int u = 0; u < 80; u++) {
+
+            exact.recommend (u, ratings, factors[0], factors[1], expected);
+            everyList.recommend (u, ratings, factors[0], actual);
+            Assert.assertArrayEquals (expected, actual);
+
+            someLists.recommend (u, ratings, factors[0], actual);
+            for (int i = 0; i < 10; i++) {
+                for (int j = 0; j < 10; j++) {
+                    if (actual[i] == expected[j]) {
+                        found++;
+                    }
+                }
+            }
+
+        }
+        Assert.assertTrue ("recall@10 with a quarter of the lists: " + found / 800.0, found >= 0.5 * 800);
+
+    }
+
+    @Test
+    public void testTrainingControllerStopsEarlyAndKeepsTheBestFactors () {
+
+        RatingStore ratings = generateRatings (100, 60, 2000, 42);
+
+        RatingStore[] split = ratings.split (0.2f, new Random (5));
+        Assert.assertEquals (1600, split[0].size ());
+        Assert.assertEquals (400, split[1].size ());
+
+        Random random = new Random (7);
+        FactorMatrix P = new FactorMatrix (100, 10);
+        FactorMatrix Q = new FactorMatrix (60, 10);
+        P.randomize (random);
+        Q.randomize (random);
+
+        TrainingController controller = new TrainingController ();
+        controller.setValidationFraction (0.2f);
+        controller.setPatience (3);
+        controller.setMaxEpochs (500);
+        controller.setLambda (0.01f);
+        controller.setSchedule (LearningRateSchedule.BOLD_DRIVER);
+        controller.train (ratings, P, Q, new Random (5));
+
+        // The ratings are noise, so the validation error stops improving long before 500 epochs
+        Assert.assertTrue (controller.getEpochs () < 500);
+        Assert.assertEquals (controller.getBestEpoch () + 3, controller.getEpochs ());
+        // The same seed holds out the same ratings, the kept factors are the ones of the best epoch
+        Assert.assertEquals (controller.getBestValidationRmse (), Main.rmse (split[1], P, Q), 1e-9);
+
+    }
+
+    @Test
+    public void testTrainingListenersSeeEveryEpoch () throws Exception {
+
+        RatingStore ratings = generateRatings (100, 60, 2000, 42);
+        FactorMatrix[] factors = trainFactors (ratings, TrainingMode.SEQUENTIAL, 1, 0);
+
+        TrainingController controller = new TrainingController ();
+        controller.setValidationFraction (0.2f);
+        controller.setMaxEpochs (5);
+        controller.setLearningRate (0.01f);
+        controller.setSchedule (LearningRateSchedule.DECAY);
+        List<EpochMetrics> epochs = new ArrayList<> ();
+        controller.addListener (epochs::add);
+        ByteArrayOutputStream csv = new ByteArrayOutputStream ();
+        ByteArrayOutputStream json = new ByteArrayOutputStream ();
+        try (MetricsSink csvSink = new MetricsSink (csv, MetricsFormat.CSV);
+             MetricsSink jsonSink = new MetricsSink (json, MetricsFormat.JSON)) {
+            controller.addListener (csvSink);
+            controller.addListener (jsonSink);
+            controller.train (ratings, factors[0], factors[1], new Random (5));
+        }
+
+        Assert.assertEquals (5, epochs.size ());
+        for (int e = 0; e < 5; e++) {
+            EpochMetrics metrics = epochs.get (e);
+            Assert.assertEquals (e + 1, metrics.getEpoch ());
+            Assert.assertEquals (0.01f / (1.0f + 0.01f * e), metrics.getLearningRate (), 0.0f);
+            Assert.assertEquals (1600, metrics.getSamples ());
+            Assert.assertTrue (metrics.getSamplesPerSecond () > 0.0);
+            Assert.assertTrue (metrics.getPGradientNorm () > 0.0 && metrics.getQGradientNorm () > 0.0);
+            // The factors start random, so the error falls in every epoch
+            if (e > 0) {
+                Assert.assertTrue (metrics.getTrainingRmse () < epochs.get (e - 1).getTrainingRmse ());
+            }
+        }
+        Assert.assertEquals (controller.getBestValidationRmse (), epochs.get (4).getValidationRmse (), 0.0);
+
+        String[] csvLines = csv.toString ("UTF-8").split ("\n");
+        Assert.assertEquals (6, csvLines.length);
+        Assert.assertTrue (csvLines[0].startsWith ("epoch,learning_rate,training_rmse,validation_rmse"));
+        Assert.assertTrue (csvLines[1].startsWith ("1,0.01,"));
+        String[] jsonLines = json.toString ("UTF-8").split ("\n");
+        Assert.assertEquals (5, jsonLines.length);
+        Assert.assertTrue (jsonLines[4].startsWith ("{\"epoch\":5,\"learning_rate\":"));
+        Assert.assertTrue (jsonLines[4].endsWith ("}"));
+
+        // A diverging run has infinite errors, which are left out like the missing values
+        ByteArrayOutputStream diverging = new ByteArrayOutputStream ();
+        try (MetricsSink sink = new MetricsSink (diverging, MetricsFormat.JSON)) {
+            sink.epochFinished (new EpochMetrics (
+                    1, 10.0f, Double.POSITIVE_INFINITY, Double.NaN, 1000000L, 1600,
+                    Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY
+            ));
+        }
+        String divergingLine = diverging.toString ("UTF-8").trim ();
+        Assert.assertFalse (divergingLine.contains ("Infinity"));
+        Assert.assertTrue (divergingLine.contains ("\"training_rmse\":null,\"validation_rmse\":null"));
+        Assert.assertTrue (divergingLine.endsWith ("\"p_gradient_norm\":null,\"q_gradient_norm\":null}"));
+
+    }
+
+    @Test
+    public void testModelSnapshotRoundTrip () throws Exception {
+
+        RatingStore ratings = generateRatings (40, 30, 300, 2);
+        FactorMatrix[] factors = trainFactors (ratings, TrainingMode.SEQUENTIAL, 1, 3);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream ();
+        new ModelSnapshot (ratings, factors[0], factors[1]).write (output);
+        ModelSnapshot snapshot = ModelSnapshot.read (new ByteArrayInputStream (output.toByteArray ()));
+
+        Assert.assertEquals (300, snapshot.getRatings ().size ());
+        Assert.assertArrayEquals (ratings.getUserOffsets (), snapshot.getRatings ().getUserOffsets ());
+        Assert.assertArrayEquals (ratings.getRatedBooks (), snapshot.getRatings ().getRatedBooks ());
+        Assert.assertArrayEquals (factors[0].getData (), snapshot.getP ().getData (), 0.0f);
+        Assert.assertArrayEquals (factors[1].getData (), snapshot.getQ ().getData (), 0.0f);
+
+    }
+
+    @Test
+    public void testDeltaEncodedSnapshotsKeepEveryRating () throws Exception {
+
+        RatingStore ratings = generateRatings (60, 5000, 2000, 3);
+        FactorMatrix[] factors = trainFactors (ratings, TrainingMode.SEQUENTIAL, 1, 1);
+        File file = File.createTempFile ("hw2-snapshot", ".bin");
+        file.deleteOnExit ();
+
+        for (int pass = 0; pass < 2; pass++) {
+
+            // The second pass has a score that is not a multiple of 1/5, so the scores are stored as floats
+            if (pass == 1) {
+                ratings.getScores ()[17] = 0.33f;
+            }
+            new ModelSnapshot (ratings, factors[0], factors[1]).save (file.toPath (), true);
+            ModelSnapshot snapshot = ModelSnapshot.load (file.toPath ());
+            RatingStore loaded = snapshot.getRatings ();
+
+            Assert.assertEquals (ratings.size (), loaded.size ());
+            Assert.assertArrayEquals (ratings.getUserOffsets (), loaded.getUserOffsets ());
+            Assert.assertArrayEquals (ratings.getRatedBooks (), loaded.getRatedBooks ());
+            for (int i = 0; i < ratings.size (); i++) {
+                final int position = loaded.find (ratings.getUsers ()[i], ratings.getBooks ()[i]);
+                Assert.assertEquals (ratings.getScores ()[i], loaded.getScores ()[position], 0.0f);
+            }
+            Assert.assertArrayEquals (factors[1].getData (), snapshot.getQ ().getData (), 0.0f);
+
+        }
+
+        new ModelSnapshot (ratings, null, null).save (file.toPath (), false);
+        Assert.assertNull (ModelSnapshot.load (file.toPath ()).getP ());
+        Assert.assertEquals (ratings.size (), ModelSnapshot.load (file.toPath ()).getRatings ().size ());
+
+    }
+
+    @Test
+    public void testCorruptSnapshotsFailWithIOException () throws Exception {
+
+        RatingStore ratings = generateRatings (40, 30, 300, 2);
+        FactorMatrix[] factors = trainFactors (ratings, TrainingMode.SEQUENTIAL, 1, 3);
+
+        for (boolean deltaEncoded : new boolean[] {false, true}) {
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream ();
+            new ModelSnapshot (ratings, factors[0], factors[1]).write (output, deltaEncoded);
+            final byte[] bytes = output.toByteArray ();
+
+            // Every truncated file
+            for (int length = ModelSnapshot.HEADER_SIZE; length < bytes.length; length++) {
+                assertCorrupt (ByteBuffer.wrap (Arrays.copyOf (bytes, length)));
+            }
+
+            // More ratings than the file holds
+            ByteBuffer buffer = ByteBuffer.wrap (bytes.clone ()).order (ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt (20, Integer.MAX_VALUE);
+            assertCorrupt (buffer);
+
+            buffer = ByteBuffer.wrap (bytes.clone ()).order (ByteOrder.LITTLE_ENDIAN);
+            if (deltaEncoded) {
+                // The row of user 0 ends after the one of user 1
+                buffer.putInt (ModelSnapshot.HEADER_SIZE + 4, buffer.getInt (ModelSnapshot.HEADER_SIZE + 8) + 1);
+            } else {
+                // The first rating is by an unknown user
+                buffer.putInt (ModelSnapshot.HEADER_SIZE, 40);
+            }
+            assertCorrupt (buffer);
+
+        }
+
+    }
+
+    private void assertCorrupt (ByteBuffer buffer) {
+        try {
+            ModelSnapshot.read (buffer);
+            Assert.fail ("A corrupt snapshot was read");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testMergeKeepsTheLastOfRepeatedRatings () {
+
+        RatingStore ratings = generateRatings (40, 30, 300, 2);
+        final int ratedBook = ratings.getRatedBooks ()[ratings.getUserOffsets ()[3]];
+
+        // The delta rates a new pair and an existing pair twice each
+        RatingStore delta = new RatingStore (41, 31, 5);
+        delta.add (40, 30, 0.4f);
+        delta.add (3, ratedBook, 0.2f);
+        delta.add (40, 30, 0.8f);
+        delta.add (40, 29, 0.6f);
+        delta.add (3, ratedBook, 1.0f);
+
+        RatingStore merged = ratings.merge (delta);
+        Assert.assertEquals (302, merged.size ());
+        Assert.assertEquals (0.8f, merged.getScores ()[merged.find (40, 30)], 0.0f);
+        Assert.assertEquals (0.6f, merged.getScores ()[merged.find (40, 29)], 0.0f);
+        Assert.assertEquals (1.0f, merged.getScores ()[merged.find (3, ratedBook)], 0.0f);
+        Assert.assertEquals (2, merged.getUserOffsets ()[41] - merged.getUserOffsets ()[40]);
+
+        // The update with only the delta does not train on the superseded ratings either
+        FactorMatrix[] factors = trainFactors (ratings, TrainingMode.SEQUENTIAL, 1, 3);
+        IncrementalUpdater updater = new IncrementalUpdater ();
+        updater.setScope (UpdateScope.DELTA);
+        updater.update (new ModelSnapshot (ratings, factors[0], factors[1]), delta, new Random (1));
+        Assert.assertEquals (3, updater.getAffectedRatings ());
+
+    }
+
+    @Test
+    public void testIncrementalUpdateOnlyTouchesTheAffectedRows () {
+
+        RatingStore ratings = generateRatings (40, 30, 300, 2);
+        FactorMatrix[] factors = trainFactors (ratings, TrainingMode.SEQUENTIAL, 1, 3);
+        ModelSnapshot snapshot = new ModelSnapshot (ratings, factors[0], factors[1]);
+
+        final int ratedBook = ratings.getRatedBooks ()[ratings.getUserOffsets ()[3]];
+        RatingStore delta = new RatingStore (42, 31, 3);
+        delta.add (3, ratedBook, 0.2f);
+        delta.add (41, 30, 1.0f);
+        delta.add (41, ratedBook, 0.6f);
+        delta.buildIndex ();
+
+        // The ratings of user 3, the two new ones, and the ratings of the book by other users
+        int affectedRatings = ratings.getUserOffsets ()[4] - ratings.getUserOffsets ()[3] + 2;
+        for (int i = 0; i < ratings.size (); i++) {
+            if (ratings.getBooks ()[i] == ratedBook && ratings.getUsers ()[i] != 3) {
+                affectedRatings++;
+            }
+        }
+
+        IncrementalUpdater updater = new IncrementalUpdater ();
+        updater.setScope (UpdateScope.AFFECTED_ROWS);
+        ModelSnapshot updated = updater.update (snapshot, delta, new Random (1));
+        Assert.assertEquals (affectedRatings, updater.getAffectedRatings ());
+
+        RatingStore merged = updated.getRatings ();
+        Assert.assertEquals (302, merged.size ());
+        Assert.assertEquals (42, merged.getNumUsers ());
+        Assert.assertEquals (31, merged.getNumBooks ());
+        Assert.assertEquals (0.2f, merged.getScores ()[merged.find (3, ratedBook)], 0.0f);
+        Assert.assertEquals (1.0f, merged.getScores ()[merged.find (41, 30)], 0.0f);
+        Assert.assertEquals (-1, merged.find (40, 30));
+
+        Assert.assertEquals (42, updated.getP ().getRows ());
+        Assert.assertEquals (31, updated.getQ ().getRows ());
+        for (int u = 0; u < 40; u++) {
+            for (int f = 0; f < 10; f++) {
+                if (u != 3) {
+                    Assert.assertEquals (factors[0].get (u, f), updated.getP ().get (u, f), 0.0f);
+                }
+            }
+        }
+        for (int b = 0; b < 30; b++) {
+            for (int f = 0; f < 10; f++) {
+                if (b != ratedBook) {
+                    Assert.assertEquals (factors[1].get (b, f), updated.getQ ().get (b, f), 0.0f);
+                }
+            }
+        }
+        Assert.assertNotEquals (factors[0].get (3, 0), updated.getP ().get (3, 0), 0.0f);
+
+    }
+
+    @Test
+    public void testRatingsParserReadsTheHomeworkFormat () throws Exception {
+
+        String input = "3 4 5 extra\r\n"
+                + "0\t1\t5\r\n"
+                + "  3 \t 4  2.5 123456\n"
+                + "2\t0\t1e0\n"
+                + "9\t9\t5\n";
+        RatingStore ratings = RatingsParser.parse (new ByteArrayInputStream (input.getBytes ("US-ASCII")), 1);
+
+        Assert.assertEquals (3, ratings.size ());
+        Assert.assertEquals (4, ratings.getNumUsers ());
+        Assert.assertEquals (5, ratings.getNumBooks ());
+        Assert.assertArrayEquals (new int[] {0, 3, 2}, Arrays.copyOf (ratings.getUsers (), 3));
+        Assert.assertArrayEquals (new int[] {1, 4, 0}, Arrays.copyOf (ratings.getBooks (), 3));
+        Assert.assertArrayEquals (new float[] {1.0f, 0.5f, 0.2f}, Arrays.copyOf (ratings.getScores (), 3), 0.0f);
+
+    }
+
+    @Test
+    public void testRatingsParserSplitsMappedInputAtLineBoundaries () throws Exception {
+
+        Random random = new Random (17);
+        StringBuilder sb = new StringBuilder ();
+        sb.append (200000).append ("\t").append (1000).append ("\t").append (5000).append ("\n");
+        for (int i = 0; i < 200000; i++) {
+            sb.append (random.nextInt (1000)).append ("\t")
+                    .append (random.nextInt (5000)).append ("\t")
+                    .append (random.nextInt (5) + 1).append ("\n");
+        }
+        byte[] bytes = sb.toString ().getBytes ("US-ASCII");
+        Assert.assertTrue (bytes.length > RatingsParser.MIN_PARALLEL_BYTES);
+
+        RatingStore streamed = RatingsParser.parse (new ByteArrayInputStream (bytes), 1);
+        RatingStore chunked = RatingsParser.parse (ByteBuffer.wrap (bytes), 4);
+
+        Assert.assertEquals (200000, chunked.size ());
+        Assert.assertArrayEquals (Arrays.copyOf (streamed.getUsers (), 200000), Arrays.copyOf (chunked.getUsers (), 200000));
+        Assert.assertArrayEquals (Arrays.copyOf (streamed.getBooks (), 200000), Arrays.copyOf (chunked.getBooks (), 200000));
+        Assert.assertArrayEquals (
+                Arrays.copyOf (streamed.getScores (), 200000), Arrays.copyOf (chunked.getScores (), 200000), 0.0f
+        );
+
+    }
+
 }